@@ -0,0 +1,321 @@
+package com.snakei;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of reverse geocoding results (cf.
+ * LocationService.getGeoLocation), so that a device that stays in the same
+ * place doesn't ask the geocoder, i.e. a server, again and again
+ *
+ * Results are keyed by the grid cell of their coordinates, i.e. latitude
+ * and longitude rounded to CELL_DEGREES, about 100 m, and the max number
+ * of results asked for. Results are kept as the serialized JSON that
+ * getGeoLocation returns, until they are older than the time to live or
+ * the least recently used result is evicted for a new one.
+ *
+ * Optionally the cache is persisted to a file, so that interpreter
+ * processes share their results, and results survive a restart. The file
+ * is rewritten after each new result, a network round trip is much slower
+ * anyway. Results that other processes stored are merged before the file
+ * is rewritten, and read on a miss if the file changed. Processes take an
+ * exclusive lock on a lock file next to the cache file while they merge
+ * and rewrite it, so that they don't lose each other's results.
+ *
+ * All methods are synchronized on the cache, the geocoder must be called
+ * without holding the lock.
+ *
+ */
+class LocationGeocoderCache {
+    static final String TAG = "LocationGeocoderCache";
+
+    // Size of a grid cell, 0.001 degrees latitude are about 111 m
+    static final double CELL_DEGREES = 0.001;
+
+    static final int DEFAULT_MAX_ENTRIES = 256;
+    static final long DEFAULT_TTL_MS = 24L * 60 * 60 * 1000;
+
+    // Path of the persisted cache, relative to the app's files directory
+    static final String CACHE_FILE = "geocoder_cache.json";
+    // Suffix of the lock file next to the cache file, cf. save
+    static final String LOCK_SUFFIX = ".lock";
+
+    private static class Entry {
+        final String addresses_json;
+        final long created_ms;
+
+        Entry(String addresses_json, long created_ms) {
+            this.addresses_json = addresses_json;
+            this.created_ms = created_ms;
+        }
+    }
+
+    private int max_entries = DEFAULT_MAX_ENTRIES;
+    private long ttl_ms = DEFAULT_TTL_MS;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > max_entries) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // File of the persisted cache, null if not persistent, and its last
+    // modification time that we know of
+    private File file;
+    private long file_modified;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+
+    /*
+     * Returns the cache key of a location and max number of results, i.e.
+     * the grid cell, e.g. "40692:-73987:2"
+     */
+    static String getKey(double latitude, double longitude, int max_results) {
+        return Math.round(latitude / CELL_DEGREES) + ":" +
+                Math.round(longitude / CELL_DEGREES) + ":" + max_results;
+    }
+
+
+    /*
+     * Changes the size bound, time to live and the file to persist to,
+     * null for an in-memory cache
+     *
+     * A max of 0 entries disables the cache. Results persisted by other
+     * processes are loaded from the file right away.
+     *
+     */
+    synchronized void configure(int max_entries, long ttl_ms, File file) {
+        this.max_entries = max_entries;
+        this.ttl_ms = ttl_ms;
+        this.file = file;
+        file_modified = 0;
+
+        // Evict down to the new bound, the oldest used first
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > max_entries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+        if (file != null && max_entries > 0) {
+            load();
+        }
+    }
+
+
+    /*
+     * Returns the cached result for a key or null on a miss
+     */
+    synchronized String get(String key) {
+        if (max_entries <= 0) {
+            return null;
+        }
+        Entry entry = lookup(key);
+        if (entry == null && file != null &&
+                file.lastModified() != file_modified) {
+            load();
+            entry = lookup(key);
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.addresses_json;
+    }
+
+
+    /*
+     * Internal helper that returns the entry for a key, unless it is
+     * missing or expired, which removes it
+     */
+    private Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null &&
+                System.currentTimeMillis() - entry.created_ms >= ttl_ms) {
+            entries.remove(key);
+            expirations++;
+            entry = null;
+        }
+        return entry;
+    }
+
+
+    /*
+     * Stores a result, and persists the cache if it is persistent
+     */
+    synchronized void put(String key, String addresses_json) {
+        if (max_entries <= 0) {
+            return;
+        }
+        entries.put(key, new Entry(addresses_json,
+                System.currentTimeMillis()));
+        if (file != null) {
+            save();
+        }
+    }
+
+
+    /*
+     * Returns the cache's counters and configuration as JSON object, i.e.:
+     * {'entries': 12, 'max_entries': 256, 'ttl_ms': 86400000,
+     *  'persistent': true, 'hits': 340, 'misses': 12, 'evictions': 0,
+     *  'expirations': 1}
+     *
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject cache_json = new JSONObject();
+        cache_json.put("entries", entries.size());
+        cache_json.put("max_entries", max_entries);
+        cache_json.put("ttl_ms", ttl_ms);
+        cache_json.put("persistent", file != null);
+        cache_json.put("hits", hits);
+        cache_json.put("misses", misses);
+        cache_json.put("evictions", evictions);
+        cache_json.put("expirations", expirations);
+        return cache_json;
+    }
+
+
+    /*
+     * Internal helper that merges the results of the persisted cache, that
+     * aren't expired and newer than ours, into the cache
+     *
+     * File layout: {<key>: [<created ms>, <serialized addresses>], ...}
+     *
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        long modified = file.lastModified();
+        try {
+            JSONObject cache_json = new JSONObject(read_file(file));
+            long now = System.currentTimeMillis();
+            Iterator<String> keys = cache_json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONArray entry_json = cache_json.getJSONArray(key);
+                long created_ms = entry_json.getLong(0);
+                Entry entry = entries.get(key);
+                if (now - created_ms < ttl_ms &&
+                        (entry == null || entry.created_ms < created_ms)) {
+                    entries.put(key, new Entry(entry_json.getString(1),
+                            created_ms));
+                }
+            }
+            file_modified = modified;
+        } catch (IOException e) {
+            Log.d(TAG, "Could not load " + file.getPath() + ": " +
+                    e.toString());
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not load " + file.getPath() + ": " +
+                    e.toString());
+        }
+    }
+
+
+    /*
+     * Internal helper that writes the cache to a temporary file and renames
+     * it to the cache file, so that other processes never read a partial
+     * file
+     *
+     * Holds the lock file from merging the persisted results until the
+     * rename, so that no other process rewrites the file in between, and
+     * writes to a temporary file of its own, so that processes that don't
+     * honor the lock can't interleave their writes either.
+     *
+     */
+    private void save() {
+        File tmp = null;
+        try {
+            RandomAccessFile lock_file = new RandomAccessFile(
+                    file.getPath() + LOCK_SUFFIX, "rw");
+            try {
+                FileChannel channel = lock_file.getChannel();
+                // Blocks until other processes are done with the file
+                FileLock lock = channel.lock();
+                try {
+                    if (file.lastModified() != file_modified) {
+                        load();
+                    }
+                    JSONObject cache_json = new JSONObject();
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        JSONArray entry_json = new JSONArray();
+                        entry_json.put(entry.getValue().created_ms);
+                        entry_json.put(entry.getValue().addresses_json);
+                        cache_json.put(entry.getKey(), entry_json);
+                    }
+                    tmp = File.createTempFile(file.getName(), ".tmp",
+                            file.getParentFile());
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    try {
+                        out.write(cache_json.toString().getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Could not rename " +
+                                tmp.getPath());
+                    }
+                    tmp = null;
+                    file_modified = file.lastModified();
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lock_file.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not save " + file.getPath() + ": " +
+                    e.toString());
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not save " + file.getPath() + ": " +
+                    e.toString());
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+
+    private static String read_file(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int length = 0;
+            int n;
+            while (length < data.length &&
+                    (n = in.read(data, length, data.length - length)) > 0) {
+                length += n;
+            }
+            return new String(data, 0, length, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
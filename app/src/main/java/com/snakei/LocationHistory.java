@@ -0,0 +1,197 @@
+package com.snakei;
+
+import android.location.Location;
+
+/**
+ * A fixed-capacity ring buffer of the locations of a single location
+ * provider, so that callers that poll less often than the provider
+ * delivers locations don't lose any (cf. LocationService.getLocationsSince)
+ *
+ * Locations are stored in preallocated primitive arrays, i.e.:
+ *   - the wall clock time in milliseconds when the location was received
+ *   - the location's own time in milliseconds (Location.getTime)
+ *   - latitude, longitude and altitude
+ *   - accuracy, speed and bearing
+ *
+ * and only serialized when they are read. Provider specific extras are
+ * not kept, cf. LocationService.getLocation for those of the most recent
+ * location.
+ *
+ * Like SensorRingBuffer the buffer has one writer at a time (the thread
+ * that receives locations) and any number of concurrent readers, without
+ * locks: The writer fills a slot and then publishes it by incrementing the
+ * volatile `head` counter. Readers copy the locations they are interested
+ * in and then re-read `head` to discard those that the writer might have
+ * overwritten while they were copying.
+ *
+ */
+class LocationHistory {
+
+    final int capacity;
+    private final int mask;
+
+    private final long[] received;
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] altitudes;
+    private final float[] accuracies;
+    private final float[] speeds;
+    private final float[] bearings;
+
+    // Total number of locations ever written, i.e. the logical index of the
+    // next location. Written by the writer thread only.
+    private volatile long head;
+
+
+    /*
+     * @param   capacity (int) - rounded up to the next power of two
+     */
+    LocationHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+
+        received = new long[size];
+        times = new long[size];
+        latitudes = new double[size];
+        longitudes = new double[size];
+        altitudes = new double[size];
+        accuracies = new float[size];
+        speeds = new float[size];
+        bearings = new float[size];
+    }
+
+
+    /*
+     * Appends a location, overwriting the oldest one if the buffer is full
+     *
+     * MUST ONLY be called from the thread that receives locations
+     *
+     */
+    void write(long received_ms, Location location) {
+        long h = head;
+        int slot = (int) (h & mask);
+
+        received[slot] = received_ms;
+        times[slot] = location.getTime();
+        latitudes[slot] = location.getLatitude();
+        longitudes[slot] = location.getLongitude();
+        altitudes[slot] = location.getAltitude();
+        accuracies[slot] = location.getAccuracy();
+        speeds[slot] = location.getSpeed();
+        bearings[slot] = location.getBearing();
+
+        // Volatile write publishes above stores to the readers
+        head = h + 1;
+    }
+
+
+    /*
+     * Serializes up to `max` locations that were received after
+     * `since_ms`, oldest first, as JSON array of arrays, i.e.:
+     * [[<time received ms>, <time ms>, <latitude>, <longitude>,
+     *   <accuracy>, <speed>, <bearing>, <altitude>], ...]
+     *
+     * To continue where a call left off pass the time received of the last
+     * location it returned.
+     *
+     * Returns null if there are no such locations
+     *
+     */
+    String getLocationsSince(long since_ms, int max) {
+        if (max <= 0) {
+            return null;
+        }
+
+        long h = head;
+        long first = first_newer(since_ms, h);
+        int n = (int) Math.min(max, h - first);
+        if (n <= 0) {
+            return null;
+        }
+
+        // Copy out first, then check whether the writer lapped us
+        long[] copy_received = new long[n];
+        long[] copy_times = new long[n];
+        double[] copy_latitudes = new double[n];
+        double[] copy_longitudes = new double[n];
+        double[] copy_altitudes = new double[n];
+        float[] copy_accuracies = new float[n];
+        float[] copy_speeds = new float[n];
+        float[] copy_bearings = new float[n];
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((first + i) & mask);
+            copy_received[i] = received[slot];
+            copy_times[i] = times[slot];
+            copy_latitudes[i] = latitudes[slot];
+            copy_longitudes[i] = longitudes[slot];
+            copy_altitudes[i] = altitudes[slot];
+            copy_accuracies[i] = accuracies[slot];
+            copy_speeds[i] = speeds[slot];
+            copy_bearings[i] = bearings[slot];
+        }
+
+        // Locations older than this might have been overwritten while copying
+        long valid_from = head - capacity + 1;
+        int skip = (int) Math.max(0, Math.min(n, valid_from - first));
+        if (skip == n) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder((n - skip) * 128);
+        sb.append('[');
+        for (int i = skip; i < n; i++) {
+            if (i > skip) {
+                sb.append(',');
+            }
+            sb.append('[');
+            sb.append(copy_received[i]);
+            sb.append(',');
+            sb.append(copy_times[i]);
+            sb.append(',');
+            sb.append(copy_latitudes[i]);
+            sb.append(',');
+            sb.append(copy_longitudes[i]);
+            sb.append(',');
+            sb.append(copy_accuracies[i]);
+            sb.append(',');
+            sb.append(copy_speeds[i]);
+            sb.append(',');
+            sb.append(copy_bearings[i]);
+            sb.append(',');
+            sb.append(copy_altitudes[i]);
+            sb.append(']');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+
+    /*
+     * Internal helper that returns the logical index of the oldest buffered
+     * location received after `since_ms`, or `h` if there is none
+     *
+     * Binary search, as locations are written in the order they are
+     * received
+     *
+     */
+    private long first_newer(long since_ms, long h) {
+        long first = h;
+        long a = Math.max(0, h - capacity + 1);
+        long b = h - 1;
+        while (a <= b) {
+            long mid = (a + b) >>> 1;
+            if (received[(int) (mid & mask)] > since_ms) {
+                first = mid;
+                b = mid - 1;
+            } else {
+                a = mid + 1;
+            }
+        }
+        return first;
+    }
+}
@@ -6,7 +6,10 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -23,6 +26,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.Security;
 import java.util.List;
@@ -46,6 +50,15 @@ import java.util.Locale;
  *
  * Location and address objects are returned as serialized JSON
  *
+ * Locations are received on a dedicated background thread, not on the main
+ * thread, at the interval, priority and minimum displacement the last
+ * caller of start_location asked for (cf. start_location)
+ *
+ * The Google API client is built and connected once per process and stays
+ * connected, start_location and stop_location only attach and detach our
+ * fused location listener, neither waits for the connection
+ * (cf. getGoogleApiStatus for the connection's state and latency)
+ *
  * This class is a Singleton using the thread safe
  * Java Initialization on Demand Holder pattern
  * (cf. SensorService.java for more info )
@@ -64,30 +77,87 @@ public class LocationService implements android.location.LocationListener,
 
     static final String TAG = "LocationService";
 
+    // Default location request of start_location, about one fix per second
+    // from the most accurate providers
+    static final long DEFAULT_INTERVAL_MS = 1000;
+    static final long DEFAULT_FASTEST_INTERVAL_MS = 1000;
+    static final int DEFAULT_PRIORITY = LocationRequest.PRIORITY_HIGH_ACCURACY;
+    static final float DEFAULT_MIN_DISPLACEMENT_M = 0;
+
+    // Number of locations kept per provider (cf. getLocationsSince), e.g.
+    // four minutes of one fix per second
+    static final int HISTORY_CAPACITY = 256;
+
     private Context cached_context;
 
     // Used to start/stop listener on network and gps location provider
     private LocationManager location_manager;
 
-    // Used to connect to Google Play Service
+    // Used to connect to Google Play Service, built on the first
+    // start_location and kept for the life of the process
     private GoogleApiClient google_api_client;
     // Used to define accuracy and frequency of Google Play Services
-    // location updates
-    private LocationRequest google_location_request;
+    // location updates, replaced by start_location, read by the connection
+    // callback on the main thread
+    private volatile LocationRequest google_location_request;
+
+    // All location listeners are registered on this thread's looper
+    private HandlerThread location_thread;
+    private Looper location_looper;
 
-    // We need to make those class members to be able to
-    // unregister them in their own callback functions
+    // Registered with the Google API client for its whole life, they run
+    // on the main thread
     private ConnectionCallbacks google_api_connection_callbacks;
     private OnConnectionFailedListener google_api_connection_failed_callbacks;
 
+    // Whether fused location updates are wanted, i.e. start_location was
+    // called and stop_location wasn't since, so that the connection
+    // callback knows whether to request them
+    // Guarded by the LocationService instance
+    private boolean fused_requested;
+
+    // Connection state and latency of the Google API client, cf.
+    // getGoogleApiStatus. connect_started_ms is the elapsed realtime of the
+    // pending (re)connect, 0 if there is none.
+    // Guarded by the LocationService instance
+    private long connect_started_ms;
+    private int connects;
+    private int connect_failures;
+    private int connect_suspensions;
+    private int last_failure_code;
+    private long last_connect_ms = -1;
+    private long max_connect_ms;
+    private long total_connect_ms;
+
     // Used to transform lat/long to addresses or vice-versa
     // Requires Google Play Service
     private Geocoder geocoder;
+    // Results of the geocoder per grid cell, cf. setGeocoderCache
+    private final LocationGeocoderCache geocoder_cache =
+            new LocationGeocoderCache();
 
     // Location JSON object for each provider
-    private JSONObject location_gps_json;
-    private JSONObject location_network_json;
-    private JSONObject location_fused_json;
+    private volatile JSONObject location_gps_json;
+    private volatile JSONObject location_network_json;
+    private volatile JSONObject location_fused_json;
+
+    // Recent locations of each provider, cf. getLocationsSince
+    private final LocationHistory gps_history =
+            new LocationHistory(HISTORY_CAPACITY);
+    private final LocationHistory network_history =
+            new LocationHistory(HISTORY_CAPACITY);
+    private final LocationHistory fused_history =
+            new LocationHistory(HISTORY_CAPACITY);
+
+    // Number of locations received so far, increased after the location's
+    // JSON object is set (cf. getLocationIfNewer). Only written by the
+    // thread that receives locations, i.e. the location thread, or the
+    // sensor thread while replaying.
+    private volatile long location_version;
+
+    // While a trace is replayed (cf. SensorService.startReplay) locations
+    // only come from the replay, the location providers are not used
+    private volatile boolean replaying;
 
 
     /* See Initialization on Demand Holder pattern */
@@ -103,37 +173,85 @@ public class LocationService implements android.location.LocationListener,
 
 
     /*
-     * Initializes Android location manager, Google Play Service objects and
-     * a Geocoder
+     * Starts the location thread and initializes Android location manager,
+     * Google Play Service objects and a Geocoder
      *
      */
-    public void init(Context context) {
+    public synchronized void init(Context context) {
         Log.d(TAG, "Entering init");
         cached_context = context;
         Log.d(TAG, "Requesting android location system service");
         location_manager = (LocationManager)cached_context.getSystemService(
                 cached_context.LOCATION_SERVICE);
 
-        // Set Google Play Service QoS parameters to "real-time"
+        if (location_thread == null) {
+            Log.d(TAG, "Starting location thread");
+            location_thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            location_thread.start();
+            location_looper = location_thread.getLooper();
+        }
+
         Log.d(TAG, "Requesting google location system service");
-        google_location_request = new LocationRequest();
-        google_location_request.setPriority(
-                LocationRequest.PRIORITY_HIGH_ACCURACY);
-        google_location_request.setInterval(5);
+        google_location_request = build_request(DEFAULT_INTERVAL_MS,
+                DEFAULT_FASTEST_INTERVAL_MS, DEFAULT_PRIORITY,
+                DEFAULT_MIN_DISPLACEMENT_M);
 
         geocoder = new Geocoder(cached_context, Locale.getDefault());
     }
 
 
     /*
-     * Registers location update listeners for GPS and network provider and 
+     * Starts location updates with the default request, cf. below
+     */
+    public void start_location() {
+        start_location(DEFAULT_INTERVAL_MS, DEFAULT_FASTEST_INTERVAL_MS,
+                DEFAULT_PRIORITY, DEFAULT_MIN_DISPLACEMENT_M);
+    }
+
+
+    /*
+     * Registers location update listeners for GPS and network provider and
      * connects to Google API client, upon connection it will also register
      * a location update listener
      *
+     * Which Android providers are used depends on the priority, GPS only
+     * for PRIORITY_HIGH_ACCURACY, the network provider for all but
+     * PRIORITY_NO_POWER, which only receives locations that other apps
+     * asked for (LocationManager.PASSIVE_PROVIDER).
+     *
+     * If location updates are running already, they are re-registered
+     * with the new request, i.e. the last caller's request applies.
+     *
+     * @params  long - Interval in milliseconds at which locations are
+     *                 wanted, providers may deliver them less often
+     * @params  long - Fastest interval in milliseconds at which the fused
+     *                 provider delivers locations, e.g. those requested by
+     *                 other apps
+     * @params  int - Priority, one of the LocationRequest.PRIORITY_*
+     *                constants
+     * @params  float - Minimum distance in meters between locations
+     *
+     * @throws  IllegalArgumentException if the request is invalid
+     *
      */
-    public void start_location() {
+    public synchronized void start_location(long interval_ms,
+            long fastest_interval_ms, int priority, float min_displacement_m) {
         Log.d(TAG, "Entering start_location");
 
+        LocationRequest request = build_request(interval_ms,
+                fastest_interval_ms, priority, min_displacement_m);
+        google_location_request = request;
+
+        if (replaying) {
+            Log.d(TAG, "Replaying, not starting location providers");
+            return;
+        }
+
+        // Removes the listener from all providers, so that providers the
+        // new priority doesn't ask for stop
+        location_manager.removeUpdates(this);
+
         // There is no use in listening for PASSIVE_PROVIDER if one of the
         // other two is registered
         // It only retrieves values if any other app is listening to a gps or
@@ -141,132 +259,291 @@ public class LocationService implements android.location.LocationListener,
         // If they can we can too, furthermore we need the same permissions
         // for passive as for gps and network.
         // Current Sensibility API returns values from all three providers
-        Log.d(TAG, "Requesting GPS location updates");
-        try {
-            location_manager.requestLocationUpdates(
-                    LocationManager.GPS_PROVIDER, 0, 0,
-                    this, Looper.getMainLooper());
-        } catch (SecurityException e)
-        {
-            // We are lacking the ACCESS_COARSE_LOCATION or
-            // ACCESS_FINE_LOCATION permission
+        if (priority == LocationRequest.PRIORITY_HIGH_ACCURACY) {
+            Log.d(TAG, "Requesting GPS location updates");
+            request_updates(LocationManager.GPS_PROVIDER, interval_ms,
+                    min_displacement_m);
+        }
+        if (priority == LocationRequest.PRIORITY_NO_POWER) {
+            Log.d(TAG, "Requesting PASSIVE location updates");
+            request_updates(LocationManager.PASSIVE_PROVIDER, interval_ms,
+                    min_displacement_m);
+        } else {
+            Log.d(TAG, "Requesting NETWORK location updates");
+            request_updates(LocationManager.NETWORK_PROVIDER, interval_ms,
+                    min_displacement_m);
+        }
+
+        // The client requests the fused updates once it is connected
+        fused_requested = true;
+        connect_google_api();
+    }
+
+
+    /*
+     * Internal helper that requests fused location updates if the Google
+     * API client is connected, or else connects it, unless it is connecting
+     * already, building the client on the first call
+     *
+     * Connecting is asynchronous, the connection callback requests the
+     * updates (cf. on_google_api_connected).
+     *
+     * Must be called holding the LocationService monitor
+     *
+     */
+    private void connect_google_api() {
+        if (google_api_client == null) {
+            // Store a copy of this to use in
+            // inner classes ConnectionCallbacks, OnConnectionFailedListener
+            final LocationService _this = this;
+
+            Log.d(TAG, "Defining Google API Client Callback");
+            google_api_connection_callbacks = new ConnectionCallbacks() {
+                @Override
+                public void onConnected(@Nullable Bundle bundle) {
+                    _this.on_google_api_connected();
+                }
+                @Override
+                public void onConnectionSuspended(int cause) {
+                    _this.on_google_api_suspended(cause);
+                }
+            };
+            google_api_connection_failed_callbacks =
+                    new OnConnectionFailedListener() {
+                @Override
+                public void onConnectionFailed(@NonNull
+                        ConnectionResult connectionResult) {
+                    _this.on_google_api_failed(connectionResult);
+                }
+            };
+
+            // Create Google Play Service API client using its builder and
+            // pass it the above created connection/failure listener
+            google_api_client = new GoogleApiClient.Builder(cached_context)
+                    .addConnectionCallbacks(google_api_connection_callbacks)
+                    .addOnConnectionFailedListener(
+                            google_api_connection_failed_callbacks)
+                    .addApi(LocationServices.API)
+                    .build();
         }
 
-        Log.d(TAG, "Requesting NETWORK location updates");
+        if (google_api_client.isConnected()) {
+            request_fused_updates();
+        } else if (!google_api_client.isConnecting()) {
+            Log.d(TAG, "Connecting to Google API Client");
+            connect_started_ms = SystemClock.elapsedRealtime();
+            google_api_client.connect();
+        }
+    }
+
+
+    /*
+     * Internal helper that registers the fused location update listener,
+     * or updates its request if it is registered already
+     *
+     * Must be called holding the LocationService monitor, with the Google
+     * API client connected
+     *
+     */
+    private void request_fused_updates() {
         try {
-            location_manager.requestLocationUpdates(
-                    LocationManager.NETWORK_PROVIDER, 0, 0,
-                    this, Looper.getMainLooper());
+            LocationServices.FusedLocationApi.requestLocationUpdates(
+                    google_api_client, google_location_request, this,
+                    location_looper);
         } catch (SecurityException e) {
             // We are lacking the ACCESS_COARSE_LOCATION or
             // ACCESS_FINE_LOCATION permission
         }
+    }
 
-        // Store a copy of this to use in
-        // inner classes ConnectionCallbacks, OnConnectionFailedListener
-        final LocationService _this = this;
-
-        // Initialize here and pass to google_api_client builder later
-        Log.d(TAG, "Defining Google API Client Callback");
-        google_api_connection_callbacks = new ConnectionCallbacks() {
-            @Override
-            public void onConnected(@Nullable Bundle bundle) {
-                Log.d(TAG, "Called Google API Client onConnected");
-
-                try {
-                    LocationServices.FusedLocationApi
-                            .requestLocationUpdates(_this.google_api_client,
-                                    _this.google_location_request, _this,
-                                    Looper.getMainLooper());
-
-                    // Once connected we can unregister the connection listener
-                    // and connection failed listener
-                    _this.google_api_client.unregisterConnectionCallbacks(this);
-
-                    // Only gets here after call to google_api_client.connect()
-                    // which happens after google_api_connection_failed_callbacks
-                    // is initialized but the compiler doesn't know this and
-                    // wants us to check
-                    if (_this.google_api_connection_failed_callbacks != null) {
-                        _this.google_api_client.unregisterConnectionFailedListener(
-                                google_api_connection_failed_callbacks);
-                    }
-                } catch (SecurityException e) {
-                    // We are lacking the ACCESS_COARSE_LOCATION or
-                    // ACCESS_FINE_LOCATION permission
-                }
-            }
-            @Override
-            public void onConnectionSuspended(int i) {
-            }
-        };
-
-        // Initialize here and pass to google_api_client builder later
-        Log.d(TAG, "Initializing Google API Client Callback");
-        google_api_connection_failed_callbacks = new OnConnectionFailedListener() {
-            @Override
-            public void onConnectionFailed(@NonNull
-                                           ConnectionResult connectionResult) {
-
-                // XXX: This happens asynchronously, so we won't be able
-                // to tell the user but s/he will figure out sooner or later
-                // when s/he wants to use the Google API
-                Log.d(TAG, String.format("Google API Client connection failed with code: %d. " +
-                        "Check com.google.android.gms.common.ConnectionResult constants",
-                        connectionResult.getErrorCode()));
-
-                // Once failed we can unregister the connection listener
-                // and connection failed listener
-                _this.google_api_client.unregisterConnectionCallbacks(
-                        google_api_connection_callbacks);
-                _this.google_api_client.unregisterConnectionFailedListener(this);
+
+    /*
+     * Called on the main thread once the Google API client is connected,
+     * also after it reconnected on its own after a suspension
+     */
+    private synchronized void on_google_api_connected() {
+        Log.d(TAG, "Called Google API Client onConnected");
+
+        if (connect_started_ms > 0) {
+            last_connect_ms = SystemClock.elapsedRealtime() -
+                    connect_started_ms;
+            max_connect_ms = Math.max(max_connect_ms, last_connect_ms);
+            total_connect_ms += last_connect_ms;
+            connect_started_ms = 0;
+        }
+        connects++;
+
+        if (fused_requested && !replaying) {
+            request_fused_updates();
+        }
+    }
+
+
+    /*
+     * Called on the main thread if the connection to Google Play Services
+     * is lost, the client reconnects on its own (cf. on_google_api_connected)
+     */
+    private synchronized void on_google_api_suspended(int cause) {
+        Log.d(TAG, String.format(
+                "Google API Client connection suspended, cause: %d", cause));
+
+        connect_suspensions++;
+        connect_started_ms = SystemClock.elapsedRealtime();
+    }
+
+
+    /*
+     * Called on the main thread if the Google API client could not connect,
+     * the next start_location tries again
+     */
+    private synchronized void on_google_api_failed(ConnectionResult result) {
+        // XXX: This happens asynchronously, so we won't be able
+        // to tell the user but s/he will figure out sooner or later
+        // when s/he wants to use the Google API (cf. getGoogleApiStatus)
+        Log.d(TAG, String.format("Google API Client connection failed with code: %d. " +
+                "Check com.google.android.gms.common.ConnectionResult constants",
+                result.getErrorCode()));
+
+        connect_failures++;
+        last_failure_code = result.getErrorCode();
+        connect_started_ms = 0;
+    }
+
+
+    /*
+     * Returns the state of the Google API client and how long it took to
+     * connect
+     *
+     * @return  String serialized JSON Object, with the connect times in
+     *          milliseconds, -1 if it never connected
+     * e.g.:
+     * {
+     *   'state':'connected',
+     *   'fused_requested':true,
+     *   'connects':2,
+     *   'failures':0,
+     *   'suspensions':1,
+     *   'last_failure_code':0,
+     *   'last_connect_ms':412,
+     *   'max_connect_ms':980,
+     *   'mean_connect_ms':696
+     * }
+     *
+     */
+    public synchronized String getGoogleApiStatus() throws JSONException {
+        Log.d(TAG, "Entering getGoogleApiStatus");
+
+        String state = "disconnected";
+        if (google_api_client != null) {
+            if (google_api_client.isConnected()) {
+                state = "connected";
+            } else if (google_api_client.isConnecting()) {
+                state = "connecting";
             }
-        };
-
-        // Create Google Play Service API client using its builder and pass
-        // it the above created connection/failure listener ...
-        Log.d(TAG, "Connecting to Google API Client ");
-        google_api_client = new GoogleApiClient.Builder(cached_context)
-                .addConnectionCallbacks(google_api_connection_callbacks)
-                .addOnConnectionFailedListener(google_api_connection_failed_callbacks)
-                .addApi(LocationServices.API)
-                .build();
-
-        // ... and finally try connect to the API
-        google_api_client.connect();
+        }
+
+        JSONObject status_json = new JSONObject();
+        status_json.put("state", state);
+        status_json.put("fused_requested", fused_requested);
+        status_json.put("connects", connects);
+        status_json.put("failures", connect_failures);
+        status_json.put("suspensions", connect_suspensions);
+        status_json.put("last_failure_code", last_failure_code);
+        status_json.put("last_connect_ms", last_connect_ms);
+        status_json.put("max_connect_ms", connects > 0 ? max_connect_ms : -1);
+        status_json.put("mean_connect_ms",
+                connects > 0 ? total_connect_ms / connects : -1);
+        return status_json.toString();
     }
 
 
     /*
      * Unregisters Android location update listeners
      * Unregisters Google Play Service location update listeners
-     * Disconnects from Google Play Service
+     *
+     * Doesn't wait for anything: The Google API client stays connected, or
+     * keeps connecting, for the next start_location and for
+     * getLastKnownLocation and getGeoLocation. A client that is still
+     * connecting won't request updates once connected.
      *
      */
-    public void stop_location() {
+    public synchronized void stop_location() {
         Log.d(TAG, "Entering stop_location");
 
         location_manager.removeUpdates(this);
+        fused_requested = false;
 
-        // Make sure we don't access a null object later on
-        if (google_api_client == null) {
-            return;
+        if (google_api_client != null && google_api_client.isConnected()) {
+            // If listener is not registered this has no effects
+            LocationServices.FusedLocationApi.removeLocationUpdates(
+                    google_api_client, this);
         }
+    }
 
-        // If in the process of connecting wait with disconnect until
-        // being connected
-        if (google_api_client.isConnecting()) {
-            google_api_client.blockingConnect();
-            google_api_client.disconnect();
+
+    /*
+     * Internal helper that builds a Google Play Services location request,
+     * cf. start_location for the parameters
+     */
+    private static LocationRequest build_request(long interval_ms,
+            long fastest_interval_ms, int priority, float min_displacement_m) {
+        if (interval_ms < 0 || fastest_interval_ms < 0 ||
+                min_displacement_m < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid location request: interval %d ms, fastest interval %d ms, min displacement %f m.",
+                    interval_ms, fastest_interval_ms, min_displacement_m));
+        }
+        switch (priority) {
+            case LocationRequest.PRIORITY_HIGH_ACCURACY:
+            case LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY:
+            case LocationRequest.PRIORITY_LOW_POWER:
+            case LocationRequest.PRIORITY_NO_POWER:
+                break;
+            default:
+                throw new IllegalArgumentException(String.format(
+                        "Invalid location priority %d.", priority));
         }
 
-        // Disconnect from Google Api Only if we are connected
-        if (google_api_client.isConnected()) {
-            // If listener is not registered this has no effects
-            LocationServices.FusedLocationApi.removeLocationUpdates(
-                    google_api_client, this);
-            google_api_client.disconnect();
+        LocationRequest request = new LocationRequest();
+        request.setPriority(priority);
+        request.setInterval(interval_ms);
+        request.setFastestInterval(fastest_interval_ms);
+        request.setSmallestDisplacement(min_displacement_m);
+        return request;
+    }
+
+
+    /*
+     * Internal helper that registers the location update listener for an
+     * Android location provider on the location thread
+     */
+    private void request_updates(String provider, long interval_ms,
+            float min_displacement_m) {
+        try {
+            location_manager.requestLocationUpdates(provider, interval_ms,
+                    min_displacement_m, this, location_looper);
+        } catch (SecurityException e) {
+            // We are lacking the ACCESS_COARSE_LOCATION or
+            // ACCESS_FINE_LOCATION permission
+        }
+    }
+
+
+    /*
+     * Switches between locations from the location providers and from a
+     * replay (cf. SensorService.startReplay)
+     *
+     * Starting a replay stops the location providers, they are not
+     * restarted when it ends, call start_location to do so.
+     *
+     */
+    void setReplaying(boolean replaying) {
+        Log.d(TAG, "Entering setReplaying");
+
+        if (replaying && location_manager != null) {
+            stop_location();
         }
+        this.replaying = replaying;
     }
 
 
@@ -337,6 +614,88 @@ public class LocationService implements android.location.LocationListener,
     }
 
 
+    /*
+     * Returns the locations like getLocation, but only if a location was
+     * received since the caller's last call, i.e. if the version, the number
+     * of locations received so far, is greater than the passed one
+     *
+     * @param   long - Version of the locations the caller has, 0 if none
+     *
+     * @return  String SensorService.UNCHANGED if there is no new location,
+     *          or serialized JSON array of the version and the locations,
+     *          e.g.: [12, {'gps': {...}, 'fused': {...}}]
+     *
+     */
+    public String getLocationIfNewer(long last_version) throws JSONException {
+        // Read the version first, cf. SensorService.getSensorValuesIfNewer
+        long version = location_version;
+        if (version <= last_version) {
+            return SensorService.UNCHANGED;
+        }
+        String locations = getLocation();
+        if (locations == null) {
+            return SensorService.UNCHANGED;
+        }
+        return "[" + version + "," + locations + "]";
+    }
+
+
+    /*
+     * Returns the locations each provider delivered since a given time,
+     * oldest first per provider, so that callers that poll less often
+     * than the providers deliver don't miss any
+     *
+     * Each provider keeps its last HISTORY_CAPACITY locations, as compact
+     * arrays of the attributes getLocation returns, without extras. To
+     * continue where the last call left off pass the greatest time
+     * received it returned.
+     *
+     * @param   long - Only return locations received after this time (ms)
+     * @param   int - Max number of locations per provider
+     *
+     * @return  String serialized JSON Object or null if there are no such
+     *          locations
+     * e.g.:
+     * {
+     * 'gps':[
+     *   [<time received ms>, <time_sample ms>, <latitude>, <longitude>,
+     *    <accuracy>, <speed>, <bearing>, <altitude>], ...
+     * ],
+     * 'network':[...],
+     * 'fused':[...]
+     * }
+     *
+     */
+    public String getLocationsSince(long since_ms, int max) {
+        Log.d(TAG, "Entering getLocationsSince");
+
+        String gps = gps_history.getLocationsSince(since_ms, max);
+        String network = network_history.getLocationsSince(since_ms, max);
+        String fused = fused_history.getLocationsSince(since_ms, max);
+
+        StringBuilder sb = new StringBuilder("{");
+        append_locations(sb, "gps", gps);
+        append_locations(sb, "network", network);
+        append_locations(sb, "fused", fused);
+        if (sb.length() == 1) {
+            return null;
+        }
+        return sb.append('}').toString();
+    }
+
+
+    private static void append_locations(StringBuilder sb, String provider,
+            String locations) {
+        if (locations == null) {
+            return;
+        }
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        sb.append('"').append(provider).append("\":").append(locations);
+    }
+
+
    /*
     * Returns last location update received by the device (e.g. by another app)
     * foreach available provider: fused, network and gps
@@ -390,6 +749,10 @@ public class LocationService implements android.location.LocationListener,
      * requires an internet connection and a connection to Google
      * Play Service API
      *
+     * Results are cached per grid cell of about 100 m and max results
+     * (cf. setGeocoderCache), so that nearby locations are only looked up
+     * once, and looking them up again needs no connection.
+     *
      * @param   Latitude (double)
      * @param   Longitude (double)
      * @param   Max results (int)
@@ -432,6 +795,13 @@ public class LocationService implements android.location.LocationListener,
             GooglePlayServicesNotAvailableException {
         Log.d(TAG, "Entering getGeoLocation");
 
+        String key = LocationGeocoderCache.getKey(latitude, longitude,
+                max_results);
+        String cached = geocoder_cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
         List<Address> addresses = null;
         if ((google_api_client != null) && google_api_client.isConnected() &&
                 Geocoder.isPresent()) {
@@ -471,12 +841,64 @@ public class LocationService implements android.location.LocationListener,
                 }
                 addresses_json.put(address_json);
             }
-            return addresses_json.toString();
+            String result = addresses_json.toString();
+            geocoder_cache.put(key, result);
+            return result;
         }
        return null;
     }
 
 
+    /*
+     * Configures the cache of getGeoLocation
+     *
+     * The cache keeps at most `max_entries` results, evicting the least
+     * recently used, each for at most `ttl_ms`. A persistent cache is
+     * stored in the app's files directory, shared by all interpreter
+     * processes and kept across restarts. By default the cache keeps
+     * LocationGeocoderCache.DEFAULT_MAX_ENTRIES results for a day, in
+     * memory.
+     *
+     * @param   int - Max number of cached results, 0 disables the cache
+     * @param   long - Time to live of a result in milliseconds
+     * @param   boolean - Whether to persist the cache
+     *
+     * @throws  IllegalArgumentException if max entries or time to live are
+     *          invalid
+     *
+     */
+    public void setGeocoderCache(int max_entries, long ttl_ms,
+            boolean persistent) {
+        Log.d(TAG, "Entering setGeocoderCache");
+
+        if (max_entries < 0 || ttl_ms <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid geocoder cache: %d entries, time to live %d ms.",
+                    max_entries, ttl_ms));
+        }
+        File file = persistent ? new File(cached_context.getFilesDir(),
+                LocationGeocoderCache.CACHE_FILE) : null;
+        geocoder_cache.configure(max_entries, ttl_ms, file);
+    }
+
+
+    /*
+     * Returns the counters and configuration of the getGeoLocation cache
+     *
+     * @return  String serialized JSON Object
+     * e.g.:
+     * {'entries': 12, 'max_entries': 256, 'ttl_ms': 86400000,
+     *  'persistent': true, 'hits': 340, 'misses': 12, 'evictions': 0,
+     *  'expirations': 1}
+     *
+     */
+    public String getGeocoderCacheStats() throws JSONException {
+        Log.d(TAG, "Entering getGeocoderCacheStats");
+
+        return geocoder_cache.toJSON().toString();
+    }
+
+
     /*
      * Internal helper function that takes a location object of any provider,
      * extracts its attributes and creates a JSONObject.
@@ -531,6 +953,7 @@ public class LocationService implements android.location.LocationListener,
     /*
      * Callback that receives gps, network and fused locations
      * Stores location object the according provider's class members
+     * and appends it to the provider's history
      *
      * CAUTION:
      * This method implements `onLocationChanged` of two different
@@ -551,6 +974,7 @@ public class LocationService implements android.location.LocationListener,
     public void onLocationChanged(Location location) {
         Log.d(TAG, "Entering onLocationChanged");
 
+        long received_ms = System.currentTimeMillis();
         JSONObject location_json = null;
 
         // We catch the exception here because the callback is asynchronous
@@ -563,17 +987,22 @@ public class LocationService implements android.location.LocationListener,
 
         if (location.getProvider().equals(LocationManager.GPS_PROVIDER)) {
             location_gps_json = location_json;
+            gps_history.write(received_ms, location);
         } else if (location.getProvider().equals(
                 LocationManager.NETWORK_PROVIDER)) {
             location_network_json = location_json;
+            network_history.write(received_ms, location);
         } else if (location.getProvider().equals("fused")) {
             location_fused_json = location_json;
+            fused_history.write(received_ms, location);
         } else {
             // WHAT THE terrible failure?!!
             Log.d(TAG, String.format(
                     "Received location from unknown Provider: %s",
                     location.getProvider()));
+            return;
         }
+        location_version++;
     }
 
     /*
@@ -0,0 +1,297 @@
+package com.snakei;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Incrementally computes count, mean, min, max, variance and RMS of one
+ * value of a sensor (or the magnitude of its first three values) over
+ * tumbling or sliding time windows
+ *
+ * Windows are `window_ms` long and start every `slide_ms`, i.e. tumbling
+ * windows if both are equal, sliding windows if the slide is shorter.
+ * Time is split into panes of `slide_ms`, each pane accumulates count,
+ * sum, sum of squares, min and max of its samples. A window is made of the
+ * last window_ms / slide_ms panes and is finished when the first sample
+ * of the next pane arrives. Hence each sample costs O(1) and finishing a
+ * window costs O(window_ms / slide_ms), and no memory is allocated after
+ * construction.
+ *
+ * Windows are aligned to multiples of slide_ms on the sensor event
+ * timestamp clock (elapsed realtime), and reported with start and end
+ * timestamps in nanoseconds. Windows without samples are not reported.
+ * Samples older than the pane being filled are dropped.
+ *
+ * Finished windows are kept in a ring buffer of RESULT_CAPACITY windows,
+ * which has one writer (the thread that receives sensor events) and any
+ * number of concurrent readers, cf. SensorRingBuffer.
+ *
+ */
+class SensorAggregator implements SensorStage {
+
+    // Channel that aggregates the magnitude of the first three values,
+    // e.g. the acceleration regardless of the device's orientation
+    static final int MAGNITUDE = -1;
+
+    static final int RESULT_CAPACITY = 64;
+
+    // Upper bound for window_ms / slide_ms, i.e. the number of panes
+    static final int MAX_PANES = 3600;
+
+    final int id;
+    final int window_ms;
+    final int slide_ms;
+    final int channel;
+
+    private final long pane_ns;
+    private final int panes;
+
+    // Accumulators of the last `panes` panes, indexed by pane % panes
+    private final long[] pane_count;
+    private final double[] pane_sum;
+    private final double[] pane_sum_sq;
+    private final double[] pane_min;
+    private final double[] pane_max;
+
+    // Index (timestamp / pane_ns) of the pane that is being filled
+    private long current_pane = Long.MIN_VALUE;
+
+    private final long[] result_start;
+    private final long[] result_count;
+    private final double[] result_mean;
+    private final double[] result_min;
+    private final double[] result_max;
+    private final double[] result_variance;
+    private final double[] result_rms;
+
+    // Number of windows ever finished, written by the writer thread only
+    private volatile long results;
+
+
+    /*
+     * @throws  IllegalArgumentException if the window is not a positive
+     *          multiple of the slide or has too many panes
+     */
+    SensorAggregator(int id, int window_ms, int slide_ms, int channel) {
+        if (slide_ms <= 0 || window_ms <= 0 || window_ms % slide_ms != 0) {
+            throw new IllegalArgumentException(
+                    "Window must be a positive multiple of the slide.");
+        }
+        if (window_ms / slide_ms > MAX_PANES) {
+            throw new IllegalArgumentException(String.format(
+                    "Window must not be longer than %d slides.", MAX_PANES));
+        }
+        if (channel < MAGNITUDE) {
+            throw new IllegalArgumentException(
+                    "Channel must be a value index or MAGNITUDE.");
+        }
+
+        this.id = id;
+        this.window_ms = window_ms;
+        this.slide_ms = slide_ms;
+        this.channel = channel;
+        this.pane_ns = slide_ms * 1000000L;
+        this.panes = window_ms / slide_ms;
+
+        pane_count = new long[panes];
+        pane_sum = new double[panes];
+        pane_sum_sq = new double[panes];
+        pane_min = new double[panes];
+        pane_max = new double[panes];
+        for (int i = 0; i < panes; i++) {
+            reset_pane(i);
+        }
+
+        result_start = new long[RESULT_CAPACITY];
+        result_count = new long[RESULT_CAPACITY];
+        result_mean = new double[RESULT_CAPACITY];
+        result_min = new double[RESULT_CAPACITY];
+        result_max = new double[RESULT_CAPACITY];
+        result_variance = new double[RESULT_CAPACITY];
+        result_rms = new double[RESULT_CAPACITY];
+    }
+
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+
+    /*
+     * Returns the value of a sample that a channel refers to, i.e. the value
+     * at the channel index or, for MAGNITUDE, the magnitude of the first
+     * three values
+     *
+     * Returns NaN if the sample has no such value
+     *
+     */
+    static double getChannelValue(int channel, float[] values, int count) {
+        if (channel == MAGNITUDE) {
+            double sum_sq = 0;
+            for (int i = 0; i < Math.min(count, 3); i++) {
+                sum_sq += values[i] * values[i];
+            }
+            return Math.sqrt(sum_sq);
+        } else if (channel >= 0 && channel < count) {
+            return values[channel];
+        }
+        return Double.NaN;
+    }
+
+
+    /*
+     * Adds a sample, finishing the windows that end before its pane
+     *
+     * MUST ONLY be called from the single writer thread,
+     * does not allocate memory
+     *
+     */
+    @Override
+    public void add(long timestamp, float[] values, int count) {
+        double x = getChannelValue(channel, values, count);
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return;
+        }
+
+        long pane = timestamp / pane_ns;
+        if (pane != current_pane) {
+            if (current_pane != Long.MIN_VALUE && pane < current_pane) {
+                return;
+            }
+            advance(pane);
+        }
+
+        int p = (int) (pane % panes);
+        pane_count[p]++;
+        pane_sum[p] += x;
+        pane_sum_sq[p] += x * x;
+        if (x < pane_min[p]) {
+            pane_min[p] = x;
+        }
+        if (x > pane_max[p]) {
+            pane_max[p] = x;
+        }
+    }
+
+
+    /*
+     * Internal helper that finishes the window ending with each pane from
+     * the current one up to the passed one (exclusive) and resets the panes
+     * that get reused
+     *
+     * After `panes` empty panes all windows are empty, so at most `panes`
+     * panes are processed, no matter how long the sensor was quiet.
+     *
+     */
+    private void advance(long pane) {
+        if (current_pane != Long.MIN_VALUE) {
+            long steps = Math.min(pane - current_pane, panes);
+            for (long i = 0; i < steps; i++) {
+                long closed = current_pane + i;
+                finish_window(closed);
+                reset_pane((int) ((closed + 1) % panes));
+            }
+        }
+        current_pane = pane;
+    }
+
+
+    private void reset_pane(int p) {
+        pane_count[p] = 0;
+        pane_sum[p] = 0;
+        pane_sum_sq[p] = 0;
+        pane_min[p] = Double.POSITIVE_INFINITY;
+        pane_max[p] = Double.NEGATIVE_INFINITY;
+    }
+
+
+    /*
+     * Internal helper that combines the panes of the window ending with the
+     * passed pane and publishes the result, if the window has samples
+     */
+    private void finish_window(long last_pane) {
+        long n = 0;
+        double sum = 0;
+        double sum_sq = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < panes; p++) {
+            n += pane_count[p];
+            sum += pane_sum[p];
+            sum_sq += pane_sum_sq[p];
+            min = Math.min(min, pane_min[p]);
+            max = Math.max(max, pane_max[p]);
+        }
+        if (n == 0) {
+            return;
+        }
+
+        long r = results;
+        int slot = (int) (r % RESULT_CAPACITY);
+        double mean = sum / n;
+        result_start[slot] = (last_pane - panes + 1) * pane_ns;
+        result_count[slot] = n;
+        result_mean[slot] = mean;
+        result_min[slot] = min;
+        result_max[slot] = max;
+        // Population variance, rounding may make it slightly negative
+        result_variance[slot] = Math.max(0, sum_sq / n - mean * mean);
+        result_rms[slot] = Math.sqrt(sum_sq / n);
+
+        // Volatile write publishes above stores to the readers
+        results = r + 1;
+    }
+
+
+    /*
+     * Serializes the finished windows that end after `since_nanos`, oldest
+     * first, as JSON objects and appends them to the passed JSON array, i.e.:
+     * [{'id': 1, 'start': <ns>, 'end': <ns>, 'count': 200, 'mean': 9.81,
+     *   'min': 9.7, 'max': 9.9, 'variance': 0.002, 'rms': 9.81}, ...]
+     *
+     */
+    @Override
+    public void appendResults(JSONArray windows_json, long since_nanos)
+            throws JSONException {
+        long r = results;
+        long first = Math.max(0, r - RESULT_CAPACITY + 1);
+        int n = (int) (r - first);
+        long window_ns = window_ms * 1000000L;
+
+        // Copy out first, then check whether the writer lapped us
+        long[] copy_start = new long[n];
+        long[] copy_count = new long[n];
+        double[][] copy_stats = new double[n][5];
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((first + i) % RESULT_CAPACITY);
+            copy_start[i] = result_start[slot];
+            copy_count[i] = result_count[slot];
+            copy_stats[i][0] = result_mean[slot];
+            copy_stats[i][1] = result_min[slot];
+            copy_stats[i][2] = result_max[slot];
+            copy_stats[i][3] = result_variance[slot];
+            copy_stats[i][4] = result_rms[slot];
+        }
+        long valid_from = results - RESULT_CAPACITY + 1;
+
+        for (int i = 0; i < n; i++) {
+            if (first + i < valid_from ||
+                    copy_start[i] + window_ns <= since_nanos) {
+                continue;
+            }
+            JSONObject window_json = new JSONObject();
+            window_json.put("id", id);
+            window_json.put("start", copy_start[i]);
+            window_json.put("end", copy_start[i] + window_ns);
+            window_json.put("count", copy_count[i]);
+            window_json.put("mean", copy_stats[i][0]);
+            window_json.put("min", copy_stats[i][1]);
+            window_json.put("max", copy_stats[i][2]);
+            window_json.put("variance", copy_stats[i][3]);
+            window_json.put("rms", copy_stats[i][4]);
+            windows_json.put(window_json);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.snakei;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Implements an Android Service that runs in its own process and owns the
+ * device's sensors on behalf of all Python interpreter processes
+ *
+ * Without the broker each interpreter process registers its own sensor
+ * listeners and keeps its own copy of the samples. With the broker only
+ * this process registers listeners. It publishes all samples to a memory
+ * mapped file (cf. SensorSharedMemory.java), which the SensorService of
+ * every other process reads from without IPC.
+ *
+ * The SensorService of the other processes starts this Service on init.
+ * Until it is up, or if it dies, they fall back to local listeners.
+ *
+ */
+public class SensorBrokerService extends Service {
+    static final String TAG = "SensorBrokerService";
+
+    @Override
+    public void onCreate() {
+        Log.d(TAG, "Entering onCreate");
+        super.onCreate();
+
+        try {
+            SensorService.getInstance().initBroker(getApplicationContext());
+        } catch (IOException e) {
+            Log.d(TAG, "Could not create sensor shared memory: " + e.toString());
+            stopSelf();
+        }
+    }
+
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Stay around, readers start us again if we get killed anyway
+        return START_STICKY;
+    }
+
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        // Don't provide means to bind this service
+        return null;
+    }
+}
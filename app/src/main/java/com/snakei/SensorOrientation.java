@@ -0,0 +1,377 @@
+package com.snakei;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.util.SparseArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fuses the samples of the device's motion sensors into the device's
+ * orientation as they arrive, one fused sample per source sample, i.e.
+ *
+ *   [azimuth, pitch, roll, w, x, y, z]
+ *
+ * with the angles in radians as returned by SensorManager.getOrientation
+ * and (w, x, y, z) the unit quaternion of the rotation from the device to
+ * the world coordinate system, as returned by
+ * SensorManager.getQuaternionFromVector.
+ *
+ * Fused samples are published to a virtual sensor slot of type
+ * TYPE_FUSED_ORIENTATION (cf. SensorService.startOrientation), so that
+ * callers read the orientation like any other sensor, with one call,
+ * instead of reading several sensors and fusing them in Python.
+ *
+ * Sources, in order of preference (cf. getSourceTypes):
+ *   - The rotation vector, which the device fuses already, is converted
+ *     sample by sample
+ *   - The gyroscope is integrated sample by sample, and pulled towards the
+ *     attitude of accelerometer and magnetometer (getRotationMatrix) by a
+ *     complementary filter, i.e. the gyroscope gives the fast changes and
+ *     the accelerometer and magnetometer correct the gyroscope's drift
+ *   - The accelerometer and magnetometer alone, low-pass filtered
+ *
+ * Each source sensor feeds the engine through its own stage (cf. Input
+ * below). All methods except the constructor MUST ONLY be called from the
+ * sensor thread, so that the engine has a single writer and needs no locks.
+ *
+ */
+final class SensorOrientation {
+
+    // Negative, so that it can't collide with Android or vendor sensor types
+    static final int TYPE_FUSED_ORIENTATION = -100;
+
+    // Number of values of a fused sample
+    static final int WIDTH = 7;
+
+    // Weight of the integrated gyroscope against the attitude of
+    // accelerometer and magnetometer, per accelerometer or magnetometer
+    // sample
+    static final float GYRO_WEIGHT = 0.98f;
+
+    // Weight of the previous value in the low-pass filter of accelerometer
+    // and magnetometer, if there is no gyroscope
+    static final float LOW_PASS_WEIGHT = 0.8f;
+
+    // Gyroscope samples further apart than this are not integrated, e.g.
+    // after the sensor was stopped for a while
+    static final long MAX_GYRO_INTERVAL_NS = 1000000000L;
+
+    final SensorSlot output;
+    final Input[] inputs;
+
+    private final boolean has_gyroscope;
+
+    // Current attitude, as unit quaternion (w, x, y, z)
+    private final float[] attitude = new float[4];
+    private boolean has_attitude;
+
+    // Attitude of accelerometer and magnetometer, as unit quaternion
+    private final float[] absolute = new float[4];
+    private final float[] gravity = new float[3];
+    private final float[] geomagnetic = new float[3];
+    private boolean has_gravity;
+    private boolean has_geomagnetic;
+    private long gyro_timestamp;
+
+    // Scratch arrays, so that fusing a sample doesn't allocate memory
+    private final float[] rotation = new float[9];
+    private final float[] rotation_vector = new float[4];
+    private final float[] angles = new float[3];
+    private final float[] sample = new float[WIDTH];
+
+
+    /*
+     * Returns the types of the source sensors to fuse, cf. above, or null
+     * if the passed registry has neither a rotation vector nor an
+     * accelerometer and a magnetometer
+     *
+     */
+    static int[] getSourceTypes(SparseArray<SensorSlot> slots) {
+        if (slots.get(Sensor.TYPE_ROTATION_VECTOR) != null) {
+            return new int[] {Sensor.TYPE_ROTATION_VECTOR};
+        }
+        if (slots.get(Sensor.TYPE_ACCELEROMETER) == null ||
+                slots.get(Sensor.TYPE_MAGNETIC_FIELD) == null) {
+            return null;
+        }
+        if (slots.get(Sensor.TYPE_GYROSCOPE) != null) {
+            return new int[] {Sensor.TYPE_GYROSCOPE,
+                    Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_MAGNETIC_FIELD};
+        }
+        return new int[] {Sensor.TYPE_ACCELEROMETER,
+                Sensor.TYPE_MAGNETIC_FIELD};
+    }
+
+
+    /*
+     * An engine that fuses the passed source sensors (cf. getSourceTypes)
+     * and publishes to the passed slot, with one input stage per source
+     * sensor, whose ids start at `first_id`
+     *
+     */
+    SensorOrientation(SensorSlot output, int[] source_types, int first_id) {
+        this.output = output;
+        inputs = new Input[source_types.length];
+        boolean gyroscope = false;
+        for (int i = 0; i < source_types.length; i++) {
+            inputs[i] = new Input(first_id + i, source_types[i]);
+            gyroscope |= source_types[i] == Sensor.TYPE_GYROSCOPE;
+        }
+        has_gyroscope = gyroscope;
+    }
+
+
+    /*
+     * Feeds the samples of one source sensor to the engine
+     */
+    class Input implements SensorStage {
+        final int id;
+        final int type;
+
+        Input(int id, int type) {
+            this.id = id;
+            this.type = type;
+        }
+
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+
+        @Override
+        public void add(long timestamp, float[] values, int count) {
+            if (count < 3) {
+                return;
+            }
+            switch (type) {
+                case Sensor.TYPE_ROTATION_VECTOR:
+                    add_rotation_vector(timestamp, values, count);
+                    break;
+                case Sensor.TYPE_GYROSCOPE:
+                    add_gyroscope(timestamp, values);
+                    break;
+                case Sensor.TYPE_ACCELEROMETER:
+                    filter(gravity, has_gravity, values);
+                    has_gravity = true;
+                    add_absolute(timestamp);
+                    break;
+                case Sensor.TYPE_MAGNETIC_FIELD:
+                    filter(geomagnetic, has_geomagnetic, values);
+                    has_geomagnetic = true;
+                    add_absolute(timestamp);
+                    break;
+            }
+        }
+
+
+        /*
+         * Fused samples are read from the virtual slot, this only appends
+         * the input's source, i.e.:
+         * [{'id': 7, 'type': 11}, ...]
+         */
+        @Override
+        public void appendResults(JSONArray results_json, long since_nanos)
+                throws JSONException {
+            JSONObject input_json = new JSONObject();
+            input_json.put("id", id);
+            input_json.put("type", type);
+            results_json.put(input_json);
+        }
+    }
+
+
+    /*
+     * Internal helper that takes the attitude from a rotation vector
+     * sample, whose fourth value (the quaternion's w) is optional
+     */
+    private void add_rotation_vector(long timestamp, float[] values,
+            int count) {
+        System.arraycopy(values, 0, rotation_vector, 0, 3);
+        if (count >= 4) {
+            rotation_vector[3] = values[3];
+        } else {
+            float w = 1 - values[0] * values[0] - values[1] * values[1] -
+                    values[2] * values[2];
+            rotation_vector[3] = w > 0 ? (float) Math.sqrt(w) : 0;
+        }
+        SensorManager.getQuaternionFromVector(attitude, rotation_vector);
+        normalize(attitude);
+        has_attitude = true;
+        publish(timestamp);
+    }
+
+
+    /*
+     * Internal helper that rotates the attitude by the angular speed of a
+     * gyroscope sample (rad/s around the device's axes) over the time
+     * since the previous gyroscope sample
+     */
+    private void add_gyroscope(long timestamp, float[] values) {
+        long interval = timestamp - gyro_timestamp;
+        gyro_timestamp = timestamp;
+        if (!has_attitude) {
+            return;
+        }
+
+        if (interval > 0 && interval < MAX_GYRO_INTERVAL_NS) {
+            float wx = values[0];
+            float wy = values[1];
+            float wz = values[2];
+            float speed = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+            if (speed > 0) {
+                double half_angle = 0.5 * speed * interval * 1e-9;
+                float dw = (float) Math.cos(half_angle);
+                float s = (float) Math.sin(half_angle) / speed;
+                float dx = wx * s;
+                float dy = wy * s;
+                float dz = wz * s;
+
+                // attitude = attitude * (dw, dx, dy, dz), since the speed is
+                // in device coordinates
+                float w = attitude[0];
+                float x = attitude[1];
+                float y = attitude[2];
+                float z = attitude[3];
+                attitude[0] = w * dw - x * dx - y * dy - z * dz;
+                attitude[1] = w * dx + x * dw + y * dz - z * dy;
+                attitude[2] = w * dy - x * dz + y * dw + z * dx;
+                attitude[3] = w * dz + x * dy - y * dx + z * dw;
+                normalize(attitude);
+            }
+        }
+        publish(timestamp);
+    }
+
+
+    /*
+     * Internal helper that updates the attitude from the last accelerometer
+     * and magnetometer samples, if there are both and the device is not in
+     * free fall
+     *
+     * With a gyroscope the attitude is only pulled towards theirs, and the
+     * gyroscope publishes, otherwise their attitude is published.
+     *
+     */
+    private void add_absolute(long timestamp) {
+        if (!has_gravity || !has_geomagnetic ||
+                !SensorManager.getRotationMatrix(rotation, null, gravity,
+                geomagnetic)) {
+            return;
+        }
+        to_quaternion(rotation, absolute);
+
+        if (!has_gyroscope || !has_attitude) {
+            System.arraycopy(absolute, 0, attitude, 0, 4);
+            has_attitude = true;
+        } else {
+            // Interpolate along the shorter way, q and -q are the same
+            float dot = 0;
+            for (int i = 0; i < 4; i++) {
+                dot += attitude[i] * absolute[i];
+            }
+            float weight = dot < 0 ? -(1 - GYRO_WEIGHT) : 1 - GYRO_WEIGHT;
+            for (int i = 0; i < 4; i++) {
+                attitude[i] = GYRO_WEIGHT * attitude[i] + weight * absolute[i];
+            }
+            normalize(attitude);
+        }
+
+        if (!has_gyroscope) {
+            publish(timestamp);
+        }
+    }
+
+
+    /*
+     * Internal helper that stores the first three values of a sample in the
+     * passed vector, low-pass filtered if there is no gyroscope to smooth
+     * the attitude
+     */
+    private void filter(float[] vector, boolean initialized,
+            float[] values) {
+        if (has_gyroscope || !initialized) {
+            System.arraycopy(values, 0, vector, 0, 3);
+        } else {
+            for (int i = 0; i < 3; i++) {
+                vector[i] = LOW_PASS_WEIGHT * vector[i] +
+                        (1 - LOW_PASS_WEIGHT) * values[i];
+            }
+        }
+    }
+
+
+    /*
+     * Internal helper that publishes the current attitude as fused sample,
+     * with w >= 0, so that the same orientation always has the same values
+     */
+    private void publish(long timestamp) {
+        float sign = attitude[0] < 0 ? -1 : 1;
+        rotation_vector[0] = sign * attitude[1];
+        rotation_vector[1] = sign * attitude[2];
+        rotation_vector[2] = sign * attitude[3];
+        rotation_vector[3] = sign * attitude[0];
+        SensorManager.getRotationMatrixFromVector(rotation, rotation_vector);
+        SensorManager.getOrientation(rotation, angles);
+
+        sample[0] = angles[0];
+        sample[1] = angles[1];
+        sample[2] = angles[2];
+        sample[3] = rotation_vector[3];
+        sample[4] = rotation_vector[0];
+        sample[5] = rotation_vector[1];
+        sample[6] = rotation_vector[2];
+        SensorService.getInstance().publish(output, timestamp, sample, WIDTH);
+    }
+
+
+    /*
+     * Internal helper that converts a 3x3 rotation matrix, as returned by
+     * SensorManager.getRotationMatrix, to a unit quaternion (w, x, y, z),
+     * using the largest of the four possible divisors for precision
+     */
+    private static void to_quaternion(float[] r, float[] q) {
+        float trace = r[0] + r[4] + r[8];
+        if (trace > 0) {
+            float s = 2 * (float) Math.sqrt(trace + 1);
+            q[0] = s / 4;
+            q[1] = (r[7] - r[5]) / s;
+            q[2] = (r[2] - r[6]) / s;
+            q[3] = (r[3] - r[1]) / s;
+        } else if (r[0] > r[4] && r[0] > r[8]) {
+            float s = 2 * (float) Math.sqrt(1 + r[0] - r[4] - r[8]);
+            q[0] = (r[7] - r[5]) / s;
+            q[1] = s / 4;
+            q[2] = (r[1] + r[3]) / s;
+            q[3] = (r[2] + r[6]) / s;
+        } else if (r[4] > r[8]) {
+            float s = 2 * (float) Math.sqrt(1 + r[4] - r[0] - r[8]);
+            q[0] = (r[2] - r[6]) / s;
+            q[1] = (r[1] + r[3]) / s;
+            q[2] = s / 4;
+            q[3] = (r[5] + r[7]) / s;
+        } else {
+            float s = 2 * (float) Math.sqrt(1 + r[8] - r[0] - r[4]);
+            q[0] = (r[3] - r[1]) / s;
+            q[1] = (r[2] + r[6]) / s;
+            q[2] = (r[5] + r[7]) / s;
+            q[3] = s / 4;
+        }
+        normalize(q);
+    }
+
+
+    private static void normalize(float[] q) {
+        float norm = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] +
+                q[2] * q[2] + q[3] * q[3]);
+        if (norm > 0) {
+            for (int i = 0; i < 4; i++) {
+                q[i] /= norm;
+            }
+        }
+    }
+}
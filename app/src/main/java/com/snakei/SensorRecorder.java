@@ -0,0 +1,605 @@
+package com.snakei;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Records the samples of several sensors to a log of memory-mapped binary
+ * segment files in a directory, e.g. for offline analysis of a whole
+ * session at the fastest rate
+ *
+ * Each recorded sensor gets a column (cf. Column below), which is a stage
+ * (cf. SensorStage.java) fed with every sample on the sensor thread. A
+ * column collects up to BLOCK_SAMPLES samples and then appends them as one
+ * block to the current segment. A block only holds samples of one sensor,
+ * stored column-wise, i.e. first all timestamps, then all first values,
+ * then all second values, etc. Blocks are compressed (cf.
+ * SensorSeriesCodec.java), which mostly stores a timestamp in 1-15 bits
+ * and a value in a few to 20 bits, or, for uncompressed recordings,
+ * timestamps are stored as differences to the previous timestamp, as
+ * varints, which takes 2-3 bytes instead of 8 per sample at the usual
+ * rates, and values as raw float32.
+ *
+ * Segments are mapped into memory, so appending a block is a memory copy
+ * without system calls. When a block does not fit into the current
+ * segment, the segment is closed, i.e. written back and truncated to its
+ * used length, and the next segment is started. Callers may also rotate
+ * segments, e.g. to read closed segments while the recording goes on.
+ *
+ * The sensor thread must not block on disk I/O, so segment files are
+ * created, mapped, written back and truncated on the recorder's own I/O
+ * thread. The next segment is mapped in advance while the current one is
+ * filled, so that starting it only takes the prepared mapping. Only if the
+ * I/O thread hasn't prepared it yet, the sensor thread waits for it, which
+ * is counted as a stall (cf. toJSON). A prepared segment keeps a temporary
+ * name, which readers ignore, until it is started, so that readers never
+ * see a segment without header, nor an empty segment that is never used.
+ *
+ * A recording that is started again in the same directory continues
+ * after the last existing segment, the existing segments are kept.
+ *
+ * Segment file layout (little endian, cf. sensorlog.py):
+ *
+ *   Header (HEADER_SIZE bytes)
+ *     int   magic
+ *     int   version
+ *     int   index of the segment in the recording
+ *     int   used length of the segment in bytes, including the header,
+ *           updated after each block
+ *     long  creation time (System.currentTimeMillis())
+ *
+ *   Blocks, each
+ *     int   Android sensor type
+ *     short number of samples n
+ *     byte  number of values per sample w
+ *     byte  codec, RAW or SERIES
+ *     long  timestamp of the first sample (ns)
+ *     int   length of the payload in bytes
+ *     payload, for RAW
+ *       n - 1 zigzag varints, differences to the previous timestamp (ns)
+ *       w * n float32, values of all samples, first value first
+ *     payload, for SERIES
+ *       the samples encoded by SensorSeriesCodec
+ *
+ * All methods except the constructor and start MUST ONLY be called from
+ * the sensor thread, so that the recorder has a single writer and needs no
+ * locks.
+ *
+ */
+class SensorRecorder {
+    static final String TAG = "SensorRecorder";
+
+    static final int MAGIC = 0x52534e53;
+    static final int VERSION = 2;
+
+    // Block codecs
+    static final int RAW = 0;
+    static final int SERIES = 1;
+
+    static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    static final int BLOCK_SAMPLES = 256;
+
+    // Blocks of slow sensors are appended about this time after their first
+    // sample was received, by a timer on the sensor thread (cf. flush_timer)
+    // so that readers of the segments don't wait for them too long
+    static final long BLOCK_INTERVAL_NS = 1000000000L;
+    static final long FLUSH_INTERVAL_MS = BLOCK_INTERVAL_NS / 1000000 / 4;
+
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_INDEX = 8;
+    static final int HEADER_LENGTH = 12;
+    static final int HEADER_CREATED = 16;
+    static final int HEADER_SIZE = 32;
+
+    static final int BLOCK_HEADER_SIZE = 20;
+    // A zigzag varint of a 64 bit value takes at most 10 bytes
+    private static final int MAX_VARINT_SIZE = 10;
+
+    final File directory;
+    final Column[] columns;
+    final int codec;
+
+    private final SensorSeriesCodec series_codec = new SensorSeriesCodec();
+
+    // The current segment, its index is kept after it is closed
+    private int segment_index = -1;
+    private Segment current_segment;
+    private MappedByteBuffer segment;
+
+    // Segment files are prepared and closed on this thread, cf. above
+    private HandlerThread io_thread;
+    private Handler io_handler;
+    private Handler sensor_handler;
+
+    // The segment after the current one, mapped in advance on the I/O
+    // thread, null if it wasn't requested yet or couldn't be created
+    private FutureTask<Segment> pending_segment;
+
+    // Statistics, written by the sensor thread only
+    private volatile long samples;
+    private volatile long blocks;
+    private volatile long bytes;
+    private volatile long dropped;
+    private volatile long encode_ns;
+    private volatile long stalls;
+
+
+    /*
+     * A recorder for the passed sensor slots, which writes its segments to
+     * the passed directory, compressed if `compress`
+     *
+     * The first segment is prepared by start and begun on the first block.
+     * If the directory holds segments of an earlier recording, the first
+     * segment is the one after the last of them.
+     *
+     */
+    SensorRecorder(File directory, SensorSlot[] slots, int first_id,
+            boolean compress) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getPath());
+        }
+        this.directory = directory;
+        this.codec = compress ? SERIES : RAW;
+
+        String[] names = directory.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].length() == 10 && names[i].endsWith(".seg")) {
+                try {
+                    segment_index = Math.max(segment_index,
+                            Integer.parseInt(names[i].substring(0, 6)));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        columns = new Column[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            columns[i] = new Column(first_id + i, slots[i].type,
+                    Math.min(SensorSlot.getValueCount(slots[i].type),
+                    SensorSharedMemory.WIDTH));
+        }
+    }
+
+
+    /*
+     * Starts the I/O thread, prepares the first segment and schedules the
+     * flush timer on the passed sensor thread
+     *
+     * MUST be called before the columns are fed
+     *
+     */
+    void start(Handler sensor_handler) {
+        this.sensor_handler = sensor_handler;
+        io_thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        io_thread.start();
+        io_handler = new Handler(io_thread.getLooper());
+        prepare_segment(segment_index + 1);
+        sensor_handler.postDelayed(flush_timer, FLUSH_INTERVAL_MS);
+    }
+
+
+    /*
+     * A mapped segment file, cf. prepare_segment
+     */
+    private static class Segment {
+        final int index;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        // The file's name, the temporary one until the segment is started,
+        // only accessed on the I/O thread
+        File path;
+
+        Segment(int index, File file, File tmp_file,
+                MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+            this.path = tmp_file;
+        }
+    }
+
+
+    /*
+     * The samples of one sensor that are not yet appended to a segment
+     */
+    class Column implements SensorStage {
+        final int id;
+        final int type;
+        final int width;
+
+        private final long[] timestamps = new long[BLOCK_SAMPLES];
+        private final float[] values;
+        private int count;
+        private int block_width;
+
+        // SystemClock.elapsedRealtimeNanos() when the first pending sample
+        // was received, cf. flush_timer
+        private long first_received_ns;
+
+        Column(int id, int type, int width) {
+            this.id = id;
+            this.type = type;
+            this.width = width;
+            this.values = new float[BLOCK_SAMPLES * width];
+        }
+
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+
+        @Override
+        public void add(long timestamp, float[] src, int n) {
+            int w = Math.min(n, width);
+            if (count > 0 && (w != block_width || count == BLOCK_SAMPLES ||
+                    timestamp - timestamps[0] > BLOCK_INTERVAL_NS)) {
+                append(this);
+            }
+            block_width = w;
+            if (count == 0) {
+                first_received_ns = SystemClock.elapsedRealtimeNanos();
+            }
+
+            // Values are kept column-wise already, as they are written
+            timestamps[count] = timestamp;
+            for (int i = 0; i < w; i++) {
+                values[i * BLOCK_SAMPLES + count] = src[i];
+            }
+            count++;
+        }
+
+
+        /*
+         * Recorded samples are read from the segments (cf. sensorlog.py),
+         * this only appends the column's progress, i.e.:
+         * [{'id': 5, 'type': 1, 'pending': 17}, ...]
+         */
+        @Override
+        public void appendResults(JSONArray results_json, long since_nanos)
+                throws JSONException {
+            JSONObject column_json = new JSONObject();
+            column_json.put("id", id);
+            column_json.put("type", type);
+            column_json.put("pending", count);
+            results_json.put(column_json);
+        }
+    }
+
+
+    /*
+     * Internal helper that appends the pending samples of a column as a
+     * block to the current segment, starting a new segment if the block
+     * doesn't fit
+     *
+     * Samples are dropped, and counted, if no segment can be created,
+     * e.g. because the storage is full
+     *
+     */
+    private void append(Column column) {
+        int n = column.count;
+        int w = column.block_width;
+        column.count = 0;
+        if (n == 0) {
+            return;
+        }
+
+        int max_size = BLOCK_HEADER_SIZE + (codec == SERIES ?
+                SensorSeriesCodec.getMaxSize(n, w) :
+                (n - 1) * MAX_VARINT_SIZE + 4 * w * n);
+        if (segment == null || segment.remaining() < max_size) {
+            try {
+                next_segment();
+            } catch (IOException e) {
+                Log.d(TAG, "Could not start segment: " + e.toString());
+                segment = null;
+                dropped += n;
+                return;
+            }
+        }
+
+        long start_ns = System.nanoTime();
+        int start = segment.position();
+        segment.putInt(column.type);
+        segment.putShort((short) n);
+        segment.put((byte) w);
+        segment.put((byte) codec);
+        segment.putLong(column.timestamps[0]);
+        segment.putInt(0);
+        if (codec == SERIES) {
+            series_codec.encode(segment, column.timestamps, column.values,
+                    BLOCK_SAMPLES, n, w);
+        } else {
+            for (int i = 1; i < n; i++) {
+                long delta = column.timestamps[i] - column.timestamps[i - 1];
+                put_varint((delta << 1) ^ (delta >> 63));
+            }
+            for (int v = 0; v < w; v++) {
+                for (int i = 0; i < n; i++) {
+                    segment.putFloat(column.values[v * BLOCK_SAMPLES + i]);
+                }
+            }
+        }
+        int end = segment.position();
+        segment.putInt(start + BLOCK_HEADER_SIZE - 4,
+                end - start - BLOCK_HEADER_SIZE);
+        segment.putInt(HEADER_LENGTH, end);
+
+        samples += n;
+        blocks++;
+        bytes += end - start;
+        encode_ns += System.nanoTime() - start_ns;
+    }
+
+
+    private void put_varint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            segment.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte) value);
+    }
+
+
+    /*
+     * Appends the pending samples of the columns whose first pending sample
+     * was received BLOCK_INTERVAL_NS ago, i.e. of slow sensors, whose
+     * blocks would otherwise only be appended with their next sample
+     *
+     * Runs on the sensor thread every FLUSH_INTERVAL_MS
+     *
+     */
+    private final Runnable flush_timer = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (Column column : columns) {
+                if (column.count > 0 &&
+                        now - column.first_received_ns >= BLOCK_INTERVAL_NS) {
+                    append(column);
+                }
+            }
+            sensor_handler.postDelayed(this, FLUSH_INTERVAL_MS);
+        }
+    };
+
+
+    /*
+     * Internal helper that closes the current segment, if any, and starts
+     * the next one, which is usually prepared already
+     */
+    private void next_segment() throws IOException {
+        if (pending_segment == null) {
+            prepare_segment(segment_index + 1);
+        }
+        FutureTask<Segment> pending = pending_segment;
+        pending_segment = null;
+        if (!pending.isDone()) {
+            stalls++;
+        }
+
+        Segment next;
+        try {
+            next = pending.get();
+        } catch (InterruptedException e) {
+            close_segment();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing a segment");
+        } catch (ExecutionException e) {
+            // The next call prepares the segment again
+            close_segment();
+            throw new IOException(e.getCause().toString());
+        }
+
+        // Prepare the one after before the current one is closed, which
+        // takes a while, on the same thread
+        prepare_segment(next.index + 1);
+        close_segment();
+        publish_segment(next);
+
+        segment_index = next.index;
+        current_segment = next;
+        segment = next.buffer;
+        segment.putLong(HEADER_CREATED, System.currentTimeMillis());
+        segment.position(HEADER_SIZE);
+    }
+
+
+    /*
+     * Internal helper that asks the I/O thread to create and map the
+     * segment with the passed index (cf. map_segment), to be started by
+     * next_segment
+     */
+    private void prepare_segment(final int index) {
+        pending_segment = new FutureTask<Segment>(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return map_segment(index);
+            }
+        });
+        io_handler.post(pending_segment);
+    }
+
+
+    /*
+     * Internal helper that creates a segment file under its temporary name,
+     * maps it and writes its header, runs on the I/O thread
+     */
+    private Segment map_segment(int index) throws IOException {
+        File file = new File(directory, String.format("%06d.seg", index));
+        File tmp_file = new File(directory, file.getName() + ".tmp");
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(tmp_file, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    SEGMENT_SIZE);
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_INDEX, index);
+        buffer.putInt(HEADER_LENGTH, HEADER_SIZE);
+        buffer.putLong(HEADER_CREATED, System.currentTimeMillis());
+        return new Segment(index, file, tmp_file, buffer);
+    }
+
+
+    /*
+     * Internal helper that asks the I/O thread to rename a started segment
+     * to its final name, so that readers find it
+     */
+    private void publish_segment(final Segment started) {
+        io_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The mapping stays valid after the file is renamed
+                if (started.path.renameTo(started.file)) {
+                    started.path = started.file;
+                } else {
+                    Log.d(TAG, "Could not rename " + started.path.getName());
+                }
+            }
+        });
+    }
+
+
+    /*
+     * Internal helper that hands the current segment to the I/O thread,
+     * which writes it back and truncates its file to the used length
+     */
+    private void close_segment() {
+        if (segment == null) {
+            return;
+        }
+        final Segment closed = current_segment;
+        final int length = segment.position();
+        segment = null;
+        current_segment = null;
+
+        io_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                closed.buffer.force();
+
+                // We don't touch the mapping anymore, so it may shrink
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(closed.path,
+                            "rw");
+                    try {
+                        raf.setLength(length);
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not truncate " + closed.path.getName() +
+                            ": " + e.toString());
+                }
+            }
+        });
+    }
+
+
+    /*
+     * Appends the pending samples of all columns and starts a new segment,
+     * so that all samples recorded so far are in closed segments
+     */
+    void rotate() {
+        for (Column column : columns) {
+            append(column);
+        }
+        if (segment != null) {
+            try {
+                next_segment();
+            } catch (IOException e) {
+                Log.d(TAG, "Could not start segment: " + e.toString());
+                segment = null;
+            }
+        }
+    }
+
+
+    /*
+     * Appends the pending samples of all columns and closes the segment,
+     * deletes the prepared segment and stops the I/O thread once it has
+     * closed the segment
+     */
+    void close() {
+        sensor_handler.removeCallbacks(flush_timer);
+        for (Column column : columns) {
+            append(column);
+        }
+        close_segment();
+
+        final FutureTask<Segment> pending = pending_segment;
+        pending_segment = null;
+        if (pending != null) {
+            // Runs after the segment was prepared, on the same thread
+            io_handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pending.get().path.delete();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Could not delete prepared segment: " +
+                                e.toString());
+                    } catch (ExecutionException e) {
+                        // It wasn't created
+                    }
+                }
+            });
+        }
+        io_thread.quitSafely();
+    }
+
+
+    /*
+     * Returns the state of the recording as JSON object, i.e.:
+     * {'directory': <path>, 'compressed': true, 'segment': 2,
+     *  'samples': 1234567, 'blocks': 4823, 'bytes': 7450110, 'dropped': 0,
+     *  'encode_us': 310544, 'stalls': 0,
+     *  'columns': [{'id': 5, 'type': 1, 'pending': 17}, ...]}
+     *
+     */
+    JSONObject toJSON() throws JSONException {
+        JSONObject recording_json = new JSONObject();
+        recording_json.put("directory", directory.getPath());
+        recording_json.put("compressed", codec == SERIES);
+        recording_json.put("segment", segment_index);
+        recording_json.put("samples", samples);
+        recording_json.put("blocks", blocks);
+        recording_json.put("bytes", bytes);
+        recording_json.put("dropped", dropped);
+        recording_json.put("encode_us", encode_ns / 1000);
+        recording_json.put("stalls", stalls);
+        JSONArray columns_json = new JSONArray();
+        for (Column column : columns) {
+            column.appendResults(columns_json, 0);
+        }
+        recording_json.put("columns", columns_json);
+        return recording_json;
+    }
+}
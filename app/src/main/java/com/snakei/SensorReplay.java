@@ -0,0 +1,542 @@
+package com.snakei;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Replays a recorded trace of sensor samples and locations, in place of the
+ * device's sensors and location providers, e.g. to test or benchmark
+ * Python code without a phone at hand
+ *
+ * Traces are either recordings written by SensorRecorder (a directory of
+ * segment files, sensor samples only) or CSV files with one event per line,
+ * ordered by timestamp:
+ *
+ *   # Comment
+ *   <sensor type>,<timestamp ns>,<value>[,<value>...]
+ *   location,<timestamp ns>,<provider>,<time ms>,<latitude>,<longitude>,
+ *       <altitude>,<accuracy>,<bearing>,<speed>
+ *
+ * where timestamps use the elapsed realtime clock like sensor events, and
+ * the location's time is its UTC time.
+ *
+ * The replay runs on the sensor thread. Each run delivers the events that
+ * are due and then posts itself again for the next event, i.e. events are
+ * delivered `speed` times as fast as they were recorded, or as fast as
+ * possible if speed is 0. Sensor samples go through the same path as
+ * sensor events (cf. SensorService.publish), locations through
+ * LocationService.onLocationChanged. Timestamps are shifted so that the
+ * first event has the time the replay started, but not scaled, so that
+ * everything computed from them (e.g. aggregates, spectra) is the same at
+ * any speed.
+ *
+ */
+class SensorReplay implements Runnable {
+    static final String TAG = "SensorReplay";
+
+    // Max number of events delivered per run, so that other messages on
+    // the sensor thread (e.g. snapshots) get their turn when replaying as
+    // fast as possible
+    static final int MAX_EVENTS_PER_RUN = 512;
+
+    final String path;
+    final double speed;
+
+    private final Source source;
+    private final Handler handler;
+
+    // Set by the first run
+    private long start_ns;
+    private long first_timestamp;
+    private boolean started;
+
+    // Whether the source has a current event that is not delivered yet
+    private boolean pending;
+
+    // Statistics, written by the sensor thread only
+    private volatile long samples;
+    private volatile long locations;
+    private volatile boolean finished;
+
+
+    /*
+     * Opens a trace, the replay starts when it is run on the passed handler
+     *
+     * @throws  IOException if the trace can't be read
+     *
+     */
+    SensorReplay(String path, double speed, Handler handler)
+            throws IOException {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must not be negative.");
+        }
+        this.path = path;
+        this.speed = speed;
+        this.handler = handler;
+
+        File file = new File(path);
+        if (file.isDirectory()) {
+            source = new RecordingSource(file);
+        } else {
+            source = new CsvSource(file);
+        }
+    }
+
+
+    /* Android sensor types of the samples in the trace */
+    int[] getSensorTypes() {
+        return source.sensor_types;
+    }
+
+
+    @Override
+    public void run() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        try {
+            if (!started) {
+                started = true;
+                pending = source.next();
+                start_ns = now;
+                first_timestamp = source.timestamp;
+            }
+
+            for (int i = 0; pending && i < MAX_EVENTS_PER_RUN; i++) {
+                long offset = source.timestamp - first_timestamp;
+                if (speed > 0) {
+                    long due = start_ns + (long) (offset / speed);
+                    if (due > now) {
+                        handler.postDelayed(this,
+                                Math.max(1, (due - now) / 1000000));
+                        return;
+                    }
+                }
+                deliver(start_ns + offset);
+                pending = source.next();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not read trace: " + e.toString());
+            pending = false;
+        }
+
+        if (pending) {
+            handler.post(this);
+        } else {
+            Log.d(TAG, "Replay finished");
+            finished = true;
+            source.close();
+        }
+    }
+
+
+    /*
+     * Internal helper that delivers the current event of the source with
+     * the passed timestamp
+     */
+    private void deliver(long timestamp) {
+        if (source.location != null) {
+            source.location.setElapsedRealtimeNanos(timestamp);
+            LocationService.getInstance().onLocationChanged(source.location);
+            locations++;
+        } else {
+            SensorService.getInstance().replay(source.sensor_type, timestamp,
+                    source.values, source.count);
+            samples++;
+        }
+    }
+
+
+    /* Stops the replay, must be called on the sensor thread */
+    void stop() {
+        handler.removeCallbacks(this);
+        if (!finished) {
+            finished = true;
+            source.close();
+        }
+    }
+
+
+    /*
+     * Returns the progress of the replay as JSON object, i.e.:
+     * {'path': <path>, 'speed': 10.0, 'samples': 120345, 'locations': 12,
+     *  'finished': false}
+     */
+    JSONObject toJSON() throws JSONException {
+        JSONObject replay_json = new JSONObject();
+        replay_json.put("path", path);
+        replay_json.put("speed", speed);
+        replay_json.put("samples", samples);
+        replay_json.put("locations", locations);
+        replay_json.put("finished", finished);
+        return replay_json;
+    }
+
+
+    /*
+     * Reads the events of a trace one at a time, in timestamp order
+     *
+     * next() advances to the next event and fills in either `location` or
+     * `sensor_type`, `values` and `count`. The values array is reused,
+     * each location is a new object.
+     *
+     */
+    abstract static class Source {
+        int[] sensor_types;
+
+        long timestamp;
+        int sensor_type;
+        final float[] values = new float[SensorSharedMemory.WIDTH];
+        int count;
+        Location location;
+
+        abstract boolean next() throws IOException;
+        abstract void close();
+    }
+
+
+    /*
+     * Events of a CSV file, cf. above for the format
+     *
+     * The file is read twice, the first time to find out which sensors
+     * it has samples of
+     *
+     */
+    static class CsvSource extends Source {
+        private final BufferedReader reader;
+        private int line_number;
+
+        CsvSource(File file) throws IOException {
+            int[] types = new int[0];
+            BufferedReader scan = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = scan.readLine()) != null) {
+                    line_number++;
+                    int comma = line.indexOf(',');
+                    if (comma < 0 || line.startsWith("#") ||
+                            line.startsWith("location,")) {
+                        continue;
+                    }
+                    int type = parse_int(line.substring(0, comma).trim());
+                    if (Arrays.binarySearch(types, type) < 0) {
+                        types = Arrays.copyOf(types, types.length + 1);
+                        types[types.length - 1] = type;
+                        Arrays.sort(types);
+                    }
+                }
+            } finally {
+                scan.close();
+            }
+            sensor_types = types;
+            line_number = 0;
+            reader = new BufferedReader(new FileReader(file));
+        }
+
+
+        @Override
+        boolean next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 3) {
+                    throw new IOException(String.format(
+                            "Line %d has less than 3 fields", line_number));
+                }
+
+                timestamp = parse_long(fields[1].trim());
+                if (fields[0].trim().equals("location")) {
+                    if (fields.length < 10) {
+                        throw new IOException(String.format(
+                                "Location on line %d has less than 10 fields",
+                                line_number));
+                    }
+                    location = new Location(fields[2].trim());
+                    location.setTime(parse_long(fields[3].trim()));
+                    location.setLatitude(parse_double(fields[4]));
+                    location.setLongitude(parse_double(fields[5]));
+                    location.setAltitude(parse_double(fields[6]));
+                    location.setAccuracy((float) parse_double(fields[7]));
+                    location.setBearing((float) parse_double(fields[8]));
+                    location.setSpeed((float) parse_double(fields[9]));
+                } else {
+                    location = null;
+                    sensor_type = parse_int(fields[0].trim());
+                    count = Math.min(fields.length - 2, values.length);
+                    for (int i = 0; i < count; i++) {
+                        values[i] = (float) parse_double(fields[i + 2]);
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+
+        @Override
+        void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Could not close trace: " + e.toString());
+            }
+        }
+
+
+        // Internal helpers that turn number format errors into IOExceptions
+        private int parse_int(String field) throws IOException {
+            try {
+                return Integer.parseInt(field);
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format(
+                        "Invalid integer '%s' on line %d", field, line_number));
+            }
+        }
+
+
+        private long parse_long(String field) throws IOException {
+            try {
+                return Long.parseLong(field);
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format(
+                        "Invalid integer '%s' on line %d", field, line_number));
+            }
+        }
+
+
+        private double parse_double(String field) throws IOException {
+            try {
+                return Double.parseDouble(field.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format(
+                        "Invalid number '%s' on line %d", field, line_number));
+            }
+        }
+    }
+
+
+    /*
+     * Sensor samples of a recording, cf. SensorRecorder.java for the format
+     *
+     * Blocks of a sensor are in timestamp order, but blocks of different
+     * sensors overlap in time. Hence all segments are mapped and indexed
+     * upon construction, and each sensor gets a cursor that decodes one of
+     * its blocks at a time. next() takes the sample of the cursor with the
+     * oldest timestamp.
+     *
+     */
+    static class RecordingSource extends Source {
+        private final MappedByteBuffer[] segments;
+        private final Cursor[] cursors;
+        private final SensorSeriesCodec codec = new SensorSeriesCodec();
+
+
+        private static class Cursor {
+            final int type;
+            // Segment (upper 32 bits) and offset (lower 32 bits) per block
+            long[] blocks = new long[16];
+            int block_count;
+            int next_block;
+
+            final long[] timestamps = new long[SensorRecorder.BLOCK_SAMPLES];
+            final float[] values = new float[SensorRecorder.BLOCK_SAMPLES *
+                    SensorSharedMemory.WIDTH];
+            int count;
+            int width;
+            int position;
+
+            Cursor(int type) {
+                this.type = type;
+            }
+        }
+
+
+        RecordingSource(File directory) throws IOException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("Could not list " + directory.getPath());
+            }
+            Arrays.sort(files);
+
+            MappedByteBuffer[] mapped = new MappedByteBuffer[files.length];
+            Cursor[] found = new Cursor[0];
+            int segment_count = 0;
+            for (File file : files) {
+                if (!file.getName().endsWith(".seg")) {
+                    continue;
+                }
+                MappedByteBuffer segment = map(file);
+                int s = segment_count++;
+                mapped[s] = segment;
+
+                int length = Math.min(segment.getInt(
+                        SensorRecorder.HEADER_LENGTH), segment.capacity());
+                int offset = SensorRecorder.HEADER_SIZE;
+                while (offset + SensorRecorder.BLOCK_HEADER_SIZE <= length) {
+                    int type = segment.getInt(offset);
+                    Cursor cursor = null;
+                    for (Cursor c : found) {
+                        if (c.type == type) {
+                            cursor = c;
+                        }
+                    }
+                    if (cursor == null) {
+                        cursor = new Cursor(type);
+                        found = Arrays.copyOf(found, found.length + 1);
+                        found[found.length - 1] = cursor;
+                    }
+                    if (cursor.block_count == cursor.blocks.length) {
+                        cursor.blocks = Arrays.copyOf(cursor.blocks,
+                                2 * cursor.blocks.length);
+                    }
+                    cursor.blocks[cursor.block_count++] =
+                            ((long) s << 32) | offset;
+                    offset += SensorRecorder.BLOCK_HEADER_SIZE +
+                            segment.getInt(offset +
+                            SensorRecorder.BLOCK_HEADER_SIZE - 4);
+                }
+            }
+
+            segments = Arrays.copyOf(mapped, segment_count);
+            cursors = found;
+            sensor_types = new int[cursors.length];
+            for (int i = 0; i < cursors.length; i++) {
+                sensor_types[i] = cursors[i].type;
+            }
+        }
+
+
+        /*
+         * Internal helper that maps a segment and checks its header
+         */
+        private static MappedByteBuffer map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer segment;
+            try {
+                segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        0, raf.length());
+            } finally {
+                raf.close();
+            }
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            if (segment.capacity() < SensorRecorder.HEADER_SIZE ||
+                    segment.getInt(SensorRecorder.HEADER_MAGIC) !=
+                    SensorRecorder.MAGIC ||
+                    segment.getInt(SensorRecorder.HEADER_VERSION) !=
+                    SensorRecorder.VERSION) {
+                throw new IOException(file.getName() +
+                        " is not a sensor recording segment");
+            }
+            return segment;
+        }
+
+
+        @Override
+        boolean next() throws IOException {
+            Cursor oldest = null;
+            for (Cursor cursor : cursors) {
+                if (cursor.position == cursor.count &&
+                        cursor.next_block < cursor.block_count) {
+                    decode(cursor);
+                }
+                if (cursor.position < cursor.count && (oldest == null ||
+                        cursor.timestamps[cursor.position] <
+                        oldest.timestamps[oldest.position])) {
+                    oldest = cursor;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+
+            int i = oldest.position++;
+            timestamp = oldest.timestamps[i];
+            sensor_type = oldest.type;
+            count = oldest.width;
+            for (int v = 0; v < count; v++) {
+                values[v] = oldest.values[v * SensorRecorder.BLOCK_SAMPLES + i];
+            }
+            return true;
+        }
+
+
+        /*
+         * Internal helper that decodes the next block of a cursor
+         */
+        private void decode(Cursor cursor) throws IOException {
+            long block = cursor.blocks[cursor.next_block++];
+            MappedByteBuffer segment = segments[(int) (block >>> 32)];
+            int offset = (int) block;
+
+            int n = segment.getShort(offset + 4);
+            int w = segment.get(offset + 6);
+            int block_codec = segment.get(offset + 7);
+            long first = segment.getLong(offset + 8);
+            if (n < 1 || n > SensorRecorder.BLOCK_SAMPLES || w < 0 ||
+                    w > SensorSharedMemory.WIDTH) {
+                throw new IOException("Invalid block in recording");
+            }
+
+            segment.position(offset + SensorRecorder.BLOCK_HEADER_SIZE);
+            if (block_codec == SensorRecorder.SERIES) {
+                codec.decode(segment, first, cursor.timestamps, cursor.values,
+                        SensorRecorder.BLOCK_SAMPLES, n, w);
+            } else if (block_codec == SensorRecorder.RAW) {
+                cursor.timestamps[0] = first;
+                for (int i = 1; i < n; i++) {
+                    long zigzag = get_varint(segment);
+                    cursor.timestamps[i] = cursor.timestamps[i - 1] +
+                            ((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+                for (int v = 0; v < w; v++) {
+                    for (int i = 0; i < n; i++) {
+                        cursor.values[v * SensorRecorder.BLOCK_SAMPLES + i] =
+                                segment.getFloat();
+                    }
+                }
+            } else {
+                throw new IOException("Unknown codec " + block_codec +
+                        " in recording");
+            }
+            cursor.count = n;
+            cursor.width = w;
+            cursor.position = 0;
+        }
+
+
+        private static long get_varint(MappedByteBuffer segment) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = segment.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+
+        @Override
+        void close() {
+            // Mappings are released when the buffers are collected
+        }
+    }
+}
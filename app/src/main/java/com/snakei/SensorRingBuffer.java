@@ -0,0 +1,318 @@
+package com.snakei;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed-capacity ring buffer of sensor samples for a single sensor
+ *
+ * Samples are stored in preallocated primitive arrays, i.e.:
+ *   - the wall clock time in milliseconds when the sample was received
+ *   - the event timestamp in nanoseconds as propagated by Android
+ *   - the number of values of the sample
+ *   - up to `width` float values
+ *
+ * The buffer has exactly one writer (the thread that receives sensor events)
+ * and any number of concurrent readers. No locks are used:
+ * The writer fills a slot and then publishes it by incrementing the volatile
+ * `head` counter. Readers copy the slots they are interested in and then
+ * re-read `head` to find out whether the writer has lapped them while
+ * copying, discarding the samples that might have been overwritten.
+ *
+ * If readers don't drain the buffer fast enough the oldest samples are
+ * overwritten.
+ *
+ * Additionally the most recent sample is kept in a direct ByteBuffer
+ * (`latest`), which native code reads without calling into Java
+ * (cf. sensors.c). It is guarded by a sequence lock: the writer makes the
+ * sequence odd before and even again after updating the sample, readers
+ * retry if the sequence was odd or changed while they copied the sample.
+ * Layout (native byte order, cf. sensor_latest_sample in sensors.c):
+ *   int   sequence
+ *   int   number of values
+ *   long  time received (ms)
+ *   long  timestamp (ns)
+ *   `width` floats
+ *
+ */
+class SensorRingBuffer {
+
+    final int capacity;
+    final int width;
+    private final int mask;
+
+    private final long[] received;
+    private final long[] timestamps;
+    private final int[] counts;
+    private final float[] values;
+
+    // Total number of samples ever written, i.e. the logical index of the
+    // next sample. Written by the writer thread only.
+    private volatile long head;
+
+    static final int LATEST_SEQUENCE = 0;
+    static final int LATEST_COUNT = 4;
+    static final int LATEST_RECEIVED = 8;
+    static final int LATEST_TIMESTAMP = 16;
+    static final int LATEST_VALUES = 24;
+
+    final ByteBuffer latest;
+
+    // Volatile writes to this field order the writes to `latest`, ART
+    // implements them with full memory barriers, which native readers see
+    private static volatile int fence;
+
+
+    /*
+     * @param   capacity (int) - rounded up to the next power of two
+     * @param   width (int) - max number of values per sample
+     */
+    SensorRingBuffer(int capacity, int width) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.width = width;
+
+        received = new long[size];
+        timestamps = new long[size];
+        counts = new int[size];
+        values = new float[size * width];
+
+        latest = ByteBuffer.allocateDirect(LATEST_VALUES + 4 * width);
+        latest.order(ByteOrder.nativeOrder());
+    }
+
+
+    /*
+     * Appends a sample, overwriting the oldest one if the buffer is full
+     *
+     * MUST ONLY be called from the single writer thread
+     *
+     */
+    void write(long received_ms, long timestamp, float[] src, int count) {
+        long h = head;
+        int slot = (int) (h & mask);
+        int n = Math.min(count, width);
+
+        received[slot] = received_ms;
+        timestamps[slot] = timestamp;
+        counts[slot] = n;
+        System.arraycopy(src, 0, values, slot * width, n);
+
+        // Volatile write publishes above stores to the readers
+        head = h + 1;
+
+        int sequence = latest.getInt(LATEST_SEQUENCE) + 1;
+        latest.putInt(LATEST_SEQUENCE, sequence);
+        fence = sequence;
+        latest.putInt(LATEST_COUNT, n);
+        latest.putLong(LATEST_RECEIVED, received_ms);
+        latest.putLong(LATEST_TIMESTAMP, timestamp);
+        for (int i = 0; i < n; i++) {
+            latest.putFloat(LATEST_VALUES + 4 * i, src[i]);
+        }
+        fence = sequence;
+        latest.putInt(LATEST_SEQUENCE, sequence + 1);
+    }
+
+
+    /* Returns the number of samples ever written to this buffer */
+    long size() {
+        return head;
+    }
+
+
+    /*
+     * Returns the timestamp of the most recent sample or Long.MIN_VALUE if
+     * no sample was written yet
+     */
+    long getLatestTimestamp() {
+        long h;
+        long timestamp;
+        do {
+            h = head;
+            if (h == 0) {
+                return Long.MIN_VALUE;
+            }
+            timestamp = timestamps[(int) ((h - 1) & mask)];
+        } while (head - capacity >= h - 1);
+        return timestamp;
+    }
+
+
+    /*
+     * Serializes the most recent sample as JSON array, i.e.:
+     * [<time received ms>, <timestamp ms>, <value[0]>, ...]
+     *
+     * Note: Unlike getSamplesSince the timestamp is in milliseconds
+     *
+     * Returns null if no sample was written yet
+     *
+     */
+    String getLatest() {
+        float[] copy_values = new float[width];
+        long copy_received;
+        long copy_timestamp;
+        int copy_count;
+        long h;
+
+        // Retry if the writer has lapped us while copying, which can only
+        // happen if the reader thread is descheduled for a very long time
+        do {
+            h = head;
+            if (h == 0) {
+                return null;
+            }
+            int slot = (int) ((h - 1) & mask);
+            copy_received = received[slot];
+            copy_timestamp = timestamps[slot];
+            copy_count = counts[slot];
+            System.arraycopy(values, slot * width, copy_values, 0, width);
+        } while (head - capacity >= h - 1);
+
+        StringBuilder sb = new StringBuilder(16 * (width + 2));
+        appendSample(sb, copy_received, copy_timestamp / 1000000,
+                copy_values, 0, copy_count);
+        return sb.toString();
+    }
+
+
+    /*
+     * Serializes up to `max` samples whose timestamp is newer than
+     * `since_nanos`, oldest first, as JSON array of arrays, i.e.:
+     * [[<time received ms>, <timestamp ns>, <value[0]>, ...], ...]
+     *
+     * Returns null if there are no such samples
+     *
+     */
+    String getSamplesSince(long since_nanos, int max) {
+        if (max <= 0) {
+            return null;
+        }
+
+        long h = head;
+        long first = first_newer(since_nanos, h);
+        int n = (int) Math.min(max, h - first);
+        if (n <= 0) {
+            return null;
+        }
+
+        // Copy out first, then check whether the writer lapped us
+        long[] copy_received = new long[n];
+        long[] copy_timestamps = new long[n];
+        int[] copy_counts = new int[n];
+        float[] copy_values = new float[n * width];
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((first + i) & mask);
+            copy_received[i] = received[slot];
+            copy_timestamps[i] = timestamps[slot];
+            copy_counts[i] = counts[slot];
+            System.arraycopy(values, slot * width, copy_values, i * width,
+                    width);
+        }
+
+        // Samples older than this might have been overwritten while copying
+        long valid_from = head - capacity + 1;
+        int skip = (int) Math.max(0, Math.min(n, valid_from - first));
+        if (skip == n) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder((n - skip) * 16 * (width + 2));
+        sb.append('[');
+        for (int i = skip; i < n; i++) {
+            if (i > skip) {
+                sb.append(',');
+            }
+            appendSample(sb, copy_received[i], copy_timestamps[i],
+                    copy_values, i * width, copy_counts[i]);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+
+    /*
+     * Returns the number of buffered samples whose timestamp is newer than
+     * `since_nanos`, i.e. how many getSamplesSince would return at most
+     */
+    int countSince(long since_nanos) {
+        long h = head;
+        return (int) (h - first_newer(since_nanos, h));
+    }
+
+
+    /*
+     * Returns the time received (ms) of the oldest buffered sample whose
+     * timestamp is newer than `since_nanos`, or -1 if there is none, e.g.
+     * to find out how long that sample has been waiting for a reader
+     */
+    long getReceivedSince(long since_nanos) {
+        for (;;) {
+            long h = head;
+            long first = first_newer(since_nanos, h);
+            if (first == h) {
+                return -1;
+            }
+            long received_ms = received[(int) (first & mask)];
+            // Retry if the writer overwrote the sample while we read it
+            if (first >= head - capacity + 1) {
+                return received_ms;
+            }
+        }
+    }
+
+
+    /*
+     * Internal helper that binary searches the logical index of the first
+     * sample newer than `since_nanos` among the samples before `h`, returns
+     * `h` if there is none
+     *
+     * Timestamps of a single sensor are monotonic. The writer may overwrite
+     * the oldest samples meanwhile, callers have to check for that.
+     *
+     */
+    private long first_newer(long since_nanos, long h) {
+        long first = h;
+        long a = Math.max(0, h - capacity + 1);
+        long b = h - 1;
+        while (a <= b) {
+            long mid = (a + b) >>> 1;
+            if (timestamps[(int) (mid & mask)] > since_nanos) {
+                first = mid;
+                b = mid - 1;
+            } else {
+                a = mid + 1;
+            }
+        }
+        return first;
+    }
+
+
+    /*
+     * Appends one sample as JSON array to the passed StringBuilder
+     * [<time received ms>, <timestamp>, <value[0]>, ...]
+     *
+     * JSON cannot represent NaN or Infinity, they are encoded as null
+     *
+     */
+    static void appendSample(StringBuilder sb, long received_ms,
+            long timestamp, float[] src, int offset, int count) {
+        sb.append('[');
+        sb.append(received_ms);
+        sb.append(',');
+        sb.append(timestamp);
+        for (int i = offset; i < offset + count; i++) {
+            sb.append(',');
+            if (Float.isNaN(src[i]) || Float.isInfinite(src[i])) {
+                sb.append("null");
+            } else {
+                sb.append(src[i]);
+            }
+        }
+        sb.append(']');
+    }
+}
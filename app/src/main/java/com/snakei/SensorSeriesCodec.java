@@ -0,0 +1,229 @@
+package com.snakei;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses blocks of sensor samples, i.e. series of timestamps with a
+ * fixed number of float values each, like the time series database
+ * Gorilla does
+ *
+ * Consecutive sensor timestamps are about equally far apart, and
+ * consecutive values mostly only differ in their lowest mantissa bits.
+ * Hence timestamps are stored as the difference of their difference to
+ * the previous timestamp (delta of delta), which mostly takes 1-15 bits.
+ * Values are XORed with the previous value of the same channel, and only
+ * the bits that differ are stored, which mostly takes a few to 20 bits
+ * instead of 32.
+ *
+ * Bit stream (most significant bit first), given the first timestamp:
+ *
+ *   n - 1 timestamps, as delta of delta d
+ *     '0'                  d == 0
+ *     '10'   + 12 bits     -2^11 <= d < 2^11
+ *     '110'  + 20 bits     -2^19 <= d < 2^19
+ *     '1110' + 32 bits     d fits into an int
+ *     '1111' + 64 bits     otherwise
+ *
+ *   w channels, each
+ *     32 bits, the first value
+ *     n - 1 values, as XOR x with the previous value of the channel
+ *       '0'                x == 0
+ *       '10' + bits        the meaningful bits of x, if they are within
+ *                          those of the last x stored with '11'
+ *       '11' + 5 bits number of leading zeros of x
+ *            + 5 bits number of meaningful bits of x, minus one
+ *            + the meaningful bits of x
+ *
+ *   Padded with zero bits to the next byte
+ *
+ * A codec instance keeps the state of one bit stream, it is meant to be
+ * reused by a single thread, so that encoding doesn't allocate memory.
+ *
+ */
+final class SensorSeriesCodec {
+
+    // Upper bound for the encoded size of a series, to check that it fits
+    // into a buffer before encoding
+    static int getMaxSize(int count, int width) {
+        return (count * (4 + 64) + width * (32 + count * (2 + 10 + 32))) /
+                8 + 1;
+    }
+
+    private ByteBuffer buffer;
+    private int pending;
+    private int pending_bits;
+
+
+    /*
+     * Encodes `count` samples at the position of the passed buffer and
+     * advances its position to the end of the encoded samples
+     *
+     * The first timestamp is not stored, it has to be passed to decode.
+     * Values of sample i and channel v are taken from
+     * values[v * stride + i], i.e. channel after channel.
+     *
+     */
+    void encode(ByteBuffer dst, long[] timestamps, float[] values,
+            int stride, int count, int width) {
+        buffer = dst;
+        pending = 0;
+        pending_bits = 0;
+
+        long prev_delta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            long dod = delta - prev_delta;
+            prev_delta = delta;
+            if (dod == 0) {
+                write_bits(0, 1);
+            } else if (dod >= -(1 << 11) && dod < (1 << 11)) {
+                write_bits(0x2, 2);
+                write_bits(dod, 12);
+            } else if (dod >= -(1 << 19) && dod < (1 << 19)) {
+                write_bits(0x6, 3);
+                write_bits(dod, 20);
+            } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+                write_bits(0xe, 4);
+                write_bits(dod, 32);
+            } else {
+                write_bits(0xf, 4);
+                write_bits(dod, 64);
+            }
+        }
+
+        for (int v = 0; v < width; v++) {
+            int prev = Float.floatToRawIntBits(values[v * stride]);
+            write_bits(prev, 32);
+            int prev_leading = -1;
+            int prev_trailing = 0;
+            for (int i = 1; i < count; i++) {
+                int bits = Float.floatToRawIntBits(values[v * stride + i]);
+                int xor = bits ^ prev;
+                prev = bits;
+                if (xor == 0) {
+                    write_bits(0, 1);
+                    continue;
+                }
+                int leading = Integer.numberOfLeadingZeros(xor);
+                int trailing = Integer.numberOfTrailingZeros(xor);
+                if (prev_leading >= 0 && leading >= prev_leading &&
+                        trailing >= prev_trailing) {
+                    write_bits(0x2, 2);
+                    write_bits(xor >>> prev_trailing,
+                            32 - prev_leading - prev_trailing);
+                } else {
+                    int length = 32 - leading - trailing;
+                    write_bits(0x3, 2);
+                    write_bits(leading, 5);
+                    write_bits(length - 1, 5);
+                    write_bits(xor >>> trailing, length);
+                    prev_leading = leading;
+                    prev_trailing = trailing;
+                }
+            }
+        }
+
+        if (pending_bits > 0) {
+            buffer.put((byte) (pending << (8 - pending_bits)));
+        }
+        buffer = null;
+    }
+
+
+    /*
+     * Decodes `count` samples encoded by encode from the position of the
+     * passed buffer and advances its position to the end of the samples
+     *
+     * Stores timestamps and values like encode takes them
+     *
+     */
+    void decode(ByteBuffer src, long first_timestamp, long[] timestamps,
+            float[] values, int stride, int count, int width) {
+        buffer = src;
+        pending = 0;
+        pending_bits = 0;
+
+        timestamps[0] = first_timestamp;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (read_bits(1) == 0) {
+                dod = 0;
+            } else if (read_bits(1) == 0) {
+                dod = signed(read_bits(12), 12);
+            } else if (read_bits(1) == 0) {
+                dod = signed(read_bits(20), 20);
+            } else if (read_bits(1) == 0) {
+                dod = signed(read_bits(32), 32);
+            } else {
+                dod = read_bits(64);
+            }
+            delta += dod;
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+
+        for (int v = 0; v < width; v++) {
+            int prev = (int) read_bits(32);
+            values[v * stride] = Float.intBitsToFloat(prev);
+            int leading = 0;
+            int trailing = 0;
+            for (int i = 1; i < count; i++) {
+                if (read_bits(1) != 0) {
+                    if (read_bits(1) != 0) {
+                        leading = (int) read_bits(5);
+                        trailing = 32 - leading - ((int) read_bits(5) + 1);
+                    }
+                    int xor = (int) read_bits(32 - leading - trailing);
+                    prev ^= xor << trailing;
+                }
+                values[v * stride + i] = Float.intBitsToFloat(prev);
+            }
+        }
+
+        // The rest of the last byte is padding
+        buffer = null;
+    }
+
+
+    /*
+     * Internal helper that appends the lowest `count` bits of the passed
+     * value, filling and writing one byte at a time
+     */
+    private void write_bits(long value, int count) {
+        while (count > 0) {
+            int take = Math.min(count, 8 - pending_bits);
+            int chunk = (int) (value >>> (count - take)) & ((1 << take) - 1);
+            pending = (pending << take) | chunk;
+            pending_bits += take;
+            count -= take;
+            if (pending_bits == 8) {
+                buffer.put((byte) pending);
+                pending = 0;
+                pending_bits = 0;
+            }
+        }
+    }
+
+
+    private long read_bits(int count) {
+        long result = 0;
+        while (count > 0) {
+            if (pending_bits == 0) {
+                pending = buffer.get() & 0xff;
+                pending_bits = 8;
+            }
+            int take = Math.min(count, pending_bits);
+            int chunk = (pending >>> (pending_bits - take)) &
+                    ((1 << take) - 1);
+            result = (result << take) | chunk;
+            pending_bits -= take;
+            count -= take;
+        }
+        return result;
+    }
+
+
+    private static long signed(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
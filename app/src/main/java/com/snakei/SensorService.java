@@ -1,18 +1,36 @@
 package com.snakei;
 
 import android.content.Context;
+import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+
+import com.sensibility_testbed.SensibilityActivity;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  *  Created by lukas.puehringer@nyu.edu
@@ -33,87 +51,168 @@ import java.util.Map;
  * be re-used without having to store the reference,
  * which is useful when calling from native code
  *
+ * Sensor events are received on a dedicated high priority thread, so that
+ * sensor storms don't starve the main thread, which also runs e.g.
+ * OutputService toasts and the location and broadcast receivers
+ * (cf. getSensorThreadStats to see whether the thread keeps up)
+ *
+ * Sensors are identified by their Android sensor type (Sensor.TYPE_*
+ * constants). Upon init a registry with one slot per sensor type is built
+ * from all sensors the device reports, including vendor specific sensors,
+ * so that any of them can be started and read using the same few methods.
+ *
+ * No sensor is running after init. A sensor is started either explicitly
+ * by start_sensing, which is reference counted, i.e. the sensor keeps
+ * running until each start_sensing call was matched by a stop_sensing
+ * call, or lazily by the first read of its values. Sensors that nobody
+ * holds a reference to are stopped once they haven't been read for
+ * idle_timeout_ms (cf. setIdleTimeout).
+ *
+ * Each process would register its own listeners. To avoid that, one
+ * process (cf. SensorBrokerService.java) registers the listeners and
+ * publishes the samples in memory shared with all other processes
+ * (cf. SensorSharedMemory.java). In the other processes starting a sensor
+ * means asking the broker to run it, at the shortest rate any process asked
+ * for, and reading a sensor pumps the samples the broker published since
+ * the last read from the shared memory into the local ring buffer. If the
+ * broker is not available, or disabled (cf. setBrokerEnabled), sensors are
+ * registered locally. Sensors with processing stages, i.e. window
+ * aggregators (cf. addAggregator), spectra (cf. addSpectrum) or the inputs
+ * of the fused orientation (cf. startOrientation), are always registered
+ * locally, since stages have to see every sample when it arrives.
+ *
  * Todo:
  *   - Consider refactor name, this is not an actual Android "Service"
  *   - Find out if we need to worry about memory leaks
  *   - Make sure sensors are wake-up sensors
- *   - Consider better readability vs. redundancy
  */
 
-public class SensorService implements SensorEventListener  {
+public class SensorService implements SensorEventListener2  {
     static final String TAG = "SensorService";
 
     Context cached_context;
 
-    // XXX: These values will be hardcoded in calls from native code, if we 
-    // change them here, we have to change them in the calling function too
-    // e.g. by looking for functions that get passed integers and compare them
-    // with below constants
-    static final int CUSTOM_TYPE_ACCELEROMETER = 1;
-    static final int CUSTOM_TYPE_AMBIENT_TEMPERATURE = 2;
-    static final int CUSTOM_TYPE_GAME_ROTATION_VECTOR = 3;
-    static final int CUSTOM_TYPE_GEOMAGNETIC_ROTATION_VECTOR = 4;
-    static final int CUSTOM_TYPE_GRAVITY = 5;
-    static final int CUSTOM_TYPE_GYROSCOPE = 6;
-    static final int CUSTOM_TYPE_GYROSCOPE_UNCALIBRATED = 7;
-    static final int CUSTOM_TYPE_HEART_RATE = 8;
-    static final int CUSTOM_TYPE_LIGHT = 9;
-    static final int CUSTOM_TYPE_LINEAR_ACCELERATION = 10;
-    static final int CUSTOM_TYPE_MAGNETIC_FIELD = 11;
-    static final int CUSTOM_TYPE_MAGNETIC_FIELD_UNCALIBRATED = 12;
-    static final int CUSTOM_TYPE_PRESSURE = 13;
-    static final int CUSTOM_TYPE_PROXIMITY = 14;
-    static final int CUSTOM_TYPE_RELATIVE_HUMIDITY = 15;
-    static final int CUSTOM_TYPE_ROTATION_VECTOR = 16;
-    static final int CUSTOM_TYPE_STEP_COUNTER = 17;
+    // Number of samples each sensor's ring buffer can hold before the oldest
+    // samples get overwritten, e.g. 5 seconds of data at 200 Hz
+    static final int SAMPLE_BUFFER_CAPACITY = 1024;
+
+    // Returned by conditional reads (e.g. getSensorValuesIfNewer) if the
+    // caller has the most recent data already, the JSON helpers in
+    // jniglue.c return None for it without converting or decoding anything
+    static final String UNCHANGED = "";
+
+    // Default rate used by start_sensing if the caller doesn't ask for one,
+    // this is what SensorManager.SENSOR_DELAY_NORMAL stands for
+    static final int DEFAULT_SAMPLING_PERIOD_US = 200000;
+
+    // Default time after which a sensor without references that hasn't been
+    // read is stopped
+    static final int DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    // Guarded by the SensorService instance for writing
+    private volatile int idle_timeout_ms = DEFAULT_IDLE_TIMEOUT_MS;
+    private boolean idle_sweep_scheduled;
+
+    // Incremented by the sensor thread before and after it stores a sample,
+    // i.e. odd while it is storing one, cf. getSnapshot
+    // Samples pumped from the broker are not counted, they are stored while
+    // holding the slot's monitor instead
+    private volatile long snapshot_sequence;
+
+    // How often getSnapshot tries to read all samples in between two sensor
+    // events before it takes the snapshot on the sensor thread instead
+    static final int SNAPSHOT_RETRIES = 8;
+
+    // How often waitForSample checks for new samples of sensors run by
+    // the broker, which can't signal across processes
+    static final int BROKER_POLL_MS = 10;
+
+    // How often the broker updates its heartbeat and polls the demand
+    static final int BROKER_TICK_MS = 1000;
+
+    // Whether this process is the sensor broker, and the memory shared with
+    // the other processes. In the other processes shared_memory is null
+    // until a broker is found.
+    private boolean is_broker;
+    private volatile SensorSharedMemory shared_memory;
+
+    // Whether this process reads sensors through the broker, cf.
+    // setBrokerEnabled, guarded by the SensorService instance
+    private boolean broker_enabled = true;
+
+    // Guarded by the SensorService instance
+    private int next_stage_id = 1;
+
+    // Path of the sensor recordings, relative to the app's files directory
+    static final String RECORDINGS_PATH = "recordings/";
+
+    // The running recording, if any, replaced while holding the
+    // SensorService monitor (cf. startRecording)
+    private volatile SensorRecorder recorder;
+
+    // The running replay, if any, replaced while holding the SensorService
+    // monitor (cf. startReplay). While replaying, sensors are only
+    // registered with the replay, not with Android or the broker.
+    private volatile SensorReplay replay;
+
+    // The slots of sensor types that the device doesn't have, which only
+    // exist while they are replayed (cf. startReplay). The slots are kept
+    // for later replays, since native code caches their latest sample
+    // buffers (cf. sensors.c). Guarded by the SensorService instance
+    private final SparseArray<SensorSlot> replay_slots =
+            new SparseArray<SensorSlot>();
+
+    // The running orientation engine, if any, and the virtual slot it
+    // publishes to (cf. startOrientation). The slot is kept once created,
+    // since native code caches its latest sample buffer (cf. sensors.c).
+    // Guarded by the SensorService instance
+    private SensorOrientation orientation;
+    private SensorSlot orientation_slot;
 
     // Used to initialize all the sensors
     private SensorManager sensor_manager;
 
-    // We need all of those sensors to register listener on them
+    // getSensorList's result, built in init() as the list of sensors only
+    // changes when a dynamic sensor (e.g. of a USB device) is connected or
+    // disconnected. Then it is cleared, rebuilt on the next call, and the
+    // version is increased, so that callers that cache the list too (cf.
+    // sensors.c) know when to ask again.
+    private volatile String sensor_list_json;
+    private volatile int sensor_list_version;
+    private SensorManager.DynamicSensorCallback dynamic_sensor_callback;
+
+    // Receives the events of one-shot sensors (e.g. significant motion),
+    // which can't be registered like the other sensors, cf. waitForTrigger
+    private final TriggerEventListener trigger_listener =
+            new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            on_trigger(event);
+        }
+    };
+
+    // All sensor listeners are registered on this thread's looper
+    private HandlerThread sensor_thread;
+    private Handler sensor_handler;
+    private final SensorThreadStats sensor_thread_stats =
+            new SensorThreadStats();
+
+    // Registry of all sensors supported by the device, keyed by Android
+    // sensor type (Sensor.TYPE_*), one slot (default sensor) per type
     // Most of the devices won't support most of the sensors
     // But hey, if Android does, so do we
-    // Note:
-    // Using sensors that only fire an event when something interesting happened
-    // are omitted: TYPE_SIGNIFICANT_MOTION, TYPE_STEP_DETECTOR
-    private Sensor accelerometer;
-    private Sensor ambient_temperature;
-    private Sensor game_rotation_vector;
-    private Sensor geomagnetic_rotation_vector;
-    private Sensor gravity;
-    private Sensor gyroscope;
-    private Sensor gyroscope_uncalibrated;
-    private Sensor heart_rate;
-    private Sensor light;
-    private Sensor linear_acceleration;
-    private Sensor magnetic_field;
-    private Sensor magnetic_field_uncalibrated;
-    private Sensor pressure;
-    private Sensor proximity;
-    private Sensor relative_humidity;
-    private Sensor rotation_vector;
-    private Sensor step_counter;
-
-    // For each Sensor we store the data (timestamp + values) that we received 
-    // upon a previously registered ``onSensorChange'' as JSONArray
-    // New values overwrite previous values
-    private JSONArray accelerometer_json;
-    private JSONArray ambient_temperature_json;
-    private JSONArray game_rotation_vector_json;
-    private JSONArray geomagnetic_rotation_vector_json;
-    private JSONArray gravity_json;
-    private JSONArray gyroscope_json;
-    private JSONArray gyroscope_uncalibrated_json;
-    private JSONArray heart_rate_json;
-    private JSONArray light_json;
-    private JSONArray linear_acceleration_json;
-    private JSONArray magnetic_field_json;
-    private JSONArray magnetic_field_uncalibrated_json;
-    private JSONArray pressure_json;
-    private JSONArray proximity_json;
-    private JSONArray relative_humidity_json;
-    private JSONArray rotation_vector_json;
-    private JSONArray step_counter_json;
+    //
+    // For each Sensor the slot stores the samples (timestamps + values) that
+    // we received upon a previously registered ``onSensorChange'' in a ring
+    // buffer of primitive arrays. The buffers are preallocated so that
+    // receiving a sensor event does not allocate any memory. The most recent
+    // sample is the current value of a sensor, JSON is only created when a
+    // caller asks for a value.
+    //
+    // The registry is replaced as a whole and never modified in place,
+    // so that it can be read concurrently without locking
+    private volatile SparseArray<SensorSlot> sensor_slots =
+            new SparseArray<SensorSlot>();
 
     /* See Initialization on Demand Holder pattern */
     private static class SensorServiceHolder {
@@ -128,10 +227,11 @@ public class SensorService implements SensorEventListener  {
 
 
     /*
-     * Initializes default sensors for each sensor type
+     * Starts the sensor thread and creates a registry slot for each sensor
+     * type supported on the device
      *
      */
-    public void init(Context context) {
+    public synchronized void init(Context context) {
         Log.d(TAG, "Entering init");
 
         cached_context = context;
@@ -139,42 +239,306 @@ public class SensorService implements SensorEventListener  {
         sensor_manager = (SensorManager)cached_context.getSystemService(
             cached_context.SENSOR_SERVICE);
 
+        if (sensor_thread == null) {
+            Log.d(TAG, "Starting sensor thread");
+            sensor_thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_DISPLAY);
+            sensor_thread.start();
+            sensor_handler = new Handler(sensor_thread.getLooper());
+        }
+
+        if (!is_broker) {
+            start_broker();
+        }
+
         // I guess we can get all the sensors right away
-        accelerometer = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_ACCELEROMETER);
-        ambient_temperature = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_AMBIENT_TEMPERATURE);
-        game_rotation_vector = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_GAME_ROTATION_VECTOR);
-        geomagnetic_rotation_vector = sensor_manager.getDefaultSensor(
-                Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR);
-        gravity = sensor_manager.getDefaultSensor(Sensor.TYPE_GRAVITY);
-        gyroscope = sensor_manager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-        gyroscope_uncalibrated = sensor_manager.getDefaultSensor(
-                Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
-        heart_rate = sensor_manager.getDefaultSensor(Sensor.TYPE_HEART_RATE);
-        light = sensor_manager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        linear_acceleration = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_LINEAR_ACCELERATION);
-        magnetic_field = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_MAGNETIC_FIELD);
-        magnetic_field_uncalibrated = sensor_manager.getDefaultSensor(
-                Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED);
-        pressure = sensor_manager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        proximity = sensor_manager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-        relative_humidity = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_RELATIVE_HUMIDITY);
-        rotation_vector = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_ROTATION_VECTOR);
-        step_counter = sensor_manager.getDefaultSensor(
-            Sensor.TYPE_STEP_COUNTER);
+        // Use the default sensor of each type, or the first one listed if
+        // there is no default sensor (e.g. for vendor specific types)
+        SparseArray<SensorSlot> slots = new SparseArray<SensorSlot>();
+        for (Sensor sensor : sensor_manager.getSensorList(Sensor.TYPE_ALL)) {
+            int sensor_type = sensor.getType();
+            if (slots.get(sensor_type) != null) {
+                continue;
+            }
+            Sensor default_sensor = sensor_manager.getDefaultSensor(
+                    sensor_type);
+            if (default_sensor == null) {
+                default_sensor = sensor;
+            }
+            slots.put(sensor_type,
+                    new SensorSlot(default_sensor, SAMPLE_BUFFER_CAPACITY));
+        }
+        sensor_slots = slots;
+
+        try {
+            sensor_list_json = build_sensor_list();
+        } catch (JSONException e) {
+            // getSensorList tries again
+            Log.d(TAG, "Could not serialize sensor list: " + e.toString());
+            sensor_list_json = null;
+        }
+
+        // Dynamic sensors are only available as of Android 7.0
+        if (dynamic_sensor_callback == null &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                sensor_manager.isDynamicSensorDiscoverySupported()) {
+            dynamic_sensor_callback = new SensorManager.DynamicSensorCallback() {
+                @Override
+                public void onDynamicSensorConnected(Sensor sensor) {
+                    Log.d(TAG, "Dynamic sensor connected: " + sensor.getName());
+                    add_dynamic_sensor(sensor);
+                }
+
+                @Override
+                public void onDynamicSensorDisconnected(Sensor sensor) {
+                    Log.d(TAG, "Dynamic sensor disconnected: " +
+                            sensor.getName());
+                    invalidate_sensor_list();
+                }
+            };
+            sensor_manager.registerDynamicSensorCallback(
+                    dynamic_sensor_callback, sensor_handler);
+        }
+    }
+
+
+    /*
+     * Internal helper that adds a slot for a newly connected dynamic sensor
+     * if there is no sensor of its type yet, and invalidates the sensor list
+     *
+     * The slot of a disconnected sensor is kept, it just doesn't receive
+     * samples anymore.
+     *
+     */
+    private synchronized void add_dynamic_sensor(Sensor sensor) {
+        if (sensor_slots.get(sensor.getType()) == null) {
+            SparseArray<SensorSlot> slots = sensor_slots.clone();
+            slots.put(sensor.getType(),
+                    new SensorSlot(sensor, SAMPLE_BUFFER_CAPACITY));
+            sensor_slots = slots;
+        }
+        invalidate_sensor_list();
+    }
+
+
+    private synchronized void invalidate_sensor_list() {
+        sensor_list_json = null;
+        sensor_list_version++;
+    }
+
+
+    /*
+     * Initializes this process as the sensor broker, i.e. creates the
+     * memory shared with the other processes, with one entry per sensor type
+     * (cf. SensorBrokerService.java)
+     *
+     */
+    synchronized void initBroker(Context context) throws IOException {
+        Log.d(TAG, "Entering initBroker");
+
+        is_broker = true;
+        init(context);
+
+        SparseArray<SensorSlot> slots = sensor_slots;
+        int[] sensor_types = new int[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            sensor_types[i] = slots.keyAt(i);
+        }
+        shared_memory = SensorSharedMemory.create(context.getFilesDir(),
+                sensor_types);
+        for (int i = 0; i < slots.size(); i++) {
+            if (i < SensorSharedMemory.MAX_ENTRIES) {
+                slots.valueAt(i).shared_entry = i;
+            }
+        }
+        sensor_handler.post(broker_tick);
+    }
+
+
+    /*
+     * Internal helper that asks Android to start the sensor broker, which
+     * is a no-op if it is running already
+     *
+     */
+    private void start_broker() {
+        try {
+            cached_context.startService(
+                    new Intent(cached_context, SensorBrokerService.class));
+        } catch (RuntimeException e) {
+            // E.g. SecurityException, we just keep using local listeners
+            Log.d(TAG, "Could not start sensor broker: " + e.toString());
+        }
+    }
+
+
+    /*
+     * Updates the broker's heartbeat and keeps the sensors running that the
+     * other processes demand, at the shortest sampling period and max report
+     * latency that any of them asked for, cf. SensorSharedMemory.demand
+     * The broker's idle sweep stops them once all demands end.
+     *
+     * Runs on the broker's sensor thread every BROKER_TICK_MS
+     *
+     */
+    private final Runnable broker_tick = new Runnable() {
+        @Override
+        public void run() {
+            SensorSharedMemory memory = shared_memory;
+            memory.heartbeat();
+
+            long now = SystemClock.elapsedRealtime();
+            SparseArray<SensorSlot> slots = sensor_slots;
+            for (int i = 0; i < slots.size(); i++) {
+                SensorSlot slot = slots.valueAt(i);
+                int entry = slot.shared_entry;
+                int sampling_period_us = entry >= 0 ?
+                        memory.getSamplingPeriod(entry, now) : -1;
+                if (sampling_period_us >= 0) {
+                    keep_alive(slot, now, sampling_period_us,
+                            memory.getMaxReportLatency(entry, now));
+                }
+            }
+            sensor_handler.postDelayed(this, BROKER_TICK_MS);
+        }
+    };
+
+
+    /*
+     * Internal helper used by the broker to start or keep running a sensor
+     * that is demanded by another process, re-registers it if the demanded
+     * rate changed, e.g. because the fastest reader is gone
+     *
+     */
+    private synchronized void keep_alive(SensorSlot slot, long now,
+            int sampling_period_us, int max_report_latency_us) {
+        slot.last_read_ms = now;
+        if (slot.registered &&
+                slot.sampling_period_us == sampling_period_us &&
+                slot.max_report_latency_us == max_report_latency_us) {
+            return;
+        }
+        try {
+            validate_rate(slot.sensor, sampling_period_us,
+                    max_report_latency_us);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, e.getMessage());
+            return;
+        }
+        register(slot, sampling_period_us, max_report_latency_us);
+        schedule_idle_sweep();
+    }
+
+
+    /*
+     * Internal helper that returns the memory shared with the broker,
+     * trying to attach to it if this hasn't happened yet
+     *
+     * Returns null in the broker itself, if there is no broker or if the
+     * broker is disabled (cf. setBrokerEnabled)
+     *
+     * Must be called holding the SensorService monitor
+     *
+     */
+    private SensorSharedMemory attach_shared_memory() {
+        if (is_broker || !broker_enabled) {
+            return null;
+        }
+        if (shared_memory == null && cached_context != null) {
+            shared_memory = SensorSharedMemory.attach(
+                    cached_context.getFilesDir());
+            if (shared_memory != null) {
+                Log.d(TAG, "Attached to sensor broker");
+            }
+        }
+        return shared_memory;
+    }
+
+
+    /*
+     * Internal helper that falls back to local listeners for all sensors
+     * that were run by the broker, once the broker is gone
+     *
+     * Must be called holding the SensorService monitor
+     *
+     */
+    private void detach_shared_memory() {
+        Log.d(TAG, "Sensor broker is gone, falling back to local sensors");
+
+        SensorSharedMemory memory = shared_memory;
+        shared_memory = null;
+        register_brokered_locally();
+        memory.close();
+        // Android restarts the broker anyway, unless we were too quick
+        start_broker();
+    }
+
+
+    /*
+     * Internal helper that registers all sensors that the broker runs for
+     * us with local listeners instead, at the same rate
+     *
+     * Must be called holding the SensorService monitor, with shared_memory
+     * or broker_enabled cleared, so that register doesn't use the broker
+     *
+     */
+    private void register_brokered_locally() {
+        SparseArray<SensorSlot> slots = sensor_slots;
+        for (int i = 0; i < slots.size(); i++) {
+            SensorSlot slot = slots.valueAt(i);
+            if (slot.brokered) {
+                unregister(slot);
+                register(slot, slot.sampling_period_us,
+                        slot.max_report_latency_us);
+            }
+        }
+    }
+
+
+    /*
+     * Internal helper that copies the samples the broker has published
+     * since the last pump into the slot's ring buffer and renews the
+     * demand for the sensor
+     *
+     */
+    private void pump(SensorSlot slot, long now) {
+        SensorSharedMemory memory = shared_memory;
+        synchronized (slot) {
+            if (!slot.brokered || memory == null) {
+                return;
+            }
+            renew_demand(slot, memory, now);
+            slot.shared_position = memory.pump(slot.shared_entry,
+                    slot.shared_position, slot);
+        }
+    }
+
+
+    /*
+     * Internal helper that renews our demand for a sensor run by the broker,
+     * or claims a new one if it expired and another process claimed it
+     * meanwhile (cf. SensorSharedMemory.renewDemand)
+     *
+     * Must be called holding the slot's monitor
+     *
+     */
+    private void renew_demand(SensorSlot slot, SensorSharedMemory memory,
+            long now) {
+        long until_ms = now + 2L * idle_timeout_ms;
+        if (slot.shared_reader >= 0 && memory.renewDemand(slot.shared_entry,
+                slot.shared_reader, until_ms)) {
+            return;
+        }
+        slot.shared_reader = memory.demand(slot.shared_entry, until_ms,
+                slot.sampling_period_us, slot.max_report_latency_us);
     }
 
 
     /*
      * Returns list of sensors supported on the device with
      * sensor specific information
-     * 
+     *
+     * The list is serialized once, cf. sensor_list_json
+     *
      * @return  String serialized JSON array of sensor info objects or null
      *
      * @todo We should loop better, and perform better error checking and signaling
@@ -198,6 +562,36 @@ public class SensorService implements SensorEventListener  {
     public String getSensorList() throws JSONException {
         Log.d(TAG, "Entering getSensorList");
 
+        String list_json = sensor_list_json;
+        if (list_json == null) {
+            synchronized (this) {
+                if (sensor_list_json == null) {
+                    sensor_list_json = build_sensor_list();
+                }
+                list_json = sensor_list_json;
+            }
+        }
+        return list_json;
+    }
+
+
+    /*
+     * Returns the version of the list returned by getSensorList, which
+     * changes whenever a dynamic sensor is connected or disconnected
+     *
+     * @return  int version
+     *
+     */
+    public int getSensorListVersion() {
+        return sensor_list_version;
+    }
+
+
+    /*
+     * Internal helper that serializes the list of sensors,
+     * cf. getSensorList
+     */
+    private String build_sensor_list() throws JSONException {
         List<Sensor> sensor_list = sensor_manager.getSensorList(Sensor.TYPE_ALL);
         if (sensor_list.size() > 0) {
             JSONArray sensors_properties_array_json = new JSONArray();
@@ -221,15 +615,11 @@ public class SensorService implements SensorEventListener  {
                     // Properties encoded as floats may contain NaN's.
                     // JSON and the JSON encoder cannot handle them.
                     // Thus, suppress these properties.
-                    Map<String, Float> m = new HashMap<String, Float>();
-                    m.put("max_range", sensor.getMaximumRange());
-                    m.put("power", sensor.getPower());
-                    m.put("resolution", sensor.getResolution());
-                    for (Map.Entry<String, Float> entry : m.entrySet()) {
-                        if (! Float.isNaN(entry.getValue())) {
-                            sensor_json.put(entry.getKey(), entry.getValue());
-                        }
-                    }
+                    put_number(sensor_json, "max_range",
+                            sensor.getMaximumRange());
+                    put_number(sensor_json, "power", sensor.getPower());
+                    put_number(sensor_json, "resolution",
+                            sensor.getResolution());
 
                 } catch (org.json.JSONException e) {
                     sensor_json.put("***ERROR***", e.toString());
@@ -242,609 +632,1882 @@ public class SensorService implements SensorEventListener  {
         return null;
     }
 
+
+    private static void put_number(JSONObject json, String key, float value)
+            throws JSONException {
+        if (!Float.isNaN(value)) {
+            json.put(key, value);
+        }
+    }
+
     /*
-     * Returns most recent acceleration values
-     * requires preceding start_sensing(CUSTOM_TYPE_ACCELEROMETER)
+     * Returns most recent values of a sensor
+     *
+     * Starts the sensor at the default rate if it isn't running, hence
+     * the first read of a sensor usually returns null. The sensor keeps
+     * running as long as it is read at least every idle_timeout_ms.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants), any type
+     *          returned by getSensorList(), including vendor specific types
      *
      * @return  String serialized JSON array of sensor values or null
      * i.e.:
      * [
-     * Time received, 
+     * Time received,
      * Time propagated,
-     * Acceleration force along the x axis (including gravity),
-     * Acceleration force along the y axis (including gravity),
-     * Acceleration force along the z axis (including gravity)
+     * Sensor value[0], ..., Sensor value[n-1]
      * ]
      *
+     * Sensor values by type, e.g.:
+     *  - TYPE_ACCELEROMETER, TYPE_GRAVITY, TYPE_LINEAR_ACCELERATION:
+     *      Acceleration force along the x, y and z axis
+     *      (TYPE_ACCELEROMETER including gravity, TYPE_LINEAR_ACCELERATION
+     *      excluding gravity, TYPE_GRAVITY only gravity)
+     *  - TYPE_GYROSCOPE:
+     *      Rate of rotation around the x, y and z axis
+     *  - TYPE_GYROSCOPE_UNCALIBRATED:
+     *      Rate of rotation (without drift compensation) around the x, y
+     *      and z axis, estimated drift around the x, y and z axis
+     *  - TYPE_MAGNETIC_FIELD:
+     *      Geomagnetic field strength along the x, y and z axis
+     *  - TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+     *      Geomagnetic field strength (w/o hard iron calibration) along the
+     *      x, y and z axis, iron bias estimation along the x, y and z axis
+     *  - TYPE_ROTATION_VECTOR, TYPE_GAME_ROTATION_VECTOR,
+     *    TYPE_GEOMAGNETIC_ROTATION_VECTOR:
+     *      Rotation vector component along the x, y and z axis
+     *      (x * sin(θ/2), ...), scalar component ((cos(θ/2)) if available
+     *  - TYPE_AMBIENT_TEMPERATURE: Ambient air temperature in °C
+     *  - TYPE_HEART_RATE: Heart rate in beats per minute
+     *  - TYPE_LIGHT: Illuminance lx
+     *  - TYPE_PRESSURE: Ambient air pressure in hPa or mbar
+     *  - TYPE_PROXIMITY: Distance from object in cm
+     *  - TYPE_RELATIVE_HUMIDITY: Ambient relative humidity in %
+     *  - TYPE_STEP_COUNTER: Number of steps taken by the user since the last
+     *      reboot while the sensor was activated
+     *
      */
-    public String getAcceleration() {
-        Log.d(TAG, "Entering getAcceleration");
+    public String getSensorValues(int sensor_type) {
+        Log.d(TAG, "Entering getSensorValues");
 
-        if (accelerometer_json != null) {
-            return accelerometer_json.toString();
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist.", sensor_type));
+            return null;
         }
-        return null;
+        touch(slot);
+        return slot.samples.getLatest();
     }
 
 
     /*
-     * Returns most recent ambient temperature
-     * requires preceding start_sensing(CUSTOM_TYPE_AMBIENT_TEMPERATURE)
+     * Returns the most recent sample of a sensor like getSensorValues, but
+     * only if it is newer than the one the caller has, i.e. if the sensor's
+     * sequence number, the number of samples stored so far, is greater than
+     * the passed one
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Ambient air temperature in °C
-     * ]
+     * Meant for callers that poll slow sensors (e.g. light or pressure,
+     * cf. setDeadband) much faster than they change, which then neither
+     * serialize nor decode samples they have seen already.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Sequence number of the last sample the caller has,
+     *                 0 if none
+     *
+     * @return  String UNCHANGED if there is no newer sample, or serialized
+     *          JSON array of the sequence number and the sample, e.g.:
+     *          [1523, [1469812254370, 7394561, 312.0]]
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist
      *
      */
-    public String getAmbientTemperature() {
-        Log.d(TAG, "Entering getAmbientTemperature");
-
-        if (ambient_temperature_json != null) {
-            return ambient_temperature_json.toString();
+    public String getSensorValuesIfNewer(int sensor_type, long last_sequence) {
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
         }
-        return null;
+        touch(slot);
+
+        // Read the sequence first, a sample stored meanwhile is returned
+        // with the older sequence and hence returned again next time,
+        // rather than skipped
+        long sequence = slot.samples.size();
+        if (sequence <= last_sequence) {
+            return UNCHANGED;
+        }
+        String sample = slot.samples.getLatest();
+        if (sample == null) {
+            return UNCHANGED;
+        }
+        return "[" + sequence + "," + sample + "]";
     }
 
 
     /*
-     * Returns most recent game rotation vector values
-     * requires preceding start_sensing(CUSTOM_TYPE_GAME_ROTATION_VECTOR)
+     * Returns all buffered samples of a sensor that were propagated after a
+     * given time, oldest first, at most `max` samples
      *
-     * @return  String serialized JSON array of sensor values or null
+     * Starts the sensor lazily like getSensorValues does
+     *
+     * Unlike getSensorValues, which only returns the most recent
+     * sample, this allows callers to drain all samples received since their
+     * last poll in one call. To continue where the last batch left off pass
+     * the timestamp of its last sample as `since_nanos`.
+     * Each sensor keeps the last SAMPLE_BUFFER_CAPACITY samples, if the caller
+     * polls less often, the oldest samples are lost.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Only return samples with a timestamp (ns) greater than this
+     * @param   int - Max number of returned samples
+     *
+     * @return  String serialized JSON array of sample arrays or null
      * i.e.:
      * [
-     * Time received, 
-     * Time propagated,
-     * Rotation vector component along the x axis (x * sin(θ/2)),
-     * Rotation vector component along the y axis (y * sin(θ/2)),
-     * Rotation vector component along the z axis (z * sin(θ/2))
+     *   [
+     *   Time received (ms),
+     *   Time propagated (ns!),
+     *   Sensor value[0], ..., Sensor value[n-1]
+     *   ], ...
      * ]
      *
      */
-    public String getGameRotationVector() {
-        Log.d(TAG, "Entering getGameRotationVector");
+    public String getSamplesSince(int sensor_type, long since_nanos, int max) {
+        Log.d(TAG, "Entering getSamplesSince");
 
-        if (game_rotation_vector_json != null) {
-            return game_rotation_vector_json.toString();
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist.", sensor_type));
+            return null;
         }
-        return null;
+        touch(slot);
+        return slot.samples.getSamplesSince(since_nanos, max);
     }
 
 
     /*
-     * Returns most recent geomagnetic rotation vector values
-     * requires preceding start_sensing(CUSTOM_TYPE_GEOMAGNETIC_ROTATION_VECTOR)
+     * Returns the most recent samples of several sensors at once, all from
+     * the same moment, i.e. no sensor event is stored while the samples are
+     * read
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
+     * The samples are read concurrently to the sensor thread, and read
+     * again if the sensor thread stored a sample meanwhile
+     * (cf. snapshot_sequence). If that keeps happening, e.g. during sensor
+     * storms, the snapshot is taken on the sensor thread itself.
+     *
+     * Samples of sensors run by the sensor broker are read while holding
+     * their slots' monitors, so that no other thread pumps samples into
+     * them meanwhile, after pumping all of them up to the same sample
+     * published by the broker (cf. SensorSharedMemory.getHeads).
+     *
+     * Like a read this starts the sensors that aren't running.
+     *
+     * @param   int[] - Android sensor types (Sensor.TYPE_* constants)
+     *
+     * @return  String serialized JSON array of sensor values, one item per
+     *          requested type in the same order, each like the return value
+     *          of getSensorValues, null if the sensor does not exist or has
+     *          no sample yet
+     * e.g.:
      * [
-     * Time received, 
-     * Time propagated,
-     * Rotation vector component along the x axis (x * sin(θ/2)),
-     * Rotation vector component along the y axis (y * sin(θ/2)),
-     * Rotation vector component along the z axis (z * sin(θ/2))
+     *   [1469812254370, 7394561, 0.07, 9.81, 0.13],
+     *   [1469812254369, 7394560, 0.001, -0.002, 0.0],
+     *   null
      * ]
      *
      */
-    public String getGeomagneticRotationVector() {
-        Log.d(TAG, "Entering getGeomagneticRotationVector");
+    public String getSnapshot(int[] sensor_types)
+            throws InterruptedException, ExecutionException {
+        Log.d(TAG, "Entering getSnapshot");
+
+        final SensorSlot[] slots = new SensorSlot[sensor_types.length];
+        SparseArray<SensorSlot> registry = sensor_slots;
+        for (int i = 0; i < sensor_types.length; i++) {
+            slots[i] = registry.get(sensor_types[i]);
+            if (slots[i] != null) {
+                touch(slots[i]);
+            }
+        }
 
-        if (geomagnetic_rotation_vector_json != null) {
-            return geomagnetic_rotation_vector_json.toString();
+        // Sorted by type, the order in which take_snapshot locks them
+        final SparseArray<SensorSlot> locked = new SparseArray<SensorSlot>();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                locked.put(slots[i].type, slots[i]);
+            }
         }
-        return null;
+
+        for (int attempt = 0; attempt < SNAPSHOT_RETRIES; attempt++) {
+            long sequence = snapshot_sequence;
+            if ((sequence & 1) == 0) {
+                String snapshot = take_snapshot(slots, locked, 0);
+                if (snapshot_sequence == sequence) {
+                    return snapshot;
+                }
+            }
+        }
+
+        // The sensor thread is the only one that stores samples of local
+        // sensors, hence nothing changes while it takes the snapshot
+        return run_on_sensor_thread(new Callable<String>() {
+            @Override
+            public String call() {
+                return take_snapshot(slots, locked, 0);
+            }
+        });
     }
 
 
     /*
-     * Returns most recent gravity values
-     * requires preceding start_sensing(CUSTOM_TYPE_GRAVITY)
+     * Internal helper that locks the passed slots one after another, in
+     * the order of their types, so that concurrent snapshots can't
+     * deadlock, then pumps the slots of sensors run by the broker up to
+     * the same sample and serializes the snapshot (cf. build_snapshot)
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Force of gravity along the x axis,
-     * Force of gravity along the y axis,
-     * Force of gravity along the z axis
-     * ]
-     * 
      */
-    public String getGravity() {
-        Log.d(TAG, "Entering getGravity");
+    private String take_snapshot(SensorSlot[] slots,
+            SparseArray<SensorSlot> locked, int index) {
+        if (index < locked.size()) {
+            synchronized (locked.valueAt(index)) {
+                return take_snapshot(slots, locked, index + 1);
+            }
+        }
 
-        if (gravity_json != null) {
-            return gravity_json.toString();
+        SensorSharedMemory memory = shared_memory;
+        int brokered = 0;
+        for (int i = 0; i < locked.size(); i++) {
+            if (locked.valueAt(i).brokered) {
+                brokered++;
+            }
         }
-        return null;
+        if (memory != null && brokered > 0) {
+            int[] entries = new int[brokered];
+            int[] heads = new int[brokered];
+            int j = 0;
+            for (int i = 0; i < locked.size(); i++) {
+                if (locked.valueAt(i).brokered) {
+                    entries[j++] = locked.valueAt(i).shared_entry;
+                }
+            }
+            memory.getHeads(entries, heads);
+            j = 0;
+            for (int i = 0; i < locked.size(); i++) {
+                SensorSlot slot = locked.valueAt(i);
+                if (slot.brokered) {
+                    slot.shared_position = memory.pump(slot.shared_entry,
+                            slot.shared_position, heads[j++], slot);
+                }
+            }
+        }
+        return build_snapshot(slots);
     }
 
 
     /*
-     * Returns most recent gyroscope values
-     * requires preceding start_sensing(CUSTOM_TYPE_GYROSCOPE)
-     *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received,
-     * Time propagated,
-     * Rate of rotation around the x axis,
-     * Rate of rotation around the y axis,
-     * Rate of rotation around the z axis
-     * ]
-     * 
+     * Internal helper that serializes the most recent sample of each passed
+     * slot, null for slots that are null or have no sample, to a JSON array
      */
-    public String getGyroscope() {
-        Log.d(TAG, "Entering getGyroscope");
-
-        if (gyroscope_json != null) {
-            return gyroscope_json.toString();
+    private String build_snapshot(SensorSlot[] slots) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < slots.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String sample = slots[i] != null ? slots[i].samples.getLatest() :
+                    null;
+            sb.append(sample != null ? sample : "null");
         }
-        return null;
+        sb.append(']');
+        return sb.toString();
     }
 
 
     /*
-     * Returns most recent uncalibrated gyroscope values
-     * requires preceding start_sensing(CUSTOM_TYPE_GYROSCOPE_UNCALIBRATED)
+     * Blocks until a sensor has a sample with a timestamp greater than
+     * `after_timestamp` or until the timeout expires, whatever comes first
+     *
+     * Returns right away if there already is such a sample. Otherwise the
+     * calling thread waits until the sensor thread signals a new sample,
+     * hence callers don't have to poll for fresh data. Sensors run by the
+     * sensor broker in another process can't signal us, for them the
+     * waiting thread checks for new samples every BROKER_POLL_MS.
+     *
+     * Like a read this starts the sensor if it isn't running. Use
+     * getSensorValues to get the sample.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Timestamp (ns) of the last sample the caller has seen
+     * @param   long - Max time to wait in milliseconds
+     *
+     * @return  boolean - true if there is a newer sample, false on timeout
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist or the
+     *          timeout is negative
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Rate of rotation (without drift compensation) around the x axis,
-     * Rate of rotation (without drift compensation) around the y axis,
-     * Rate of rotation (without drift compensation) around the z axis,
-     * Estimated drift around the x axis,
-     * Estimated drift around the y axis,
-     * Estimated drift around the z axis
-     * ]
-     * 
      */
-    public String getGyroscopeUncalibrated() {
-        Log.d(TAG, "Entering getGyroscopeUncalibrated");
+    public boolean waitForSample(int sensor_type, long after_timestamp,
+            long timeout_ms) throws InterruptedException {
+        Log.d(TAG, "Entering waitForSample");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
+        }
+        if (timeout_ms < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative.");
+        }
 
-        if (gyroscope_uncalibrated_json != null) {
-            return gyroscope_uncalibrated_json.toString();
+        long deadline = SystemClock.elapsedRealtime() + timeout_ms;
+        synchronized (slot.sample_signal) {
+            // Register as waiter before checking for a sample, so that the
+            // sensor thread either sees us waiting or we see its sample
+            slot.waiters++;
+            try {
+                for (;;) {
+                    touch(slot);
+                    if (slot.samples.getLatestTimestamp() > after_timestamp) {
+                        return true;
+                    }
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    if (slot.brokered) {
+                        remaining = Math.min(remaining, BROKER_POLL_MS);
+                    }
+                    slot.sample_signal.wait(remaining);
+                }
+            } finally {
+                slot.waiters--;
+            }
         }
-        return null;
     }
 
-  
 
     /*
-     * Returns most recent heart rate value
-     * requires preceding start_sensing(CUSTOM_TYPE_HEART_RATE)
+     * Blocks until a sensor has `batch_size` samples with a timestamp
+     * greater than `since_nanos`, or the first of them has waited
+     * `max_latency_ms` since it was received, or the timeout expires,
+     * whatever comes first, and returns those samples like getSamplesSince
+     * does, unless the timeout expired first
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Heart rate in beats per minute
-     * ]
+     * The latency is measured from the time the first sample was received,
+     * not from the call, so that callers may wait with a timeout shorter
+     * than the latency, e.g. to check whether they should stop, and call
+     * again without holding back the pending samples any longer.
+     *
+     * Meant for native dispatcher threads that deliver samples to Python
+     * callbacks in batches (cf. sensor.add_callback in sensors.c), so that
+     * they wake up once per batch instead of once per sample. Like
+     * waitForSample this starts the sensor if it isn't running, and keeps
+     * it running as long as it is waited for.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Timestamp (ns) of the last sample the caller has seen
+     * @param   int - Number of samples to wait for
+     * @param   long - Max time to hold back a sample in milliseconds
+     * @param   long - Max time to wait in milliseconds
+     *
+     * @return  String serialized JSON array of sample arrays, cf.
+     *          getSamplesSince, or UNCHANGED if the timeout expired before
+     *          the batch was complete or the latency was over
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist, or
+     *          the batch size, latency or timeout is invalid
      *
      */
-    public String getHeartRate() {
-        Log.d(TAG, "Entering getHeartRate");
+    public String waitForSamples(int sensor_type, long since_nanos,
+            int batch_size, long max_latency_ms, long timeout_ms)
+            throws InterruptedException {
+        Log.d(TAG, "Entering waitForSamples");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
+        }
+        if (batch_size <= 0 || batch_size > slot.samples.capacity) {
+            throw new IllegalArgumentException(String.format(
+                    "Batch size must be between 1 and %d.",
+                    slot.samples.capacity));
+        }
+        if (max_latency_ms < 0 || timeout_ms < 0) {
+            throw new IllegalArgumentException(
+                    "Latency and timeout must not be negative.");
+        }
 
-        if (heart_rate_json != null) {
-            return heart_rate_json.toString();
+        long deadline = SystemClock.elapsedRealtime() + timeout_ms;
+        synchronized (slot.sample_signal) {
+            // Cf. waitForSample
+            slot.waiters++;
+            try {
+                for (;;) {
+                    touch(slot);
+                    int count = slot.samples.countSince(since_nanos);
+                    if (count >= batch_size) {
+                        break;
+                    }
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (count > 0) {
+                        // Samples are received at wall clock time
+                        long latency_remaining =
+                                slot.samples.getReceivedSince(since_nanos) +
+                                max_latency_ms - System.currentTimeMillis();
+                        if (latency_remaining <= 0) {
+                            break;
+                        }
+                        remaining = Math.min(remaining, latency_remaining);
+                    }
+                    if (remaining <= 0) {
+                        return UNCHANGED;
+                    }
+                    if (slot.brokered) {
+                        remaining = Math.min(remaining, BROKER_POLL_MS);
+                    }
+                    slot.sample_signal.wait(remaining);
+                }
+            } finally {
+                slot.waiters--;
+            }
         }
-        return null;
+        return slot.samples.getSamplesSince(since_nanos,
+                slot.samples.capacity);
     }
 
 
     /*
-     * Returns most recent light value
-     * requires preceding start_sensing(CUSTOM_TYPE_LIGHT)
+     * Blocks until a sensor reports its next event, or until the timeout
+     * expires, whatever comes first, e.g. to wait for significant motion
+     * before starting the accelerometer, instead of polling it all the time
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Illuminance lx
-     * ]
+     * For one-shot sensors (e.g. TYPE_SIGNIFICANT_MOTION) this requests a
+     * trigger, which Android disarms after it fired once, and which is
+     * cancelled if it didn't fire before the timeout and nobody else waits
+     * for it. The event is stored like a sample of the other sensors, i.e.
+     * getSensorValues returns the last one. Other sensors, including
+     * TYPE_STEP_DETECTOR, are started like a read starts them, and the call
+     * returns their next sample.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Max time to wait in milliseconds
+     *
+     * @return  String serialized JSON array of the event like
+     *          getSensorValues returns it, or null on timeout
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist or the
+     *          timeout is negative
      *
      */
-    public String getLight() {
-        Log.d(TAG, "Entering getLight");
+    public String waitForTrigger(int sensor_type, long timeout_ms)
+            throws InterruptedException {
+        Log.d(TAG, "Entering waitForTrigger");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
+        }
+        boolean one_shot = slot.sensor != null &&
+                slot.sensor.getReportingMode() ==
+                Sensor.REPORTING_MODE_ONE_SHOT;
 
-        if (light_json != null) {
-            return light_json.toString();
+        long after_timestamp = slot.samples.getLatestTimestamp();
+        if (one_shot) {
+            request_trigger(slot);
         }
-        return null;
+        boolean triggered = waitForSample(sensor_type, after_timestamp,
+                timeout_ms);
+        if (one_shot && !triggered) {
+            cancel_trigger(slot);
+        }
+        return triggered ? slot.samples.getLatest() : null;
     }
 
+
     /*
-     * Returns most recent linear acceleration values
-     * requires preceding start_sensing(CUSTOM_TYPE_LINEAR_ACCELERATION)
-     *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Acceleration force along the x axis (excluding gravity),
-     * Acceleration force along the y axis (excluding gravity),
-     * Acceleration force along the z axis (excluding gravity)
-     * ]
-     * 
+     * Internal helper that requests a one-shot sensor's trigger, unless it
+     * is requested already or a trace is replayed, which delivers the events
      */
-    public String getLinearAcceleration() {
-        Log.d(TAG, "Entering getLinearAcceleration");
+    private synchronized void request_trigger(SensorSlot slot) {
+        if (slot.trigger_requested || replay != null) {
+            return;
+        }
+        if (!sensor_manager.requestTriggerSensor(trigger_listener,
+                slot.sensor)) {
+            throw new IllegalStateException(String.format(
+                    "Could not request trigger of sensor %d.", slot.type));
+        }
+        slot.trigger_requested = true;
+    }
+
 
-        if (linear_acceleration_json != null) {
-            return linear_acceleration_json.toString();
+    /*
+     * Internal helper that cancels a one-shot sensor's trigger, unless other
+     * threads still wait for it
+     */
+    private synchronized void cancel_trigger(SensorSlot slot) {
+        if (!slot.trigger_requested || slot.waiters > 0) {
+            return;
         }
-        return null;
+        sensor_manager.cancelTriggerSensor(trigger_listener, slot.sensor);
+        slot.trigger_requested = false;
     }
 
 
     /*
-     * Returns most recent magnetic field values
-     * requires preceding start_sensing(CUSTOM_TYPE_MAGNETIC_FIELD)
+     * Internal helper that stores the event of a one-shot sensor
+     *
+     * Android calls trigger listeners on the main thread, the event is
+     * handed to the sensor thread, which is the only writer of the slots
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Geomagnetic field strength along the x axis,
-     * Geomagnetic field strength along the y axis,
-     * Geomagnetic field strength along the z axis
-     * ]
-     * 
      */
-    public String getMagneticField() {
-        Log.d(TAG, "Entering getMagneticField");
+    private void on_trigger(TriggerEvent event) {
+        final SensorSlot slot = sensor_slots.get(event.sensor.getType());
+        if (slot == null) {
+            return;
+        }
+        synchronized (this) {
+            // Android disarms the trigger once it fired
+            slot.trigger_requested = false;
+        }
 
-        if (magnetic_field_json != null) {
-            return magnetic_field_json.toString();
+        final long timestamp = event.timestamp;
+        final float[] values = event.values.clone();
+        sensor_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                publish(slot, timestamp, values, values.length);
+            }
+        });
+    }
+
+
+    /*
+     * Returns the direct ByteBuffer that always holds the most recent
+     * sample of a sensor (cf. SensorRingBuffer.java), or null if the sensor
+     * does not exist
+     *
+     * The buffer is meant to be registered once with native code, which
+     * reads samples from it without calling into Java and without JSON.
+     * Native code has to call touchSensor before each read.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     *
+     */
+    public ByteBuffer getLatestBuffer(int sensor_type) {
+        Log.d(TAG, "Entering getLatestBuffer");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            return null;
         }
-        return null;
+        return slot.samples.latest;
     }
 
 
     /*
-     * Returns most recent uncalibrated magnetic field values
-     * requires preceding start_sensing(CUSTOM_TYPE_MAGNETIC_FIELD_UNCALIBRATED)
+     * Records a read of a sensor, i.e. does what getSensorValues does
+     * except returning a value (cf. getLatestBuffer)
+     *
+     * Called on every native read, hence no logging
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Geomagnetic field strength (w/o hard iron calibration) along the x axis,
-     * Geomagnetic field strength (w/o hard iron calibration) along the y axis,
-     * Geomagnetic field strength (w/o hard iron calibration) along the z axis,
-     * Iron bias estimation along the x axis,
-     * Iron bias estimation along the y axis,
-     * Iron bias estimation along the z axis
-     * ]
-     * 
      */
-    public String getMagneticFieldUncalibrated() {
-        Log.d(TAG, "Entering getMagneticFieldUncalibrated");
+    public void touchSensor(int sensor_type) {
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot != null) {
+            touch(slot);
+        }
+    }
+
 
-        if (magnetic_field_uncalibrated_json != null) {
-            return magnetic_field_uncalibrated_json.toString();
+    /*
+     * Internal helper that records a read of a sensor and starts the sensor
+     * at the default rate if it isn't running
+     *
+     * Sensors that can't be streamed (one-shot sensors) are not started.
+     * Lazily started sensors hold no reference, they are stopped by the
+     * idle sweep once they aren't read anymore.
+     *
+     */
+    private void touch(SensorSlot slot) {
+        long now = SystemClock.elapsedRealtime();
+        slot.last_read_ms = now;
+        if (slot.brokered) {
+            pump(slot, now);
+            return;
+        }
+        if (slot.registered || (slot.sensor != null &&
+                slot.sensor.getReportingMode() ==
+                Sensor.REPORTING_MODE_ONE_SHOT)) {
+            return;
+        }
+        synchronized (this) {
+            if (!slot.registered) {
+                Log.d(TAG, String.format("Lazily starting sensor %d",
+                        slot.type));
+                register(slot, DEFAULT_SAMPLING_PERIOD_US, 0);
+                schedule_idle_sweep();
+            }
         }
-        return null;
     }
-   
+
 
     /*
-     * Returns most recent linear pressure values
-     * requires preceding start_sensing(CUSTOM_TYPE_PRESSURE)
+     * Registers listener for sensor value updates for a specific sensor
+     * at the default rate (DEFAULT_SAMPLING_PERIOD_US), without batching,
+     * and takes a reference on it (cf. stop_sensing)
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Ambient air pressure in hPa or mbar 
-     * ]
-     * 
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
      */
-    public String getPressure() {
-        Log.d(TAG, "Entering getPressure");
+    public void start_sensing(int sensor_type) {
+        Log.d(TAG, "Entering start_sensing");
 
-        if (pressure_json != null) {
-            return pressure_json.toString();
+        // All sensors available on the device are in the registry
+        // If a Sensor is not available this means it doesn't exist on the
+        // device or the app doesn't have the necessary permissions, or the
+        // calling function passed a wrong constant
+        if (sensor_slots.get(sensor_type) == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist or app has not the necessary permissions.", sensor_type));
+            return;
         }
-        return null;
+        start_sensing(sensor_type, DEFAULT_SAMPLING_PERIOD_US, 0);
     }
 
 
     /*
-     * Returns most recent proximity values
-     * requires preceding start_sensing(CUSTOM_TYPE_PROXIMITY)
+     * Registers listener for sensor value updates for a specific sensor
+     * at a specific rate, optionally allowing the sensor to batch events
+     * in its hardware FIFO
+     *
+     * With a max report latency greater than zero, sensors that have a
+     * FIFO (cf. "fifo_max_event_count" in getSensorList) may hold back
+     * events up to that latency and deliver them in one batch, which lets
+     * the CPU sleep in between. Use flush() to get the held back events
+     * right away. Sensors without FIFO ignore the latency.
+     *
+     * Each call takes a reference on the sensor, which has to be released
+     * with stop_sensing. If the sensor is already registered with a
+     * different rate or latency, it is re-registered with the new ones,
+     * i.e. the last caller's rate applies.
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  int - Sampling period in microseconds, must lie within the
+     *                sensor's "min_delay" and "max_delay" (cf. getSensorList)
+     * @params  int - Max report latency in microseconds, 0 disables batching
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist or
+     *          the rate is not supported by the sensor
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Distance from object in cm
-     * ]
-     * 
      */
-    public String getProximity() {
-        Log.d(TAG, "Entering getProximity");
+    public synchronized void start_sensing(int sensor_type,
+            int sampling_period_us, int max_report_latency_us) {
+        Log.d(TAG, "Entering start_sensing");
 
-        if (proximity_json != null) {
-            return proximity_json.toString();
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist or app has not the necessary permissions.",
+                    sensor_type));
         }
-        return null;
+        validate_rate(slot.sensor, sampling_period_us, max_report_latency_us);
+
+        slot.refs++;
+        register(slot, sampling_period_us, max_report_latency_us);
     }
 
 
     /*
-     * Returns most recentrelative humidity values
-     * requires preceding start_sensing(CUSTOM_TYPE_RELATIVE_HUMIDITY)
+     * Internal helper that registers the listener for a sensor at the passed
+     * rate, unless it is already registered at that rate
+     *
+     * Sensors are run by the broker if there is one, unless they are
+     * already registered locally.
+     *
+     * Must be called holding the SensorService monitor
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Ambient relative humidity in %
-     * ]
-     * 
      */
-    public String getRelativeHumidity() {
-        Log.d(TAG, "Entering getRelativeHumidity");
+    private void register(SensorSlot slot, int sampling_period_us,
+            int max_report_latency_us) {
+
+        // Replayed samples arrive at the recorded rate anyway, and samples
+        // of virtual sensors (cf. startOrientation) whenever they are fused
+        if (replay != null || slot.sensor == null) {
+            slot.registered = true;
+            slot.sampling_period_us = sampling_period_us;
+            slot.max_report_latency_us = max_report_latency_us;
+            return;
+        }
 
-        if (relative_humidity_json != null) {
-            return relative_humidity_json.toString();
+        if ((!slot.registered || slot.brokered) &&
+                slot.stages.length == 0) {
+            SensorSharedMemory memory = attach_shared_memory();
+            int entry = memory != null ? memory.findEntry(slot.type) : -1;
+            int reader = entry >= 0 ? memory.demand(entry,
+                    SystemClock.elapsedRealtime() + 2L * idle_timeout_ms,
+                    sampling_period_us, max_report_latency_us) : -1;
+            if (reader >= 0) {
+                synchronized (slot) {
+                    if (!slot.brokered) {
+                        // Only pump samples published from now on
+                        slot.shared_entry = entry;
+                        slot.shared_position = memory.getHead(entry);
+                        slot.brokered = true;
+                    }
+                    slot.shared_reader = reader;
+                }
+                slot.registered = true;
+                slot.sampling_period_us = sampling_period_us;
+                slot.max_report_latency_us = max_report_latency_us;
+                schedule_idle_sweep();
+                return;
+            }
+        }
+        if (slot.brokered) {
+            // We can't demand the sensor from the broker anymore
+            unregister(slot);
+        }
+
+        // Note: Android checks that listener are registered only once,
+        // hence we need to unregister to change the rate
+        if (slot.registered) {
+            if (slot.sampling_period_us == sampling_period_us &&
+                    slot.max_report_latency_us == max_report_latency_us) {
+                return;
+            }
+            sensor_manager.unregisterListener(this, slot.sensor);
+            slot.registered = false;
+        }
+
+        if (sensor_manager.registerListener(this, slot.sensor,
+                sampling_period_us, max_report_latency_us, sensor_handler)) {
+            slot.registered = true;
+            slot.sampling_period_us = sampling_period_us;
+            slot.max_report_latency_us = max_report_latency_us;
+        } else {
+            Log.d(TAG, String.format("Could not register listener for sensor %d",
+                    slot.type));
         }
-        return null;
     }
 
 
     /*
-     * Returns most recent rotation vector values
-     * requires preceding start_sensing(CUSTOM_TYPE_ROTATION_VECTOR)
+     * Internal helper that unregisters the listener for a sensor, or stops
+     * pumping its samples from the broker, which stops the sensor once no
+     * other process demands it anymore
+     *
+     * Must be called holding the SensorService monitor
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Rotation vector component along the x axis (x * sin(θ/2)),
-     * Rotation vector component along the y axis (y * sin(θ/2)),
-     * Rotation vector component along the z axis (z * sin(θ/2)),
-     * Scalar component of the rotation vector ((cos(θ/2))
-     * ]
-     * 
      */
-    public String getRotationVector() {
-        Log.d(TAG, "Entering getRotationVector");
+    private void unregister(SensorSlot slot) {
+        if (slot.brokered) {
+            SensorSharedMemory memory = shared_memory;
+            synchronized (slot) {
+                slot.brokered = false;
+                if (memory != null && slot.shared_reader >= 0) {
+                    memory.release(slot.shared_entry, slot.shared_reader);
+                }
+                slot.shared_reader = -1;
+            }
+        } else if (replay == null && slot.sensor != null) {
+            sensor_manager.unregisterListener(this, slot.sensor);
+        }
+        slot.registered = false;
+    }
+
 
-        if (rotation_vector_json != null) {
-            return rotation_vector_json.toString();
+    /*
+     * Attaches a window aggregator to a sensor, which computes count, mean,
+     * min, max, variance and RMS of one of the sensor's values over
+     * tumbling or sliding windows as the samples arrive
+     * (cf. SensorAggregator.java), so that callers can read per-window
+     * statistics using getAggregates, instead of all raw samples
+     *
+     * The aggregator takes a reference on the sensor like start_sensing,
+     * i.e. the sensor keeps running at its current rate, or at the default
+     * rate if it isn't running, until the aggregator is removed.
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  int - Window length in milliseconds
+     * @params  int - Time between window starts in milliseconds, the window
+     *                length must be a multiple of it, equal to the window
+     *                length for tumbling windows
+     * @params  int - Index of the aggregated sensor value or -1
+     *                (SensorAggregator.MAGNITUDE) for the magnitude of the
+     *                first three values
+     *
+     * @return  int - Id of the aggregator, cf. removeAggregator
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist, can't
+     *          be streamed or the window is invalid
+     *
+     */
+    public synchronized int addAggregator(int sensor_type, int window_ms,
+            int slide_ms, int channel) {
+        Log.d(TAG, "Entering addAggregator");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
         }
-        return null;
+
+        SensorAggregator aggregator = new SensorAggregator(
+                next_stage_id, window_ms, slide_ms, channel);
+        add_stage(slot, aggregator);
+
+        return aggregator.id;
     }
 
 
     /*
-     * Returns most recent step count
-     * requires preceding start_sensing(CUSTOM_TYPE_STEP_COUNTER)
+     * Removes a window aggregator and releases its reference on the sensor
      *
-     * @return  String serialized JSON array of sensor values or null
-     * i.e.:
-     * [
-     * Time received, 
-     * Time propagated,
-     * Number of steps taken by the user since the last reboot 
-     *   while the sensor was activated
-     * ]
-     * 
-     */ 
-    public String getStepCounter() {
-        Log.d(TAG, "Entering getStepCounter");
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  int - Id returned by addAggregator
+     *
+     */
+    public synchronized void removeAggregator(int sensor_type, int id) {
+        Log.d(TAG, "Entering removeAggregator");
+
+        remove_stage(sensor_type, id);
+    }
 
-        if (step_counter_json != null) {
-            return step_counter_json.toString();
+
+    /*
+     * Returns the finished windows of all aggregators of a sensor that
+     * end after a given time, oldest first per aggregator
+     *
+     * Each aggregator keeps its last SensorAggregator.RESULT_CAPACITY
+     * windows. To continue where the last call left off pass the end of
+     * the last window it returned as `since_nanos`.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Only return windows that end after this timestamp (ns)
+     *
+     * @return  String serialized JSON array of window objects or null if
+     *          the sensor does not exist
+     * e.g.:
+     * [{'id': 1,
+     *   'start': 7390000000000,
+     *   'end': 7391000000000,
+     *   'count': 200,
+     *   'mean': 9.81,
+     *   'min': 9.62,
+     *   'max': 10.03,
+     *   'variance': 0.0021,
+     *   'rms': 9.81}, ...]
+     *
+     */
+    public String getAggregates(int sensor_type, long since_nanos)
+            throws JSONException {
+        Log.d(TAG, "Entering getAggregates");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist.", sensor_type));
+            return null;
         }
-        return null;
+
+        JSONArray windows_json = new JSONArray();
+        for (SensorStage stage : slot.stages) {
+            if (stage instanceof SensorAggregator) {
+                stage.appendResults(windows_json, since_nanos);
+            }
+        }
+        return windows_json.toString();
     }
 
+
     /*
-     * Registers listener for sensor value updates for a specific sensor
-     * 
-     * @params  int - Sensor type (c.f. CUSTOM_TYPE_* constants)
+     * Attaches a spectrum to a sensor, which transforms the last `fft_size`
+     * samples of one of the sensor's values every `hop` samples as they
+     * arrive (cf. SensorSpectrum.java), so that callers can read the
+     * dominant frequency, band energies and spectral entropy using
+     * getSpectra, e.g. to detect walking or vibration, instead of
+     * transforming all raw samples in Python
+     *
+     * The spectrum takes a reference on the sensor like addAggregator.
+     * Frequencies depend on the sampling rate, so callers usually start the
+     * sensor with an explicit rate first (cf. start_sensing).
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  int - Number of samples per transform, a power of two
+     *                between SensorSpectrum.MIN_FFT_SIZE and MAX_FFT_SIZE
+     * @params  int - Number of samples between transforms, e.g. fft_size / 2
+     *                for half overlapping windows
+     * @params  int - Index of the transformed sensor value or -1
+     *                (SensorAggregator.MAGNITUDE) for the magnitude of the
+     *                first three values
+     * @params  int - Number of equally wide frequency bands, at most
+     *                SensorSpectrum.MAX_BANDS and fft_size / 2
+     *
+     * @return  int - Id of the spectrum, cf. removeSpectrum
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist, can't
+     *          be streamed or the parameters are invalid
+     *
      */
-    public void start_sensing(int sensor_type) {
-        Log.d(TAG, "Entering start_sensing");
+    public synchronized int addSpectrum(int sensor_type, int fft_size,
+            int hop, int channel, int bands) {
+        Log.d(TAG, "Entering addSpectrum");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
+        }
 
-        Sensor tmp_sensor = null;
-
-        if (sensor_type == CUSTOM_TYPE_ACCELEROMETER) {
-            tmp_sensor = accelerometer;
-        } else if (sensor_type == CUSTOM_TYPE_AMBIENT_TEMPERATURE) {
-            tmp_sensor = ambient_temperature;
-        } else if (sensor_type == CUSTOM_TYPE_GAME_ROTATION_VECTOR) {
-            tmp_sensor = game_rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_GEOMAGNETIC_ROTATION_VECTOR) {
-            tmp_sensor = geomagnetic_rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_GRAVITY) {
-            tmp_sensor = gravity;
-        } else if (sensor_type == CUSTOM_TYPE_GYROSCOPE) {
-            tmp_sensor = gyroscope;
-        } else if (sensor_type == CUSTOM_TYPE_GYROSCOPE_UNCALIBRATED) {
-            tmp_sensor = gyroscope_uncalibrated;
-        } else if (sensor_type == CUSTOM_TYPE_HEART_RATE) {
-            tmp_sensor = heart_rate;
-        } else if (sensor_type == CUSTOM_TYPE_LIGHT) {
-            tmp_sensor = light;
-        } else if (sensor_type == CUSTOM_TYPE_LINEAR_ACCELERATION) {
-            tmp_sensor = linear_acceleration;
-        } else if (sensor_type == CUSTOM_TYPE_MAGNETIC_FIELD) {
-            tmp_sensor = magnetic_field;
-        } else if (sensor_type == CUSTOM_TYPE_MAGNETIC_FIELD_UNCALIBRATED) {
-            tmp_sensor = magnetic_field_uncalibrated;
-        } else if (sensor_type == CUSTOM_TYPE_PRESSURE) {
-            tmp_sensor = pressure;
-        } else if (sensor_type == CUSTOM_TYPE_PROXIMITY) {
-            tmp_sensor = proximity;
-        } else if (sensor_type == CUSTOM_TYPE_RELATIVE_HUMIDITY) {
-            tmp_sensor = relative_humidity;
-        } else if (sensor_type == CUSTOM_TYPE_ROTATION_VECTOR) {
-            tmp_sensor = rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_STEP_COUNTER) {
-            tmp_sensor = step_counter;
-        } else {
-            Log.d(TAG, String.format("Sensor %d does not exist or app has not the necessary permissions.", sensor_type));
+        SensorSpectrum spectrum = new SensorSpectrum(
+                next_stage_id, fft_size, hop, channel, bands);
+        add_stage(slot, spectrum);
+
+        return spectrum.id;
+    }
+
+
+    /*
+     * Removes a spectrum and releases its reference on the sensor
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  int - Id returned by addSpectrum
+     *
+     */
+    public synchronized void removeSpectrum(int sensor_type, int id) {
+        Log.d(TAG, "Entering removeSpectrum");
+
+        remove_stage(sensor_type, id);
+    }
+
+
+    /*
+     * Returns the transforms of all spectra of a sensor whose windows end
+     * after a given time, oldest first per spectrum
+     *
+     * Each spectrum keeps its last SensorSpectrum.RESULT_CAPACITY
+     * transforms. To continue where the last call left off pass the end of
+     * the last window it returned as `since_nanos`.
+     *
+     * @param   int - Android sensor type (Sensor.TYPE_* constants)
+     * @param   long - Only return windows that end after this timestamp (ns)
+     *
+     * @return  String serialized JSON array of spectrum objects or null if
+     *          the sensor does not exist
+     * e.g.:
+     * [{'id': 2,
+     *   'start': 7390000000000,
+     *   'end': 7392540000000,
+     *   'sample_rate': 50.0,
+     *   'dominant_frequency': 1.95,
+     *   'entropy': 0.43,
+     *   'energy': 183.2,
+     *   'bands': [120.5, 40.1, 15.3, 7.3],
+     *   'compute_us': 85}, ...]
+     *
+     */
+    public String getSpectra(int sensor_type, long since_nanos)
+            throws JSONException {
+        Log.d(TAG, "Entering getSpectra");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist.", sensor_type));
+            return null;
         }
 
-        // All generally existing sensors were declared in the constructor
-        // If a Sensor is not available this means it doesn't exist on the 
-        // device or the app doesn't have the necessary permissions, or the
-        // calling function passed a wrong constant
-        // Note: Android checks that listener are registered only once
-        if (tmp_sensor != null) {
-            sensor_manager.registerListener(this, tmp_sensor, 
-                SensorManager.SENSOR_DELAY_NORMAL);
+        JSONArray spectra_json = new JSONArray();
+        for (SensorStage stage : slot.stages) {
+            if (stage instanceof SensorSpectrum) {
+                stage.appendResults(spectra_json, since_nanos);
+            }
         }
+        return spectra_json.toString();
     }
+
+
     /*
-     * De-registers listener for sensor value updates for a specific sensor
-     * @params  int - Sensor type (c.f. CUSTOM_TYPE_* constants)
+     * Starts recording all samples of the passed sensors to a directory of
+     * memory-mapped binary segment files (cf. SensorRecorder.java), which
+     * Python reads back using sensorlog.py
+     *
+     * Recording takes a reference on each sensor like addAggregator, i.e.
+     * sensors that aren't running are started at the default rate. To
+     * record at another rate, e.g. the fastest rate, start the sensors
+     * with that rate first (cf. start_sensing).
+     *
+     * Only one recording runs at a time.
+     *
+     * @params  String - Name of the recording, i.e. of its directory in
+     *                   RECORDINGS_PATH, an existing recording is continued
+     *                   after its last segment
+     * @params  int[] - Android sensor types (Sensor.TYPE_* constants)
+     * @params  boolean - Whether to compress the samples
+     *                    (cf. SensorSeriesCodec.java), which usually takes
+     *                    less than half the space at little CPU cost
+     *
+     * @return  String - Path of the recording's directory
+     *
+     * @throws  IllegalStateException if a recording is running
+     * @throws  IllegalArgumentException if the name is invalid, or a sensor
+     *          does not exist or can't be streamed
+     * @throws  IOException if the directory can't be created
+     *
+     */
+    public synchronized String startRecording(String name, int[] sensor_types,
+            boolean compress) throws IOException {
+        Log.d(TAG, "Entering startRecording");
+
+        if (recorder != null) {
+            throw new IllegalStateException(String.format(
+                    "Recording %s is running.", recorder.directory.getName()));
+        }
+        if (name.length() == 0 || name.contains("/") || name.startsWith(".")) {
+            throw new IllegalArgumentException(
+                    "Recording name must be a plain file name.");
+        }
+
+        SensorSlot[] slots = new SensorSlot[sensor_types.length];
+        for (int i = 0; i < sensor_types.length; i++) {
+            slots[i] = sensor_slots.get(sensor_types[i]);
+            if (slots[i] == null) {
+                throw new IllegalArgumentException(String.format(
+                        "Sensor %d does not exist.", sensor_types[i]));
+            }
+        }
+
+        File directory = new File(SensibilityActivity.filesRoot(
+                cached_context) + RECORDINGS_PATH + name);
+        SensorRecorder new_recorder = new SensorRecorder(directory, slots,
+                next_stage_id, compress);
+        new_recorder.start(sensor_handler);
+        for (int i = 0; i < slots.length; i++) {
+            try {
+                add_stage(slots[i], new_recorder.columns[i]);
+            } catch (IllegalArgumentException e) {
+                // Don't leave a partial recording behind
+                for (int j = 0; j < i; j++) {
+                    remove_stage(slots[j].type, new_recorder.columns[j].id);
+                }
+                final SensorRecorder failed_recorder = new_recorder;
+                sensor_handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        failed_recorder.close();
+                    }
+                });
+                throw e;
+            }
+        }
+        recorder = new_recorder;
+
+        return directory.getPath();
+    }
+
+
+    /*
+     * Appends all samples recorded so far and starts a new segment, so
+     * that they can be read from the closed segments
+     *
+     * @return  String serialized JSON object, cf. getRecordingStatus, or
+     *          null if no recording is running
      *
-     * CAUTION:
-     *   In multi-threading environments other threads may still want to 
-     *   use a shared listener
-     * 
      */
-    public void stop_sensing(int sensor_type) {
+    public String rotateRecording()
+            throws InterruptedException, ExecutionException {
+        Log.d(TAG, "Entering rotateRecording");
+
+        final SensorRecorder current = recorder;
+        if (current == null) {
+            return null;
+        }
+        return run_on_sensor_thread(new Callable<String>() {
+            @Override
+            public String call() throws JSONException {
+                current.rotate();
+                return current.toJSON().toString();
+            }
+        });
+    }
+
+
+    /*
+     * Stops the recording, appends all samples recorded so far and
+     * releases the references on the recorded sensors
+     *
+     * @return  String serialized JSON object, cf. getRecordingStatus, or
+     *          null if no recording is running
+     *
+     */
+    public String stopRecording()
+            throws InterruptedException, ExecutionException {
+        Log.d(TAG, "Entering stopRecording");
+
+        final SensorRecorder current;
+        synchronized (this) {
+            current = recorder;
+            if (current == null) {
+                return null;
+            }
+            for (SensorRecorder.Column column : current.columns) {
+                remove_stage(column.type, column.id);
+            }
+            recorder = null;
+        }
+
+        // The columns were fed on the sensor thread, so once this runs
+        // there is no more sample on its way to them
+        return run_on_sensor_thread(new Callable<String>() {
+            @Override
+            public String call() throws JSONException {
+                current.close();
+                return current.toJSON().toString();
+            }
+        });
+    }
+
+
+    /*
+     * Returns the state of the running recording
+     *
+     * @return  String serialized JSON object or null if no recording is
+     *          running
+     * e.g.:
+     * {'directory': '/data/data/com.sensibility_testbed/files/recordings/walk',
+     *  'compressed': true,
+     *  'segment': 2,
+     *  'samples': 1234567,
+     *  'blocks': 4823,
+     *  'bytes': 7450110,
+     *  'dropped': 0,
+     *  'encode_us': 310544,
+     *  'stalls': 0,
+     *  'columns': [{'id': 5, 'type': 1, 'pending': 17}, ...]}
+     *
+     */
+    public String getRecordingStatus()
+            throws InterruptedException, ExecutionException {
+        Log.d(TAG, "Entering getRecordingStatus");
+
+        final SensorRecorder current = recorder;
+        if (current == null) {
+            return null;
+        }
+        return run_on_sensor_thread(new Callable<String>() {
+            @Override
+            public String call() throws JSONException {
+                return current.toJSON().toString();
+            }
+        });
+    }
+
+
+    /*
+     * Replays a recorded trace in place of the device's sensors and location
+     * providers (cf. SensorReplay.java), e.g. to test or benchmark Python
+     * code without a phone at hand
+     *
+     * Running sensors are moved from Android (or the broker) to the replay,
+     * and sensors that are started during the replay only get replayed
+     * samples, at the recorded rate. Sensor types in the trace that the
+     * device doesn't have get a slot for the time of the replay. Locations
+     * replace those of the location providers (cf. LocationService).
+     *
+     * @params  String - Path of a CSV trace or of a recording directory
+     *                   (cf. startRecording)
+     * @params  double - Speed relative to the recording, e.g. 1 for real
+     *                   time, 10 for ten times as fast, 0 for as fast as
+     *                   possible
+     *
+     * @throws  IllegalStateException if a replay is running
+     * @throws  IOException if the trace can't be read
+     *
+     */
+    public synchronized void startReplay(String path, double speed)
+            throws IOException {
+        Log.d(TAG, "Entering startReplay");
+
+        if (replay != null) {
+            throw new IllegalStateException(String.format(
+                    "Replay of %s is running.", replay.path));
+        }
+        SensorReplay new_replay = new SensorReplay(path, speed,
+                sensor_handler);
+
+        SparseArray<SensorSlot> slots = sensor_slots.clone();
+        for (int sensor_type : new_replay.getSensorTypes()) {
+            if (slots.get(sensor_type) == null) {
+                SensorSlot slot = replay_slots.get(sensor_type);
+                if (slot == null) {
+                    slot = new SensorSlot(sensor_type, SAMPLE_BUFFER_CAPACITY);
+                    replay_slots.put(sensor_type, slot);
+                }
+                slots.put(sensor_type, slot);
+            }
+        }
+        sensor_slots = slots;
+
+        for (int i = 0; i < slots.size(); i++) {
+            SensorSlot slot = slots.valueAt(i);
+            if (slot.registered) {
+                unregister(slot);
+                slot.registered = true;
+            }
+        }
+        replay = new_replay;
+        LocationService.getInstance().setReplaying(true);
+        sensor_handler.post(new_replay);
+    }
+
+
+    /*
+     * Stops the replay, if any, and moves the running sensors back to
+     * Android (or the broker)
+     *
+     * The slots of sensor types that the device doesn't have are removed,
+     * together with their stages and references, except for the virtual
+     * fused orientation (cf. startOrientation). They are kept aside for
+     * later replays of these sensor types, cf. replay_slots.
+     *
+     * @return  String serialized JSON object, cf. getReplayStatus, or null
+     *          if no replay is running
+     *
+     */
+    public String stopReplay()
+            throws InterruptedException, ExecutionException {
+        Log.d(TAG, "Entering stopReplay");
+
+        final SensorReplay current;
+        synchronized (this) {
+            current = replay;
+            if (current == null) {
+                return null;
+            }
+            replay = null;
+            LocationService.getInstance().setReplaying(false);
+
+            SparseArray<SensorSlot> slots = sensor_slots;
+            SparseArray<SensorSlot> device_slots =
+                    new SparseArray<SensorSlot>();
+            for (int i = 0; i < slots.size(); i++) {
+                SensorSlot slot = slots.valueAt(i);
+                if (slot.sensor == null && slot != orientation_slot) {
+                    // Reset, as if it was new, for the next replay
+                    slot.stages = new SensorStage[0];
+                    slot.refs = 0;
+                    slot.registered = false;
+                    slot.trigger_requested = false;
+                    continue;
+                }
+                device_slots.put(slot.type, slot);
+                if (slot.registered) {
+                    slot.registered = false;
+                    register(slot, slot.sampling_period_us,
+                            slot.max_report_latency_us);
+                }
+            }
+            sensor_slots = device_slots;
+        }
+
+        return run_on_sensor_thread(new Callable<String>() {
+            @Override
+            public String call() throws JSONException {
+                current.stop();
+                return current.toJSON().toString();
+            }
+        });
+    }
+
+
+    /*
+     * Returns the progress of the running replay
+     *
+     * @return  String serialized JSON object or null if no replay is
+     *          running
+     * e.g.:
+     * {'path': '/data/data/com.sensibility_testbed/files/walk.csv',
+     *  'speed': 10.0,
+     *  'samples': 120345,
+     *  'locations': 12,
+     *  'finished': false}
+     *
+     */
+    public String getReplayStatus() throws JSONException {
+        Log.d(TAG, "Entering getReplayStatus");
+
+        SensorReplay current = replay;
+        if (current == null) {
+            return null;
+        }
+        return current.toJSON().toString();
+    }
+
+
+    /*
+     * Starts fusing the device's motion sensors into its orientation as the
+     * samples arrive (cf. SensorOrientation.java), which callers read like
+     * a sensor of type SensorOrientation.TYPE_FUSED_ORIENTATION, e.g. using
+     * get_sensor_values or waitForSample, i.e.
+     * [azimuth, pitch, roll, w, x, y, z]
+     * instead of reading and fusing several sensors themselves
+     *
+     * The engine fuses the rotation vector, if the device has one, else the
+     * gyroscope, accelerometer and magnetometer, or only the latter two. It
+     * takes a reference on these sensors and on the fused orientation, and
+     * runs the sensors at the passed rate, which is also the rate of the
+     * fused samples.
+     *
+     * @params  int - Sampling period of the source sensors in microseconds
+     *
+     * @return  String serialized JSON array of the Android sensor types
+     *          that are fused, e.g. [4, 1, 2]
+     *
+     * @throws  IllegalStateException if the orientation is fused already
+     * @throws  IllegalArgumentException if the device has no sensors to
+     *          fuse or they don't support the rate
+     *
+     */
+    public synchronized String startOrientation(int sampling_period_us) {
+        Log.d(TAG, "Entering startOrientation");
+
+        if (orientation != null) {
+            throw new IllegalStateException("Orientation is fused already.");
+        }
+        SparseArray<SensorSlot> slots = sensor_slots;
+        int[] source_types = SensorOrientation.getSourceTypes(slots);
+        if (source_types == null) {
+            throw new IllegalArgumentException(
+                    "Device has neither a rotation vector nor an accelerometer and a magnetometer.");
+        }
+        for (int source_type : source_types) {
+            validate_rate(slots.get(source_type).sensor, sampling_period_us,
+                    0);
+        }
+
+        SensorSlot slot = orientation_slot;
+        if (slot == null) {
+            slot = new SensorSlot(SensorOrientation.TYPE_FUSED_ORIENTATION,
+                    SAMPLE_BUFFER_CAPACITY);
+            slots = slots.clone();
+            slots.put(slot.type, slot);
+            sensor_slots = slots;
+            orientation_slot = slot;
+        }
+        slot.refs++;
+        register(slot, sampling_period_us, 0);
+
+        SensorOrientation engine = new SensorOrientation(slot, source_types,
+                next_stage_id);
+        JSONArray types_json = new JSONArray();
+        for (SensorOrientation.Input input : engine.inputs) {
+            SensorSlot source = slots.get(input.type);
+            add_stage(source, input);
+            register(source, sampling_period_us, 0);
+            types_json.put(input.type);
+        }
+        orientation = engine;
+
+        return types_json.toString();
+    }
+
+
+    /*
+     * Stops fusing the orientation, if it is fused, and releases the
+     * references on the source sensors and on the fused orientation
+     *
+     * The last fused sample can still be read.
+     *
+     */
+    public synchronized void stopOrientation() {
+        Log.d(TAG, "Entering stopOrientation");
+
+        SensorOrientation engine = orientation;
+        if (engine == null) {
+            return;
+        }
+        for (SensorOrientation.Input input : engine.inputs) {
+            remove_stage(input.type, input.id);
+        }
+        orientation = null;
+        stop_sensing(SensorOrientation.TYPE_FUSED_ORIENTATION);
+    }
+
+
+    /*
+     * Internal helper that runs a task on the sensor thread and waits for
+     * its result
+     *
+     * Must NOT be called holding the SensorService monitor, which tasks on
+     * the sensor thread (e.g. the idle sweep) may wait for
+     *
+     */
+    private <T> T run_on_sensor_thread(Callable<T> callable)
+            throws InterruptedException, ExecutionException {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        sensor_handler.post(task);
+        return task.get();
+    }
+
+
+    /*
+     * Internal helper that attaches a stage to a sensor slot and takes a
+     * reference on the sensor, which keeps running at its current rate, or
+     * at the default rate if it isn't running
+     *
+     * Stages need the samples on our sensor thread, so a sensor that the
+     * broker runs is registered locally instead.
+     *
+     * Must be called holding the SensorService monitor
+     *
+     */
+    private void add_stage(SensorSlot slot, SensorStage stage) {
+        int sampling_period_us = slot.registered ? slot.sampling_period_us :
+                DEFAULT_SAMPLING_PERIOD_US;
+        int max_report_latency_us = slot.registered ?
+                slot.max_report_latency_us : 0;
+        validate_rate(slot.sensor, sampling_period_us, max_report_latency_us);
+
+        next_stage_id++;
+        SensorStage[] stages = Arrays.copyOf(slot.stages,
+                slot.stages.length + 1);
+        stages[stages.length - 1] = stage;
+        slot.stages = stages;
+
+        if (slot.brokered) {
+            unregister(slot);
+        }
+        slot.refs++;
+        register(slot, sampling_period_us, max_report_latency_us);
+    }
+
+
+    /*
+     * Internal helper that detaches a stage from a sensor slot and releases
+     * its reference on the sensor
+     *
+     * Must be called holding the SensorService monitor
+     *
+     */
+    private void remove_stage(int sensor_type, int id) {
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            Log.d(TAG, String.format("Sensor %d does not exist.", sensor_type));
+            return;
+        }
+
+        SensorStage[] stages = slot.stages;
+        for (int i = 0; i < stages.length; i++) {
+            if (stages[i].getId() == id) {
+                SensorStage[] remaining = new SensorStage[stages.length - 1];
+                System.arraycopy(stages, 0, remaining, 0, i);
+                System.arraycopy(stages, i + 1, remaining, i,
+                        stages.length - i - 1);
+                slot.stages = remaining;
+                stop_sensing(sensor_type);
+                return;
+            }
+        }
+        Log.d(TAG, String.format("Sensor %d has no stage %d",
+                sensor_type, id));
+    }
+
+
+    /*
+     * Sets a deadband filter for a sensor, e.g. for light or pressure,
+     * which report values that barely change over and over
+     *
+     * A sample is only stored, i.e. returned by reads and passed to waiting
+     * threads, if any of its values differs from the last stored sample by
+     * more than the deadband and by more than the threshold relative to the
+     * last value (cf. SensorSlot.isSignificant). Stages (e.g. aggregators,
+     * recordings) still get every sample.
+     *
+     * The filter only applies to this process. The broker shares every
+     * sample of a brokered sensor, insignificant ones are dropped when they
+     * are pumped into this process (cf. SensorSharedMemory.pump), so other
+     * processes with other filters aren't affected.
+     * Readers that see the same sample again can tell by its sequence
+     * number, which only increases when a sample is stored (cf.
+     * sensor.get_sequence in sensors.c).
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     * @params  float - Absolute deadband, 0 for none
+     * @params  float - Relative threshold, e.g. 0.01 for 1%, 0 for none
+     *
+     * @throws  IllegalArgumentException if the sensor does not exist or
+     *          the deadband or threshold is negative
+     *
+     */
+    public void setDeadband(int sensor_type, float deadband,
+            float threshold) {
+        Log.d(TAG, "Entering setDeadband");
+
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d does not exist.", sensor_type));
+        }
+        if (!(deadband >= 0) || !(threshold >= 0)) {
+            throw new IllegalArgumentException(
+                    "Deadband and threshold must not be negative.");
+        }
+        slot.deadband = deadband;
+        slot.threshold = threshold;
+    }
+
+
+    /*
+     * Sets the time after which a running sensor that nobody holds a
+     * reference to (cf. start_sensing) and that hasn't been read is stopped
+     *
+     * A pending idle sweep is rescheduled, so that the new timeout takes
+     * effect right away, not after the sweep at the old timeout.
+     *
+     * @params  int - Idle timeout in milliseconds, must be positive
+     *
+     */
+    public synchronized void setIdleTimeout(int timeout_ms) {
+        Log.d(TAG, "Entering setIdleTimeout");
+
+        if (timeout_ms <= 0) {
+            throw new IllegalArgumentException(
+                    "Idle timeout must be positive.");
+        }
+        idle_timeout_ms = timeout_ms;
+        if (idle_sweep_scheduled) {
+            sensor_handler.removeCallbacks(idle_sweep);
+            idle_sweep_scheduled = false;
+            schedule_idle_sweep();
+        }
+    }
+
+
+    /*
+     * Enables or disables reading sensors through the sensor broker in
+     * this process, e.g. to compare the broker against local listeners
+     * (cf. bench_sensor_broker.py). It is enabled by default.
+     *
+     * Sensors move right away, at the same rate, i.e. disabling it
+     * registers the sensors that the broker runs for this process with
+     * local listeners, and enabling it asks the broker to run the sensors
+     * registered locally, except those with stages (cf. add_stage).
+     *
+     * @params  boolean - Whether to use the broker
+     *
+     */
+    public synchronized void setBrokerEnabled(boolean enabled) {
+        Log.d(TAG, "Entering setBrokerEnabled");
+
+        broker_enabled = enabled;
+        if (!enabled) {
+            register_brokered_locally();
+            return;
+        }
+        SparseArray<SensorSlot> slots = sensor_slots;
+        for (int i = 0; i < slots.size(); i++) {
+            SensorSlot slot = slots.valueAt(i);
+            if (slot.registered && !slot.brokered && replay == null &&
+                    slot.sensor != null && slot.stages.length == 0) {
+                unregister(slot);
+                register(slot, slot.sampling_period_us,
+                        slot.max_report_latency_us);
+            }
+        }
+    }
+
+
+    /*
+     * Internal helper that posts the idle sweep to the sensor thread,
+     * unless it is already pending
+     *
+     * Must be called holding the SensorService monitor
+     *
+     */
+    private void schedule_idle_sweep() {
+        if (!idle_sweep_scheduled) {
+            idle_sweep_scheduled = true;
+            sensor_handler.postDelayed(idle_sweep, idle_timeout_ms);
+        }
+    }
+
+
+    /*
+     * Stops all sensors that nobody holds a reference to and that haven't
+     * been read for idle_timeout_ms, re-schedules itself as long as there
+     * are running sensors without references left
+     *
+     * Also renews the demand for sensors run by the broker that are
+     * referenced but not read, and falls back to local listeners if the
+     * broker is gone. Hence it keeps running as long as any sensor is run
+     * by the broker.
+     *
+     * Runs on the sensor thread
+     *
+     */
+    private final Runnable idle_sweep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SensorService.this) {
+                idle_sweep_scheduled = false;
+                long now = SystemClock.elapsedRealtime();
+                boolean pending = false;
+
+                SensorSharedMemory memory = shared_memory;
+                if (!is_broker && memory != null && !memory.isAlive()) {
+                    detach_shared_memory();
+                    memory = null;
+                }
+
+                SparseArray<SensorSlot> slots = sensor_slots;
+                for (int i = 0; i < slots.size(); i++) {
+                    SensorSlot slot = slots.valueAt(i);
+                    if (!slot.registered) {
+                        continue;
+                    }
+                    if (slot.refs > 0) {
+                        if (slot.brokered && memory != null) {
+                            synchronized (slot) {
+                                renew_demand(slot, memory, now);
+                            }
+                            pending = true;
+                        }
+                        continue;
+                    }
+                    if (now - slot.last_read_ms >= idle_timeout_ms) {
+                        Log.d(TAG, String.format("Stopping idle sensor %d",
+                                slot.type));
+                        unregister(slot);
+                    } else {
+                        pending = true;
+                    }
+                }
+                if (pending) {
+                    schedule_idle_sweep();
+                }
+            }
+        }
+    };
+
+
+    /*
+     * Internal helper that checks a requested rate against the rates
+     * supported by a sensor, throws IllegalArgumentException if it is not
+     * supported
+     *
+     * Sensor.getMinDelay() is the minimum sampling period in microseconds
+     * for streaming sensors and 0 for sensors that only report on change,
+     * which accept any period. Sensor.getMaxDelay() is the maximum sampling
+     * period, 0 if unknown. One-shot sensors can't be registered at all.
+     *
+     */
+    private void validate_rate(Sensor sensor, int sampling_period_us,
+            int max_report_latency_us) {
+
+        // Sensors that only exist in a replay accept any rate
+        if (sensor == null) {
+            return;
+        }
+
+        if (sensor.getReportingMode() == Sensor.REPORTING_MODE_ONE_SHOT) {
+            throw new IllegalArgumentException(String.format(
+                    "Sensor %d is a one-shot sensor and can't be streamed.",
+                    sensor.getType()));
+        }
+        if (sampling_period_us < 0 || max_report_latency_us < 0) {
+            throw new IllegalArgumentException(
+                    "Sampling period and max report latency must not be negative.");
+        }
+
+        int min_delay = sensor.getMinDelay();
+        int max_delay = sensor.getMaxDelay();
+        if (min_delay > 0 && sampling_period_us < min_delay) {
+            throw new IllegalArgumentException(String.format(
+                    "Sampling period %d us is shorter than the minimum %d us of sensor %d.",
+                    sampling_period_us, min_delay, sensor.getType()));
+        }
+        if (max_delay > 0 && sampling_period_us > max_delay) {
+            throw new IllegalArgumentException(String.format(
+                    "Sampling period %d us is longer than the maximum %d us of sensor %d.",
+                    sampling_period_us, max_delay, sensor.getType()));
+        }
+    }
+
+
+    /*
+     * Returns counters that show how busy the thread is that receives
+     * the sensor events (cf. SensorThreadStats.java), i.e. the number of
+     * events per burst of back to back deliveries ('wakeups') and their
+     * latency
+     *
+     * @param   boolean - Reset counters after reading
+     * @return  String serialized JSON object
+     * e.g.:
+     * {
+     *   'events': 12040,
+     *   'wakeups': 3920,
+     *   'queue_depth_last': 2,
+     *   'queue_depth_max': 48,
+     *   'queue_depth_avg': 3.07,
+     *   'latency_last_us': 1830,
+     *   'latency_max_us': 52110,
+     *   'latency_avg_us': 2215
+     * }
+     *
+     */
+    public String getSensorThreadStats(boolean reset) throws JSONException {
+        Log.d(TAG, "Entering getSensorThreadStats");
+
+        return sensor_thread_stats.toJSON(reset).toString();
+    }
+
+
+    /*
+     * Asks all sensors that batch events in their hardware FIFO to deliver
+     * them right away, e.g. before a call to getSamplesSince
+     *
+     * Flushing is asynchronous, the flushed events arrive shortly after
+     * this returns
+     *
+     * Note: Only affects sensors registered in this process, i.e. not the
+     * sensors run by the sensor broker
+     *
+     * @return  boolean - false if the flush could not be requested
+     *
+     */
+    public boolean flush() {
+        Log.d(TAG, "Entering flush");
+
+        if (sensor_manager == null) {
+            return false;
+        }
+        return sensor_manager.flush(this);
+    }
+
+
+    /*
+     * Releases a reference taken by start_sensing
+     *
+     * The listener for sensor value updates is only de-registered when the
+     * last reference is released, so that a thread does not stop a sensor
+     * that other threads still use. If the sensor was read recently it is
+     * left to the idle sweep to stop it.
+     *
+     * @params  int - Android sensor type (Sensor.TYPE_* constants)
+     *
+     */
+    public synchronized void stop_sensing(int sensor_type) {
         Log.d(TAG, "Entering stop_sensing on sensor type " + java.lang.Integer.toString(sensor_type));
 
-        Sensor tmp_sensor = null;
-
-        if (sensor_type == CUSTOM_TYPE_ACCELEROMETER) {
-            tmp_sensor = accelerometer;
-        } else if (sensor_type == CUSTOM_TYPE_AMBIENT_TEMPERATURE) {
-            tmp_sensor = ambient_temperature;
-        } else if (sensor_type == CUSTOM_TYPE_GAME_ROTATION_VECTOR) {
-            tmp_sensor = game_rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_GEOMAGNETIC_ROTATION_VECTOR) {
-            tmp_sensor = geomagnetic_rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_GRAVITY) {
-            tmp_sensor = gravity;
-        } else if (sensor_type == CUSTOM_TYPE_GYROSCOPE) {
-            tmp_sensor = gyroscope;
-        } else if (sensor_type == CUSTOM_TYPE_GYROSCOPE_UNCALIBRATED) {
-            tmp_sensor = gyroscope_uncalibrated;
-        } else if (sensor_type == CUSTOM_TYPE_HEART_RATE) {
-            tmp_sensor = heart_rate;
-        } else if (sensor_type == CUSTOM_TYPE_LIGHT) {
-            tmp_sensor = light;
-        } else if (sensor_type == CUSTOM_TYPE_LINEAR_ACCELERATION) {
-            tmp_sensor = linear_acceleration;
-        } else if (sensor_type == CUSTOM_TYPE_MAGNETIC_FIELD) {
-            tmp_sensor = magnetic_field;
-        } else if (sensor_type == CUSTOM_TYPE_MAGNETIC_FIELD_UNCALIBRATED) {
-            tmp_sensor = magnetic_field_uncalibrated;
-        } else if (sensor_type == CUSTOM_TYPE_PRESSURE) {
-            tmp_sensor = pressure;
-        } else if (sensor_type == CUSTOM_TYPE_PROXIMITY) {
-            tmp_sensor = proximity;
-        } else if (sensor_type == CUSTOM_TYPE_RELATIVE_HUMIDITY) {
-            tmp_sensor = relative_humidity;
-        } else if (sensor_type == CUSTOM_TYPE_ROTATION_VECTOR) {
-            tmp_sensor = rotation_vector;
-        } else if (sensor_type == CUSTOM_TYPE_STEP_COUNTER) {
-            tmp_sensor = step_counter;
-        } else {
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot == null) {
             // XXX: Maybe raise an exception here
-            Log.d(TAG, String.format("Can't unregister a Sensor that does not exist: $d", sensor_type));
+            Log.d(TAG, String.format("Can't unregister a Sensor that does not exist: %d", sensor_type));
+            return;
         }
-        if (tmp_sensor != null) {
-            sensor_manager.unregisterListener(this, tmp_sensor);
+        if (slot.refs == 0) {
+            Log.d(TAG, String.format("Sensor %d was not started with start_sensing", sensor_type));
+            return;
+        }
+        if (--slot.refs > 0 || !slot.registered) {
+            return;
+        }
+        if (SystemClock.elapsedRealtime() - slot.last_read_ms <
+                idle_timeout_ms) {
+            schedule_idle_sweep();
+        } else {
+            unregister(slot);
         }
     }
 
+
     /*
      * Extracts the sensor values from a received sensor update event and
-     * creates a JSONArray adding the current time and the time at event
-     * propagation.
-     * 
-     * Stores the JSONArray to the according sensor's data class member
-     * of this Service Class
-     *
-     * [<current time>, <time at event propagation>,
-     * <sensor value[0]>, ..., <sensor value[n-1]>]
+     * publishes them (cf. publish)
      *
-     * Todo:
-     *   Find out if reading and writing to SensorEvents concurrently
-     *   requires us to use a Lock
+     * Called on the sensor thread
      *
      */
     @Override
     public void onSensorChanged(SensorEvent event) {
+        sensor_thread_stats.onEvent(event.timestamp);
+
+        SensorSlot slot = sensor_slots.get(event.sensor.getType());
+        if (slot != null) {
+            // Note: we always get float arrays but the length varies
+            // from Sensor to Sensor
+            publish(slot, event.timestamp, event.values, event.values.length);
+        }
+    }
 
-        // Having one data type makes it easier to give it back to C
-        JSONArray result = new JSONArray();
 
-        result.put(System.currentTimeMillis());
-        result.put(event.timestamp / 1000000);
+    /*
+     * Receives a sample of a running sensor from a replay (cf. startReplay)
+     * like onSensorChanged receives samples from Android
+     *
+     * Called on the sensor thread
+     *
+     */
+    void replay(int sensor_type, long timestamp, float[] values, int count) {
+        // The last samples of a stopped replay may still be on their way
+        if (replay == null) {
+            return;
+        }
+        SensorSlot slot = sensor_slots.get(sensor_type);
+        if (slot != null && slot.registered) {
+            publish(slot, timestamp, values, count);
+        }
+    }
 
-        // Note: we always get float arrays but the length varies
-        // from Sensor to Sensor
-        for (int i = 0; i < event.values.length; i++){
-            try {
-                result.put(event.values[i]);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            accelerometer_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE){
-            ambient_temperature_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_GAME_ROTATION_VECTOR){
-            game_rotation_vector_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR){
-            geomagnetic_rotation_vector_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_GRAVITY){
-            gravity_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE){
-            gyroscope_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE_UNCALIBRATED){
-            gyroscope_uncalibrated_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_HEART_RATE){
-            heart_rate_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_LIGHT){
-            light_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION){
-            linear_acceleration_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD){
-            magnetic_field_json = result;
-        } else if (event.sensor.getType() ==
-                Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED){
-            magnetic_field_uncalibrated_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_PRESSURE){
-            pressure_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_PROXIMITY){
-            proximity_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_RELATIVE_HUMIDITY){
-            relative_humidity_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR){
-            rotation_vector_json = result;
-        } else if (event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-            step_counter_json = result;
+
+    /*
+     * Appends a sample together with the current time and the time at event
+     * propagation to the according sensor's ring buffer, feeds it to the
+     * sensor's stages, wakes up waiting readers and, in the broker, shares
+     * it with the other processes
+     *
+     * This is the hot path, sensors may fire hundreds of events per second,
+     * hence we must not allocate any memory here (no JSON, no boxing, no
+     * logging). Values are only serialized when a caller asks for them.
+     *
+     * Also publishes the samples of virtual sensors, cf. SensorOrientation
+     *
+     * MUST ONLY be called on the sensor thread
+     *
+     */
+    void publish(SensorSlot slot, long timestamp, float[] values,
+            int count) {
+        // Stages see every sample, readers only the significant ones
+        SensorStage[] stages = slot.stages;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].add(timestamp, values, count);
+        }
+
+        // The broker shares every sample with the other processes, each
+        // of them applies its own deadband filter when it pumps the samples
+        // (cf. SensorSharedMemory.pump)
+        long received_ms = System.currentTimeMillis();
+        SensorSharedMemory memory = shared_memory;
+        if (is_broker && memory != null && slot.shared_entry >= 0) {
+            memory.publish(slot.shared_entry, received_ms, timestamp, values,
+                    count);
+        }
+
+        if (!slot.isSignificant(values, count)) {
+            return;
+        }
+
+        long sequence = snapshot_sequence;
+        snapshot_sequence = sequence + 1;
+        slot.samples.write(received_ms, timestamp, values, count);
+        snapshot_sequence = sequence + 2;
+
+        // Wake up threads in waitForSample, if there are any
+        if (slot.waiters > 0) {
+            synchronized (slot.sample_signal) {
+                slot.sample_signal.notifyAll();
+            }
         }
     }
 
@@ -853,4 +2516,9 @@ public class SensorService implements SensorEventListener  {
         //pass
     }
 
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        //pass
+    }
+
 }
@@ -0,0 +1,508 @@
+package com.snakei;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A memory-mapped file through which the sensor broker process
+ * (cf. SensorBrokerService.java) shares sensor samples with all other
+ * processes of the app
+ *
+ * The file lives in the app's private files directory, which all our
+ * processes share, since they run with the same uid. Each process maps it
+ * into its address space, i.e. samples are written once by the broker and
+ * read by all other processes without any IPC or copy through the kernel.
+ *
+ * Layout (native byte order, so that native code could map it too):
+ *
+ *   Header (HEADER_SIZE bytes)
+ *     int   magic
+ *     int   version
+ *     long  heartbeat, SystemClock.elapsedRealtime() of the broker
+ *     int   sequence, odd while the broker publishes a sample
+ *
+ *   MAX_ENTRIES entries, one per sensor type (ENTRY_SIZE bytes each)
+ *     int   Android sensor type, 0 if the entry is unused
+ *     int   head, number of samples ever published (wraps around)
+ *     MAX_READERS demands, one per reader process (READER_SIZE bytes each)
+ *       int   pid of the reader process
+ *       int   sampling period requested by the reader (us)
+ *       int   max report latency requested by the reader (us)
+ *       long  SystemClock.elapsedRealtime() until which the reader wants
+ *             the broker to keep the sensor running
+ *     CAPACITY records (RECORD_SIZE bytes each)
+ *       long  time received (ms)
+ *       long  timestamp (ns)
+ *       int   number of values
+ *       WIDTH floats
+ *
+ * Each entry is a ring buffer with exactly one writer, the broker's sensor
+ * thread, that works like SensorRingBuffer: the writer fills the record at
+ * `head` and then increments `head`, readers re-read `head` after copying
+ * a record to find out whether it was overwritten in the meantime.
+ * Additionally the broker increments the header's sequence before and
+ * after it publishes a sample to any entry, so that readers can read the
+ * heads of several entries at the same moment (cf. getHeads).
+ *
+ * Each reader process claims a demand of its own per entry (cf. demand),
+ * while holding a file lock on the entry's header, and then renews it
+ * without lock before it expires, i.e. before any other process may claim
+ * it (cf. renewDemand). The broker polls the demands and runs a sensor at the shortest
+ * sampling period and max report latency of all readers whose demand
+ * hasn't expired (cf. getSamplingPeriod), i.e. a reader never slows down
+ * another one. Once the demand of the fastest reader expires, or the
+ * reader releases it, the sensor falls back to the rate of the others.
+ *
+ * Note: Java gives no ordering guarantees for plain ByteBuffer accesses.
+ * We rely on ART emitting full memory barriers for volatile accesses
+ * (cf. `fence`), which also order the accesses to the mapped memory.
+ *
+ */
+class SensorSharedMemory {
+    static final String TAG = "SensorSharedMemory";
+
+    static final String FILE_NAME = "sensors.shm";
+
+    static final int MAGIC = 0x534e4b53;
+    static final int VERSION = 3;
+
+    static final int MAX_ENTRIES = 64;
+    static final int CAPACITY = 1024;
+    static final int WIDTH = 16;
+
+    // Max number of processes that can read a sensor through the broker at
+    // the same time, more than we have interpreter processes
+    static final int MAX_READERS = 16;
+
+    // A broker that hasn't updated its heartbeat for this long is gone
+    static final int HEARTBEAT_TIMEOUT_MS = 5000;
+
+    // How often getHeads reads the heads again if the broker published a
+    // sample meanwhile
+    static final int HEADS_RETRIES = 100;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_HEARTBEAT = 8;
+    private static final int HEADER_SEQUENCE = 16;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int ENTRY_TYPE = 0;
+    private static final int ENTRY_HEAD = 4;
+    private static final int ENTRY_READERS = 16;
+    private static final int ENTRY_HEADER_SIZE = 512;
+
+    private static final int READER_PID = 0;
+    private static final int READER_SAMPLING_PERIOD = 4;
+    private static final int READER_MAX_REPORT_LATENCY = 8;
+    private static final int READER_UNTIL = 16;
+    private static final int READER_SIZE = 24;
+
+    private static final int RECORD_RECEIVED = 0;
+    private static final int RECORD_TIMESTAMP = 8;
+    private static final int RECORD_COUNT = 16;
+    private static final int RECORD_VALUES = 24;
+    private static final int RECORD_SIZE = RECORD_VALUES + 4 * WIDTH;
+
+    private static final int ENTRY_SIZE =
+            ENTRY_HEADER_SIZE + CAPACITY * RECORD_SIZE;
+    static final int SIZE = HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE;
+
+    // Volatile accesses to this field are used as memory barriers
+    private static volatile int fence;
+
+    private final MappedByteBuffer buffer;
+
+    // Kept open for the file locks of the readers' demands
+    private final FileChannel channel;
+
+    private final int pid = Process.myPid();
+
+
+    /*
+     * Maps the whole file into memory
+     */
+    private SensorSharedMemory(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SIZE);
+            channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.nativeOrder());
+    }
+
+
+    /*
+     * Creates a new region for the passed sensor types, to be called by
+     * the broker
+     *
+     * The region is prepared in a temporary file that then replaces any
+     * previous file, so that readers never see a half-initialized region.
+     * Readers that still map the previous file notice that its heartbeat
+     * stopped.
+     *
+     * Only the first MAX_ENTRIES types get an entry.
+     *
+     */
+    static SensorSharedMemory create(File directory, int[] sensor_types)
+            throws IOException {
+        Log.d(TAG, "Entering create");
+
+        File tmp_file = new File(directory, FILE_NAME + ".tmp");
+        tmp_file.delete();
+
+        SensorSharedMemory memory = new SensorSharedMemory(tmp_file);
+        for (int i = 0; i < Math.min(sensor_types.length, MAX_ENTRIES); i++) {
+            memory.buffer.putInt(entry_offset(i) + ENTRY_TYPE,
+                    sensor_types[i]);
+        }
+        memory.heartbeat();
+        memory.buffer.putInt(HEADER_VERSION, VERSION);
+        memory.buffer.putInt(HEADER_MAGIC, MAGIC);
+
+        if (!tmp_file.renameTo(new File(directory, FILE_NAME))) {
+            throw new IOException("Could not publish " + FILE_NAME);
+        }
+        return memory;
+    }
+
+
+    /*
+     * Maps the region created by a running broker, to be called by
+     * the readers
+     *
+     * Returns null if there is no region or its broker is gone
+     *
+     */
+    static SensorSharedMemory attach(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists() || file.length() != SIZE) {
+            return null;
+        }
+
+        SensorSharedMemory memory;
+        try {
+            memory = new SensorSharedMemory(file);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not map " + FILE_NAME + ": " + e.toString());
+            return null;
+        }
+        if (memory.buffer.getInt(HEADER_MAGIC) != MAGIC ||
+                memory.buffer.getInt(HEADER_VERSION) != VERSION ||
+                !memory.isAlive()) {
+            memory.close();
+            return null;
+        }
+        return memory;
+    }
+
+
+    /*
+     * Closes the file, e.g. once the broker is gone. The mapping stays
+     * valid until the memory is garbage collected.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close " + FILE_NAME + ": " + e.toString());
+        }
+    }
+
+
+    private static int entry_offset(int entry) {
+        return HEADER_SIZE + entry * ENTRY_SIZE;
+    }
+
+
+    private static int reader_offset(int entry, int reader) {
+        return entry_offset(entry) + ENTRY_READERS + reader * READER_SIZE;
+    }
+
+
+    /* Called by the broker to tell readers that it is alive */
+    void heartbeat() {
+        buffer.putLong(HEADER_HEARTBEAT, SystemClock.elapsedRealtime());
+    }
+
+
+    /* Whether the broker has updated its heartbeat recently */
+    boolean isAlive() {
+        return SystemClock.elapsedRealtime() -
+                buffer.getLong(HEADER_HEARTBEAT) < HEARTBEAT_TIMEOUT_MS;
+    }
+
+
+    /* Returns the entry of the passed sensor type or -1 */
+    int findEntry(int sensor_type) {
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            if (buffer.getInt(entry_offset(i) + ENTRY_TYPE) == sensor_type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /*
+     * Appends a sample to an entry, to be called by the broker
+     *
+     * MUST ONLY be called from the broker's sensor thread,
+     * does not allocate memory
+     *
+     */
+    void publish(int entry, long received_ms, long timestamp, float[] src,
+            int count) {
+        int sequence = buffer.getInt(HEADER_SEQUENCE);
+        buffer.putInt(HEADER_SEQUENCE, sequence + 1);
+        fence = sequence;
+
+        int base = entry_offset(entry);
+        int h = buffer.getInt(base + ENTRY_HEAD);
+        int record = base + ENTRY_HEADER_SIZE +
+                (h & (CAPACITY - 1)) * RECORD_SIZE;
+        int n = Math.min(count, WIDTH);
+
+        buffer.putLong(record + RECORD_RECEIVED, received_ms);
+        buffer.putLong(record + RECORD_TIMESTAMP, timestamp);
+        buffer.putInt(record + RECORD_COUNT, n);
+        for (int i = 0; i < n; i++) {
+            buffer.putFloat(record + RECORD_VALUES + 4 * i, src[i]);
+        }
+
+        // Publish above stores before the new head
+        fence = h;
+        buffer.putInt(base + ENTRY_HEAD, h + 1);
+        fence = h;
+        buffer.putInt(HEADER_SEQUENCE, sequence + 2);
+    }
+
+
+    /* Returns the head of an entry, i.e. where a new reader starts */
+    int getHead(int entry) {
+        return buffer.getInt(entry_offset(entry) + ENTRY_HEAD);
+    }
+
+
+    /*
+     * Reads the heads of the passed entries at the same moment, i.e. with
+     * no sample published in between (cf. HEADER_SEQUENCE), so that pumping
+     * the entries up to these heads gives the state of all of them after
+     * the same sample
+     *
+     * If the broker keeps publishing for HEADS_RETRIES attempts, the heads
+     * are read one after another.
+     *
+     */
+    void getHeads(int[] entries, int[] heads) {
+        for (int attempt = 0; attempt < HEADS_RETRIES; attempt++) {
+            int sequence = buffer.getInt(HEADER_SEQUENCE);
+            int unused = fence;
+            if ((sequence & 1) != 0) {
+                continue;
+            }
+            for (int i = 0; i < entries.length; i++) {
+                heads[i] = getHead(entries[i]);
+            }
+            unused = fence;
+            if (buffer.getInt(HEADER_SEQUENCE) == sequence) {
+                return;
+            }
+        }
+        for (int i = 0; i < entries.length; i++) {
+            heads[i] = getHead(entries[i]);
+        }
+    }
+
+
+    /*
+     * Copies all samples of an entry from the passed position up to its
+     * head to the passed slot's ring buffer, to be called by the readers
+     *
+     * Samples that aren't significant to the slot's deadband filter (cf.
+     * SensorSlot.isSignificant) are skipped.
+     *
+     * Samples that the broker has overwritten before they were copied are
+     * lost, as they would be in a local ring buffer that isn't drained fast
+     * enough.
+     *
+     * Callers must make sure that they are the only writer of the slot's
+     * ring buffer, whose scratch array (shared_values) the pump uses
+     *
+     * @return  int - the new position, to be passed to the next call
+     *
+     */
+    int pump(int entry, int position, SensorSlot slot) {
+        int h = getHead(entry);
+        int unused = fence;
+        return pump(entry, position, h, slot);
+    }
+
+
+    /*
+     * Like pump above, but only copies the samples before the passed head,
+     * e.g. one read by getHeads
+     */
+    int pump(int entry, int position, int h, SensorSlot slot) {
+        int base = entry_offset(entry);
+        int unused = fence;
+
+        if (h - position > CAPACITY - 1) {
+            position = h - (CAPACITY - 1);
+        }
+
+        float[] values = slot.shared_values;
+        while (h - position > 0) {
+            int record = base + ENTRY_HEADER_SIZE +
+                    (position & (CAPACITY - 1)) * RECORD_SIZE;
+            long received_ms = buffer.getLong(record + RECORD_RECEIVED);
+            long timestamp = buffer.getLong(record + RECORD_TIMESTAMP);
+            int n = Math.min(buffer.getInt(record + RECORD_COUNT), WIDTH);
+            for (int i = 0; i < n; i++) {
+                values[i] = buffer.getFloat(record + RECORD_VALUES + 4 * i);
+            }
+
+            // Skip the record if the broker overwrote it while we copied it
+            unused = fence;
+            if (buffer.getInt(base + ENTRY_HEAD) - position < CAPACITY &&
+                    slot.isSignificant(values, n)) {
+                slot.samples.write(received_ms, timestamp, values, n);
+            }
+            position++;
+        }
+        return position;
+    }
+
+
+    /*
+     * Asks the broker to keep running a sensor at the passed rate until
+     * `until_ms` (SystemClock.elapsedRealtime()), to be called by the
+     * readers
+     *
+     * Claims the demand of this process for the entry, i.e. the one it
+     * claimed before, or one that has expired, and replaces its rate.
+     *
+     * @return  int - the index of the demand, to be passed to renewDemand
+     *          and release, or -1 if MAX_READERS other processes demand the
+     *          sensor or the entry can't be locked
+     *
+     */
+    synchronized int demand(int entry, long until_ms, int sampling_period_us,
+            int max_report_latency_us) {
+        FileLock lock;
+        try {
+            lock = channel.lock(entry_offset(entry), ENTRY_HEADER_SIZE, false);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not lock demands: " + e.toString());
+            return -1;
+        }
+        try {
+            int reader = -1;
+            for (int i = 0; i < MAX_READERS && reader < 0; i++) {
+                if (buffer.getInt(reader_offset(entry, i) + READER_PID) ==
+                        pid) {
+                    reader = i;
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < MAX_READERS && reader < 0; i++) {
+                if (buffer.getLong(reader_offset(entry, i) + READER_UNTIL) <=
+                        now) {
+                    reader = i;
+                }
+            }
+            if (reader < 0) {
+                return -1;
+            }
+
+            int offset = reader_offset(entry, reader);
+            buffer.putInt(offset + READER_PID, pid);
+            buffer.putInt(offset + READER_SAMPLING_PERIOD, sampling_period_us);
+            buffer.putInt(offset + READER_MAX_REPORT_LATENCY,
+                    max_report_latency_us);
+            fence = reader;
+            buffer.putLong(offset + READER_UNTIL, until_ms);
+            return reader;
+        } finally {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                Log.d(TAG, "Could not unlock demands: " + e.toString());
+            }
+        }
+    }
+
+
+    /*
+     * Extends a demand claimed by this process (cf. demand) until `until_ms`
+     * and keeps its rate
+     *
+     * Returns false if the demand has expired and another process claimed
+     * it meanwhile, callers have to claim a new one
+     *
+     */
+    boolean renewDemand(int entry, int reader, long until_ms) {
+        int offset = reader_offset(entry, reader);
+        if (buffer.getInt(offset + READER_PID) != pid) {
+            return false;
+        }
+        buffer.putLong(offset + READER_UNTIL, until_ms);
+        return true;
+    }
+
+
+    /*
+     * Ends a demand claimed by this process right away, so that the broker
+     * doesn't keep running the sensor at its rate until it expires
+     */
+    void release(int entry, int reader) {
+        int offset = reader_offset(entry, reader);
+        if (buffer.getInt(offset + READER_PID) == pid) {
+            buffer.putLong(offset + READER_UNTIL, 0);
+        }
+    }
+
+
+    /*
+     * Broker side accessors of what the readers asked for, i.e. the shortest
+     * sampling period and max report latency of all demands of an entry
+     * that haven't expired at `now`, or -1 if there are none
+     *
+     */
+    int getSamplingPeriod(int entry, long now) {
+        return get_min_demand(entry, now, READER_SAMPLING_PERIOD);
+    }
+
+
+    int getMaxReportLatency(int entry, long now) {
+        return get_min_demand(entry, now, READER_MAX_REPORT_LATENCY);
+    }
+
+
+    private int get_min_demand(int entry, long now, int field) {
+        int min = -1;
+        for (int i = 0; i < MAX_READERS; i++) {
+            int offset = reader_offset(entry, i);
+            if (buffer.getLong(offset + READER_UNTIL) > now) {
+                int value = buffer.getInt(offset + field);
+                if (min < 0 || value < min) {
+                    min = value;
+                }
+            }
+        }
+        return min;
+    }
+}
@@ -0,0 +1,189 @@
+package com.snakei;
+
+import android.hardware.Sensor;
+
+/**
+ * An entry of the SensorService sensor registry
+ *
+ * Bundles everything SensorService keeps per Android sensor type, i.e.
+ * the default Sensor of that type, the ring buffer that stores
+ * its samples, the rate the listener is currently registered with and
+ * who is using the sensor.
+ *
+ * Slots are created once, when the sensor list is read, and are looked up by
+ * Android sensor type (Sensor.TYPE_*) on every sensor event and every read.
+ *
+ */
+class SensorSlot {
+    final int type;
+    // Null for slots that only exist in a replay
+    final Sensor sensor;
+    final SensorRingBuffer samples;
+
+    // Listener registration, guarded by the SensorService instance
+    // `registered` may also be read without lock, e.g. to skip the
+    // lazy start on every read
+    volatile boolean registered;
+    int sampling_period_us;
+    int max_report_latency_us;
+
+    // Number of start_sensing calls not yet matched by stop_sensing,
+    // guarded by the SensorService instance
+    int refs;
+
+    // Whether a one-shot sensor's trigger is requested, cf.
+    // SensorService.waitForTrigger, guarded by the SensorService instance
+    boolean trigger_requested;
+
+    // SystemClock.elapsedRealtime() of the last read, used to stop sensors
+    // that were started lazily by a read, once nobody reads them anymore
+    volatile long last_read_ms;
+
+    // Index of this sensor's entry in the memory shared with the sensor
+    // broker (cf. SensorSharedMemory), -1 if it has none
+    // In the broker samples are published to that entry, in the other
+    // processes samples are pumped from it into `samples` if `brokered`,
+    // instead of being received by a local listener
+    volatile int shared_entry = -1;
+    volatile boolean brokered;
+
+    // Stages (e.g. window aggregators) fed with every sample on the sensor
+    // thread. The array is replaced as a whole when stages are added or
+    // removed (guarded by the SensorService instance), never modified
+    volatile SensorStage[] stages = new SensorStage[0];
+
+    // Threads in SensorService.waitForSample wait on `sample_signal` for
+    // new samples, the sensor thread only notifies if `waiters` > 0
+    final Object sample_signal = new Object();
+    volatile int waiters;
+
+    // Position of the next sample to pump, guarded by the slot itself,
+    // which also serializes the pumps, i.e. the writes to `samples`
+    int shared_position;
+
+    // This process's demand of the sensor in the shared memory (cf.
+    // SensorSharedMemory.demand) while `brokered`, guarded by the slot
+    int shared_reader = -1;
+
+    // Values of the sample being pumped, so that pumps don't allocate,
+    // used by the single writer of `samples` only (cf. shared_position)
+    final float[] shared_values = new float[SensorSharedMemory.WIDTH];
+
+    // Deadband filter, cf. SensorService.setDeadband and isSignificant
+    // The thresholds may be set by any thread, the last stored values are
+    // only used by the writer of `samples`
+    volatile float deadband;
+    volatile float threshold;
+    private float[] filter_values;
+    private int filter_count = -1;
+
+
+    /*
+     * The ring buffer holds at least `capacity` samples, or more if the
+     * sensor's hardware FIFO can hold more, so that a batch flushed
+     * from the FIFO always fits
+     *
+     */
+    SensorSlot(Sensor sensor, int capacity) {
+        this.type = sensor.getType();
+        this.sensor = sensor;
+        this.samples = new SensorRingBuffer(
+                Math.max(capacity, sensor.getFifoMaxEventCount()),
+                getValueCount(type));
+    }
+
+
+    /*
+     * A slot without a Sensor, for sensor types that only exist in a
+     * replay (cf. SensorService.startReplay), or for virtual sensors (cf.
+     * SensorService.startOrientation)
+     *
+     */
+    SensorSlot(int type, int capacity) {
+        this.type = type;
+        this.sensor = null;
+        this.samples = new SensorRingBuffer(capacity, getValueCount(type));
+    }
+
+
+    /*
+     * Returns whether a sample differs enough from the last stored sample
+     * to be stored, i.e. whether any of its values differs by more than the
+     * deadband and by more than the threshold relative to the last value,
+     * and remembers it as the last stored sample if so
+     *
+     * Samples are always significant if the filter is off (deadband and
+     * threshold 0), if the number of values changed, or if a value is NaN.
+     *
+     * MUST ONLY be called by the writer of `samples`, right before it
+     * writes a significant sample
+     *
+     */
+    boolean isSignificant(float[] values, int count) {
+        float abs = deadband;
+        float rel = threshold;
+        if (abs <= 0 && rel <= 0) {
+            filter_count = -1;
+            return true;
+        }
+
+        int n = Math.min(count, samples.width);
+        if (filter_values == null) {
+            filter_values = new float[samples.width];
+        }
+        boolean significant = n != filter_count;
+        for (int i = 0; i < n && !significant; i++) {
+            float diff = Math.abs(values[i] - filter_values[i]);
+            // Negated, so that NaN is significant
+            significant = !(diff <= abs) &&
+                    !(diff <= rel * Math.abs(filter_values[i]));
+        }
+        if (significant) {
+            System.arraycopy(values, 0, filter_values, 0, n);
+            filter_count = n;
+        }
+        return significant;
+    }
+
+
+    /*
+     * Returns the max number of values a sensor of the passed type reports
+     *
+     * Unknown (e.g. vendor specific) sensor types get the max length of
+     * Android's SensorEvent values array
+     *
+     */
+    static int getValueCount(int sensor_type) {
+        switch (sensor_type) {
+            case SensorOrientation.TYPE_FUSED_ORIENTATION:
+                return SensorOrientation.WIDTH;
+            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+                return 6;
+            case Sensor.TYPE_ROTATION_VECTOR:
+            case Sensor.TYPE_GAME_ROTATION_VECTOR:
+            case Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR:
+                return 5;
+            case Sensor.TYPE_ACCELEROMETER:
+            case Sensor.TYPE_GRAVITY:
+            case Sensor.TYPE_GYROSCOPE:
+            case Sensor.TYPE_LINEAR_ACCELERATION:
+            case Sensor.TYPE_MAGNETIC_FIELD:
+            case Sensor.TYPE_ORIENTATION:
+                return 3;
+            case Sensor.TYPE_AMBIENT_TEMPERATURE:
+            case Sensor.TYPE_HEART_RATE:
+            case Sensor.TYPE_LIGHT:
+            case Sensor.TYPE_PRESSURE:
+            case Sensor.TYPE_PROXIMITY:
+            case Sensor.TYPE_RELATIVE_HUMIDITY:
+            case Sensor.TYPE_SIGNIFICANT_MOTION:
+            case Sensor.TYPE_STEP_COUNTER:
+            case Sensor.TYPE_STEP_DETECTOR:
+            case Sensor.TYPE_TEMPERATURE:
+                return 1;
+            default:
+                return 16;
+        }
+    }
+}
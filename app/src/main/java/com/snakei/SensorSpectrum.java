@@ -0,0 +1,363 @@
+package com.snakei;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streaming spectral features of one value of a sensor (or the magnitude
+ * of its first three values), e.g. for vibration or activity detection
+ *
+ * Keeps the last `fft_size` values and, every `hop` samples, transforms
+ * them using a Hann window and a radix-2 FFT, after removing their mean.
+ * Per transform it reports:
+ *   - the sample rate, estimated from the sample timestamps
+ *   - the dominant frequency, i.e. the frequency of the strongest bin
+ *   - the energy of `bands` equally wide bands between 0 Hz and the
+ *     Nyquist frequency (half the sample rate)
+ *   - the spectral entropy, i.e. the Shannon entropy of the normalized
+ *     power spectrum divided by its maximum, between 0 (a pure tone) and
+ *     1 (white noise)
+ *   - the time the transform took in microseconds
+ * The DC bin is excluded from all features.
+ *
+ * All arrays, including the twiddle factor and bit reversal tables, are
+ * allocated upon construction, transforms don't allocate memory.
+ *
+ * Results are kept in a ring buffer of RESULT_CAPACITY transforms, which
+ * has one writer (the thread that receives sensor events) and any number
+ * of concurrent readers, cf. SensorRingBuffer.
+ *
+ */
+class SensorSpectrum implements SensorStage {
+
+    static final int RESULT_CAPACITY = 64;
+
+    static final int MIN_FFT_SIZE = 8;
+    static final int MAX_FFT_SIZE = 4096;
+    static final int MAX_BANDS = 32;
+
+    final int id;
+    final int fft_size;
+    final int hop;
+    final int channel;
+    final int bands;
+
+    // Number of frequency bins without DC, i.e. up to the Nyquist frequency
+    private final int bins;
+
+    // Last fft_size values and their timestamps, indexed by
+    // input_count % fft_size
+    private final double[] input;
+    private final long[] input_timestamps;
+    private long input_count;
+    private int since_transform;
+
+    private final double[] hann;
+    private final double[] cos_table;
+    private final double[] sin_table;
+    private final int[] bit_reverse;
+    private final double[] re;
+    private final double[] im;
+
+    private final long[] result_start;
+    private final long[] result_end;
+    private final double[] result_sample_rate;
+    private final double[] result_dominant_frequency;
+    private final double[] result_entropy;
+    private final double[] result_energy;
+    private final double[] result_bands;
+    private final long[] result_compute_us;
+
+    // Number of transforms ever finished, written by the writer thread only
+    private volatile long results;
+
+
+    /*
+     * @throws  IllegalArgumentException if the FFT size is not a power of two
+     *          within MIN_FFT_SIZE and MAX_FFT_SIZE, or the hop or number of
+     *          bands is invalid
+     */
+    SensorSpectrum(int id, int fft_size, int hop, int channel, int bands) {
+        if (fft_size < MIN_FFT_SIZE || fft_size > MAX_FFT_SIZE ||
+                Integer.bitCount(fft_size) != 1) {
+            throw new IllegalArgumentException(String.format(
+                    "FFT size must be a power of two between %d and %d.",
+                    MIN_FFT_SIZE, MAX_FFT_SIZE));
+        }
+        if (hop <= 0) {
+            throw new IllegalArgumentException("Hop must be positive.");
+        }
+        if (bands <= 0 || bands > Math.min(MAX_BANDS, fft_size / 2)) {
+            throw new IllegalArgumentException(String.format(
+                    "Number of bands must be between 1 and %d.",
+                    Math.min(MAX_BANDS, fft_size / 2)));
+        }
+        if (channel < SensorAggregator.MAGNITUDE) {
+            throw new IllegalArgumentException(
+                    "Channel must be a value index or MAGNITUDE.");
+        }
+
+        this.id = id;
+        this.fft_size = fft_size;
+        this.hop = hop;
+        this.channel = channel;
+        this.bands = bands;
+        this.bins = fft_size / 2;
+
+        input = new double[fft_size];
+        input_timestamps = new long[fft_size];
+        re = new double[fft_size];
+        im = new double[fft_size];
+
+        hann = new double[fft_size];
+        for (int i = 0; i < fft_size; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (fft_size - 1));
+        }
+        cos_table = new double[fft_size / 2];
+        sin_table = new double[fft_size / 2];
+        for (int i = 0; i < fft_size / 2; i++) {
+            cos_table[i] = Math.cos(2 * Math.PI * i / fft_size);
+            sin_table[i] = Math.sin(2 * Math.PI * i / fft_size);
+        }
+        int bits = Integer.numberOfTrailingZeros(fft_size);
+        bit_reverse = new int[fft_size];
+        for (int i = 0; i < fft_size; i++) {
+            bit_reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        result_start = new long[RESULT_CAPACITY];
+        result_end = new long[RESULT_CAPACITY];
+        result_sample_rate = new double[RESULT_CAPACITY];
+        result_dominant_frequency = new double[RESULT_CAPACITY];
+        result_entropy = new double[RESULT_CAPACITY];
+        result_energy = new double[RESULT_CAPACITY];
+        result_bands = new double[RESULT_CAPACITY * bands];
+        result_compute_us = new long[RESULT_CAPACITY];
+    }
+
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+
+    /*
+     * Adds a sample, transforms the last fft_size samples every hop samples
+     *
+     * MUST ONLY be called from the single writer thread,
+     * does not allocate memory
+     *
+     */
+    @Override
+    public void add(long timestamp, float[] values, int count) {
+        double x = SensorAggregator.getChannelValue(channel, values, count);
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return;
+        }
+
+        int i = (int) (input_count % fft_size);
+        input[i] = x;
+        input_timestamps[i] = timestamp;
+        input_count++;
+        since_transform++;
+
+        if (input_count >= fft_size && since_transform >= hop) {
+            since_transform = 0;
+            transform();
+        }
+    }
+
+
+    /*
+     * Internal helper that transforms the last fft_size samples and
+     * publishes their spectral features
+     */
+    private void transform() {
+        long start_ns = System.nanoTime();
+        int first = (int) (input_count % fft_size);
+
+        double mean = 0;
+        for (int i = 0; i < fft_size; i++) {
+            mean += input[i];
+        }
+        mean /= fft_size;
+        for (int i = 0; i < fft_size; i++) {
+            re[i] = (input[(first + i) % fft_size] - mean) * hann[i];
+            im[i] = 0;
+        }
+        fft();
+
+        long r = results;
+        int slot = (int) (r % RESULT_CAPACITY);
+        int band_offset = slot * bands;
+        for (int b = 0; b < bands; b++) {
+            result_bands[band_offset + b] = 0;
+        }
+
+        double energy = 0;
+        double max_power = -1;
+        int dominant_bin = 1;
+        for (int k = 1; k <= bins; k++) {
+            double power = re[k] * re[k] + im[k] * im[k];
+            energy += power;
+            if (power > max_power) {
+                max_power = power;
+                dominant_bin = k;
+            }
+            result_bands[band_offset + (k - 1) * bands / bins] += power;
+        }
+
+        // Second pass, the normalization needs the total energy
+        double entropy = 0;
+        if (energy > 0) {
+            for (int k = 1; k <= bins; k++) {
+                double p = (re[k] * re[k] + im[k] * im[k]) / energy;
+                if (p > 0) {
+                    entropy -= p * Math.log(p);
+                }
+            }
+            entropy /= Math.log(bins);
+        }
+
+        long start = input_timestamps[first];
+        long end = input_timestamps[(first + fft_size - 1) % fft_size];
+        double sample_rate = end > start ?
+                (fft_size - 1) * 1e9 / (end - start) : 0;
+
+        result_start[slot] = start;
+        result_end[slot] = end;
+        result_sample_rate[slot] = sample_rate;
+        result_dominant_frequency[slot] = dominant_bin * sample_rate / fft_size;
+        result_entropy[slot] = entropy;
+        result_energy[slot] = energy;
+        result_compute_us[slot] = (System.nanoTime() - start_ns) / 1000;
+
+        // Volatile write publishes above stores to the readers
+        results = r + 1;
+    }
+
+
+    /* Returns the number of transforms ever finished */
+    long size() {
+        return results;
+    }
+
+
+    /*
+     * Returns the dominant frequency of the most recent transform, or NaN
+     * if there is none yet
+     */
+    double getLatestDominantFrequency() {
+        long r;
+        double frequency;
+        do {
+            r = results;
+            if (r == 0) {
+                return Double.NaN;
+            }
+            frequency = result_dominant_frequency[
+                    (int) ((r - 1) % RESULT_CAPACITY)];
+        } while (results - RESULT_CAPACITY >= r - 1);
+        return frequency;
+    }
+
+
+    /*
+     * Internal helper that transforms `re` and `im` in place using an
+     * iterative radix-2 decimation in time FFT
+     */
+    private void fft() {
+        for (int i = 0; i < fft_size; i++) {
+            int j = bit_reverse[i];
+            if (j > i) {
+                double tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+
+        for (int size = 2; size <= fft_size; size <<= 1) {
+            int half = size >> 1;
+            int step = fft_size / size;
+            for (int start = 0; start < fft_size; start += size) {
+                for (int k = 0; k < half; k++) {
+                    // Twiddle factor e^(-2 pi i k / size)
+                    double c = cos_table[k * step];
+                    double s = sin_table[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * c + im[b] * s;
+                    double ti = im[b] * c - re[b] * s;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Serializes the transforms of windows that end after `since_nanos`,
+     * oldest first, as JSON objects and appends them to the passed JSON
+     * array, i.e.:
+     * [{'id': 2, 'start': <ns>, 'end': <ns>, 'sample_rate': 50.0,
+     *   'dominant_frequency': 2.15, 'entropy': 0.41, 'energy': 183.2,
+     *   'bands': [120.5, 40.1, 15.3, 7.3], 'compute_us': 85}, ...]
+     *
+     */
+    @Override
+    public void appendResults(JSONArray spectra_json, long since_nanos)
+            throws JSONException {
+        long r = results;
+        long first = Math.max(0, r - RESULT_CAPACITY + 1);
+        int n = (int) (r - first);
+
+        // Copy out first, then check whether the writer lapped us
+        long[] copy_start = new long[n];
+        long[] copy_end = new long[n];
+        long[] copy_compute_us = new long[n];
+        double[][] copy_features = new double[n][4];
+        double[] copy_bands = new double[n * bands];
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((first + i) % RESULT_CAPACITY);
+            copy_start[i] = result_start[slot];
+            copy_end[i] = result_end[slot];
+            copy_compute_us[i] = result_compute_us[slot];
+            copy_features[i][0] = result_sample_rate[slot];
+            copy_features[i][1] = result_dominant_frequency[slot];
+            copy_features[i][2] = result_entropy[slot];
+            copy_features[i][3] = result_energy[slot];
+            System.arraycopy(result_bands, slot * bands, copy_bands,
+                    i * bands, bands);
+        }
+        long valid_from = results - RESULT_CAPACITY + 1;
+
+        for (int i = 0; i < n; i++) {
+            if (first + i < valid_from || copy_end[i] <= since_nanos) {
+                continue;
+            }
+            JSONArray bands_json = new JSONArray();
+            for (int b = 0; b < bands; b++) {
+                bands_json.put(copy_bands[i * bands + b]);
+            }
+            JSONObject spectrum_json = new JSONObject();
+            spectrum_json.put("id", id);
+            spectrum_json.put("start", copy_start[i]);
+            spectrum_json.put("end", copy_end[i]);
+            spectrum_json.put("sample_rate", copy_features[i][0]);
+            spectrum_json.put("dominant_frequency", copy_features[i][1]);
+            spectrum_json.put("entropy", copy_features[i][2]);
+            spectrum_json.put("energy", copy_features[i][3]);
+            spectrum_json.put("bands", bands_json);
+            spectrum_json.put("compute_us", copy_compute_us[i]);
+            spectra_json.put(spectrum_json);
+        }
+    }
+}
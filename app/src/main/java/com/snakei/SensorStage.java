@@ -0,0 +1,39 @@
+package com.snakei;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * A processing stage attached to a sensor slot, that is fed with every
+ * sample of the sensor on the sensor thread and keeps its results for
+ * readers on other threads, e.g. SensorAggregator or SensorSpectrum
+ *
+ * Cf. addAggregator and addSpectrum in SensorService.java
+ *
+ */
+interface SensorStage {
+
+    /* Id of the stage, unique within the process */
+    int getId();
+
+
+    /*
+     * Feeds a sample to the stage
+     *
+     * MUST ONLY be called from the single writer thread,
+     * must not allocate memory
+     *
+     */
+    void add(long timestamp, float[] values, int count);
+
+
+    /*
+     * Serializes the results that end after `since_nanos`, oldest first,
+     * as JSON objects and appends them to the passed JSON array
+     *
+     * May be called from any thread
+     *
+     */
+    void appendResults(JSONArray results_json, long since_nanos)
+            throws JSONException;
+}
@@ -0,0 +1,127 @@
+package com.snakei;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters that show how busy the SensorService sensor thread is
+ *
+ *  - Queue depth: the number of sensor events the looper dispatched in one
+ *    go after waking up, i.e. the number of events that were pending.
+ *    Sensor events don't arrive as messages but are read from the sensor
+ *    queue's file descriptor while the looper polls, so the looper can't
+ *    tell us when a burst ends. Instead events that are delivered less
+ *    than BURST_GAP_NS after the previous one count as one burst, a burst
+ *    ends with the first event after a longer gap.
+ *    If this keeps growing the thread can't keep up with the sensor rates.
+ *
+ *  - Callback latency: the time between the event timestamp and the moment
+ *    the listener received it, including the time spent in the queue and
+ *    the time batched in a sensor's hardware FIFO.
+ *
+ * Counters are only written on the sensor thread and may be read from any
+ * thread. They are cumulative since the last reset.
+ *
+ */
+class SensorThreadStats {
+
+    // Events of one burst are delivered back to back, within microseconds,
+    // while even the fastest sensors report a few hundred microseconds apart
+    static final long BURST_GAP_NS = 200000;
+
+    private volatile long events;
+    private volatile long wakeups;
+    private volatile long latency_events;
+    private volatile long latency_sum_us;
+    private volatile int latency_max_us;
+    private volatile int latency_last_us;
+    private volatile int queue_depth_max;
+    private volatile int queue_depth_last;
+
+    // Events dispatched in the current burst, and when the last of them
+    // was delivered
+    private int burst;
+    private long last_delivery_ns;
+
+
+    /*
+     * Called on the sensor thread for each received event
+     *
+     * Does not allocate memory
+     *
+     */
+    void onEvent(long event_timestamp) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (burst > 0 && now - last_delivery_ns > BURST_GAP_NS) {
+            end_burst();
+        }
+        last_delivery_ns = now;
+        burst++;
+        events++;
+
+        // Sensor event timestamps use the elapsed realtime clock
+        long latency_us = (now - event_timestamp) / 1000;
+        if (latency_us < 0 || latency_us > Integer.MAX_VALUE) {
+            // Some devices use a different clock for sensor timestamps
+            return;
+        }
+        latency_last_us = (int) latency_us;
+        latency_events++;
+        latency_sum_us += latency_us;
+        if (latency_us > latency_max_us) {
+            latency_max_us = (int) latency_us;
+        }
+    }
+
+
+    /*
+     * Internal helper that counts the burst that ended, called on the
+     * sensor thread with the first event after it
+     */
+    private void end_burst() {
+        wakeups++;
+        queue_depth_last = burst;
+        if (burst > queue_depth_max) {
+            queue_depth_max = burst;
+        }
+        burst = 0;
+    }
+
+
+    /*
+     * Returns the counters as JSONObject and optionally resets them
+     *
+     * Note: A reset from a thread other than the sensor thread may race with
+     * the sensor thread, losing counts of events received concurrently
+     *
+     */
+    JSONObject toJSON(boolean reset) throws JSONException {
+        long tmp_events = events;
+        long tmp_wakeups = wakeups;
+
+        JSONObject stats_json = new JSONObject();
+        stats_json.put("events", tmp_events);
+        stats_json.put("wakeups", tmp_wakeups);
+        stats_json.put("queue_depth_last", queue_depth_last);
+        stats_json.put("queue_depth_max", queue_depth_max);
+        stats_json.put("queue_depth_avg",
+                tmp_wakeups > 0 ? (double) tmp_events / tmp_wakeups : 0);
+        stats_json.put("latency_last_us", latency_last_us);
+        stats_json.put("latency_max_us", latency_max_us);
+        long tmp_latency_events = latency_events;
+        stats_json.put("latency_avg_us", tmp_latency_events > 0 ?
+                latency_sum_us / tmp_latency_events : 0);
+
+        if (reset) {
+            events = 0;
+            wakeups = 0;
+            latency_events = 0;
+            latency_sum_us = 0;
+            latency_max_us = 0;
+            queue_depth_max = 0;
+        }
+        return stats_json;
+    }
+}
@@ -64,6 +64,10 @@ Java_com_snakei_PythonInterpreterService_runScript(
 
   interpreter_run(argc, argv);
 
+  // Sensor callback threads must not enter Python while it is finalized,
+  // atexit does this too, unless it could not be imported
+  sensor_stop_callbacks();
+
   // Once interpreter_run returns we should be done with this process
    Py_Finalize();
 
@@ -111,11 +115,8 @@ void interpreter_init(char* home, char* path) {
 
   // Some snakei components need to start resources (drains battery)
   // Think of a way to start and STOP!!! in Seattle (only when needed)
+  // Sensors are started on first read (cf. sensors.c)
   LOGI("Starting C-Python Extension Java targets");
-  int i;
-  for (i = 1;  i <= 17; i++) {
-    sensor_start_sensing(i);
-  }
   media_start_media();
   location_start_location();
 
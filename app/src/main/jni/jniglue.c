@@ -58,6 +58,9 @@
 
 #include "jniglue.h"
 
+int __handle_errors(JNIEnv* jni_env, const char *where);
+static PyObject* __json_decode(JNIEnv* jni_env, jstring java_string);
+
 /*
  * Attach current thread to Java VM and return a valid JNIEnv pointer
  */
@@ -184,6 +187,34 @@ jobjectArray jni_get_string_array(int argc, char *argv[]) {
 }
 
 
+/*
+ * Takes a C array of ints, creates a Java int array from it
+ * and returns a reference to the Java array
+ *
+ * <Arguments>
+ *   count - Number of ints (int)
+ *   values - C array of ints (const jint*)
+ *
+ * <Returns>
+ *   array - Native reference to Java int array (jintArray)
+ *
+ * Note:
+ *  - REQUIRES CALL TO jni_delete_reference WHEN NO LONGER NEED !!!
+ *
+ */
+jintArray jni_get_int_array(int count, const jint *values) {
+    JNIEnv *jni_env;
+    jintArray int_array;
+
+    jni_env = jni_get_env();
+    int_array = (*jni_env)->NewIntArray(jni_env, count);
+    if (int_array != NULL) {
+        (*jni_env)->SetIntArrayRegion(jni_env, int_array, 0, count, values);
+    }
+    return int_array;
+}
+
+
 /*
  * Takes a Java Class name, searches for the Class in the JVM and returns
  * a Java Class reference
@@ -385,6 +416,70 @@ jobject jni_get_instance(jclass class, jmethodID getter) {
 
 
 
+/*
+ * Calls a Java Method that returns a direct java.nio.ByteBuffer on the
+ * Java Object returned by the passed getter, passing variadic arguments,
+ * and returns a global reference to the buffer, as well as the address
+ * and the capacity of its memory
+ *
+ * The global reference keeps the buffer, and hence its memory, from being
+ * garbage collected, so that the address can be cached and used without
+ * calling into Java again
+ *
+ * <Arguments>
+ *   address - Pointer that receives the buffer's memory address (void**)
+ *   capacity - Pointer that receives the buffer's capacity in bytes (jlong*)
+ *   class - Native reference to Java class of the Method to be called (jclass)
+ *   get_instance - Native reference to Constructor of that class (jmethodID)
+ *   cached_method - Native reference to Java Method to be called (jmethodID)
+ *   ... - Variadic arguments to be passed on to Java Method
+ *
+ * <Returns>
+ *   buffer - Global reference to the Java ByteBuffer (jobject) or
+ *     NULL if Java returned NULL or no direct buffer, or
+ *     NULL with a Python Exception set if Java threw an exception
+ *
+ * Note:
+ *  - REQUIRES CALL TO jni_delete_global_reference WHEN NO LONGER NEED !!!
+ *
+ */
+jobject jni_get_direct_buffer(void **address, jlong *capacity,
+        jclass class, jmethodID get_instance, jmethodID cached_method, ...) {
+    JNIEnv *jni_env;
+    va_list args;
+    jobject instance;
+    jobject buffer;
+    jobject global_buffer = NULL;
+
+    jni_env = jni_get_env();
+    instance = jni_get_instance(class, get_instance);
+
+    va_start(args, cached_method);
+    buffer = (*jni_env)->CallObjectMethodV(
+            jni_env, instance, cached_method, args);
+    va_end(args);
+    (*jni_env)->DeleteLocalRef(jni_env, instance);
+
+    if (__handle_errors(jni_env, "jni_get_direct_buffer")) {
+        return NULL;
+    }
+    if (buffer == NULL) {
+        return NULL;
+    }
+
+    *address = (*jni_env)->GetDirectBufferAddress(jni_env, buffer);
+    *capacity = (*jni_env)->GetDirectBufferCapacity(jni_env, buffer);
+    if (*address != NULL && *capacity > 0) {
+        global_buffer = (*jni_env)->NewGlobalRef(jni_env, buffer);
+    } else {
+        LOGI("jni_get_direct_buffer received no direct buffer");
+    }
+    (*jni_env)->DeleteLocalRef(jni_env, buffer);
+
+    return global_buffer;
+}
+
+
 /* JNI Python helpers - call Java return python */
 
 
@@ -512,6 +607,47 @@ PyObject* _boolean(
 }
 
 
+/*
+ * Like _boolean but releases the Python Global Interpreter Lock (GIL) while
+ * the Java Method runs, so that other Python threads can run meanwhile
+ *
+ * Use this for Java Methods that block, e.g. wait for an event.
+ * The Java Method must not call back into Python.
+ *
+ * <Arguments>
+ *   jni_env - Pointer to JNI environment this thread is attached to (JNIEnv*)
+ *   object - Java Object whose method is to be called (jobject)
+ *   method - Java Object method to be called (jmethodID)
+ *   args - Arguments that get passed to the Java method (va_list)
+ *
+ * <Returns>
+ *  Py_True or Py_False or NULL if Java threw an exception
+ *
+ * Note:
+ *   Does not need to be called directly, but passed as function pointer to
+ *   wrapper jni_py_call for this method that takes care of attaching thread
+ *   to JVM and instantiating the needed object
+ */
+PyObject* _boolean_allow_threads(
+        JNIEnv* jni_env, jobject object, jmethodID method, va_list args) {
+    jboolean success;
+
+    Py_BEGIN_ALLOW_THREADS
+    success = (*jni_env)->CallBooleanMethodV(jni_env, object, method, args);
+    Py_END_ALLOW_THREADS
+
+    // Handle errors only after re-acquiring the GIL, it raises in Python
+    if (__handle_errors(jni_env, "_boolean_allow_threads")) {
+        return NULL;
+    }
+    if (success) {
+        Py_RETURN_TRUE;
+    } else {
+        Py_RETURN_FALSE;
+    }
+}
+
+
 /*
  * Calls int Java Method on passed Java object passing variadic
  * arguments and converts returned Java int to Python int
@@ -632,9 +768,6 @@ PyObject* _string(
 PyObject* _json(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args) {
     jstring java_string;
-    const char *c_string_const;
-    char *c_string;
-    PyObject *py_object = NULL;
 
     java_string = (*jni_env)->CallObjectMethodV(jni_env, object, method, args);
 
@@ -644,11 +777,75 @@ PyObject* _json(
         return NULL;
     }
 
+    return __json_decode(jni_env, java_string);
+}
+
+
+/*
+ * Like _json but releases the Python Global Interpreter Lock (GIL) while
+ * the Java Method runs, so that other Python threads can run meanwhile
+ *
+ * Use this for Java Methods that block, e.g. wait for samples.
+ * The Java Method must not call back into Python.
+ *
+ * <Arguments>
+ *   jni_env - Pointer to JNI environment this thread is attached to (JNIEnv*)
+ *   object - Java Object whose method is to be called (jobject)
+ *   method - Java Object method to be called (jmethodID)
+ *   args - Arguments that get passed to the Java method (va_list)
+ *
+ * <Returns>
+ *   Python Dictionary or List or
+ *     Python None (Py_None) if Java returned NULL or
+ *     NULL if Java threw an exception
+ *
+ * Note:
+ *   Does not need to be called directly, but passed as function pointer to
+ *   wrapper jni_py_call for this method that takes care of attaching thread
+ *   to JVM and instantiating the needed object
+ *
+ */
+PyObject* _json_allow_threads(
+        JNIEnv* jni_env, jobject object, jmethodID method, va_list args) {
+    jstring java_string;
+
+    Py_BEGIN_ALLOW_THREADS
+    java_string = (*jni_env)->CallObjectMethodV(jni_env, object, method, args);
+    Py_END_ALLOW_THREADS
+
+    // Handle errors only after re-acquiring the GIL, it raises in Python
+    if (__handle_errors(jni_env, "_json_allow_threads")) {
+        return NULL;
+    }
+
+    return __json_decode(jni_env, java_string);
+}
+
+
+/*
+ * Internal helper for _json and _json_allow_threads that decodes a Java
+ * String as Python Object and deletes the reference to the String
+ *
+ * Returns None for NULL and for the empty string
+ */
+static PyObject* __json_decode(JNIEnv* jni_env, jstring java_string) {
+    const char *c_string_const;
+    char *c_string;
+    PyObject *py_object = NULL;
+
     if(java_string == NULL) {
         LOGI("_json received NULL");
         Py_RETURN_NONE;
     }
 
+    // The empty string is no JSON, conditional reads return it if the
+    // caller has the data already (cf. UNCHANGED in SensorService.java),
+    // which is common enough to skip converting and logging it
+    if ((*jni_env)->GetStringLength(jni_env, java_string) == 0) {
+        (*jni_env)->DeleteLocalRef(jni_env, java_string);
+        Py_RETURN_NONE;
+    }
+
     // Convert Java string to C const char*
     // JNI method will only give us a const char* although we want a char*
     c_string_const = (*jni_env)->GetStringUTFChars(jni_env, java_string, 0);
@@ -24,6 +24,7 @@ void jni_delete_global_reference(jobject obj);
 
 jstring jni_get_string(char *string);
 jobject jni_get_string_array(int argc, char *argv[]);
+jintArray jni_get_int_array(int count, const jint *values);
 
 
 jclass jni_find_class(const char *class_name);
@@ -34,6 +35,8 @@ jmethodID jni_find_method(
 jmethodID jni_find_static_method(
         jclass class, const char *method_name, const char *type_signature);
 jobject jni_get_instance(jclass class, jmethodID getter);
+jobject jni_get_direct_buffer(void **address, jlong *capacity,
+        jclass class, jmethodID get_instance, jmethodID cached_method, ...);
 
 
 /* JNI Python helpers - call Java return python */
@@ -42,12 +45,16 @@ PyObject* _void(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
 PyObject* _boolean(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
+PyObject* _boolean_allow_threads(
+        JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
 PyObject* _int(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
 PyObject* _string(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
 PyObject* _json(
         JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
+PyObject* _json_allow_threads(
+        JNIEnv* jni_env, jobject object, jmethodID method, va_list args);
 
 PyObject* jni_py_call(
         PyObject* (*_jni_py_call)(JNIEnv*, jobject, jmethodID, va_list),
@@ -9,15 +9,25 @@
  * Module initialization - call initlocation() from C
  *  - Initializes Python module (location)
  *
- * Location initialization - call location_start_location from C
+ * Location initialization - call location_start_location from C or
+ *   location.start_location([interval_ms[, fastest_interval_ms[, priority[,
+ *   min_displacement_m]]]]) from Python
  *  - Calls start_location Java Method to register location update listener
- *      on location provider
+ *      on location provider, optionally with a custom request, e.g. one fix
+ *      a minute at location.PRIORITY_BALANCED_POWER_ACCURACY
  *
  * Get location values - call location.get_* from Python
  *  - Calls the according get* Method in Java
  *  - Return values are documented in LocationService.java
+ *  - location.get_locations_since returns all locations received since a
+ *    given time in one call, instead of only the most recent one
+ *  - location.get_geolocation results are cached per grid cell, cf.
+ *    location.set_geocoder_cache
  *
- * Location de-initialization - call location_stop_location from C
+ * Location de-initialization - call location_stop_location from C or
+ *   location.stop_location() from Python
+ *  - Returns right away, the connection to Google Play Services is kept
+ *    for the next start_location, cf. location.get_google_api_status
  *  - Calls stop_location Java Method to unregister location update listener in
  *  - order to free resources
  *
@@ -62,6 +72,62 @@ void location_stop_location() {
 }
 
 
+/*
+ * Cf. start_location() in LocationService.java for details
+ *
+ * Arguments (all optional)
+ *   Interval in milliseconds (long), defaults to
+ *     LOCATION_DEFAULT_INTERVAL_MS
+ *   Fastest interval in milliseconds (long), defaults to
+ *     LOCATION_DEFAULT_FASTEST_INTERVAL_MS
+ *   Priority (int), one of the location.PRIORITY_* constants, defaults to
+ *     location.PRIORITY_HIGH_ACCURACY
+ *   Minimum displacement in meters (float), defaults to 0
+ *
+ * Example:
+ *   location.start_location(60000, 30000,
+ *       location.PRIORITY_BALANCED_POWER_ACCURACY, 50)
+ *
+ */
+PyObject* location_py_start_location(PyObject *self, PyObject *args) {
+    PY_LONG_LONG interval_ms = LOCATION_DEFAULT_INTERVAL_MS;
+    PY_LONG_LONG fastest_interval_ms = LOCATION_DEFAULT_FASTEST_INTERVAL_MS;
+    jint priority = LOCATION_PRIORITY_HIGH_ACCURACY;
+    double min_displacement_m = 0;
+
+    if (!PyArg_ParseTuple(args, "|LLid", &interval_ms, &fastest_interval_ms,
+            &priority, &min_displacement_m)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_location_class, cached_location_get_instance,
+            cached_location_start_location_with_request, (jlong) interval_ms,
+            (jlong) fastest_interval_ms, priority,
+            (jdouble) min_displacement_m);
+}
+
+
+/*
+ * Cf. stop_location() in LocationService.java for details
+ */
+PyObject* location_py_stop_location(PyObject *self) {
+    return jni_py_call(_void,
+            cached_location_class, cached_location_get_instance,
+            cached_location_stop_location);
+}
+
+
+/*
+ * Cf. getGoogleApiStatus() in LocationService.java for details
+ */
+PyObject* location_get_google_api_status(PyObject *self) {
+    return jni_py_call(_json,
+            cached_location_class, cached_location_get_instance,
+            cached_location_get_google_api_status);
+}
+
 
 /*
  * Cf. getLocation() in LocationService.java for details
@@ -73,6 +139,63 @@ PyObject* location_get_location() {
 }
 
 
+/*
+ * Cf. getLocationIfNewer() in LocationService.java for details
+ *
+ * Arguments
+ *   Version of the locations the caller has (long), 0 if none
+ *
+ * Returns None if there is no new location, or a list of the version and
+ * the locations like get_location returns them
+ *
+ */
+PyObject* location_get_location_if_newer(PyObject *self, PyObject *args) {
+    PY_LONG_LONG last_version;
+
+    if (!PyArg_ParseTuple(args, "L", &last_version)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_json,
+            cached_location_class, cached_location_get_instance,
+            cached_location_get_location_if_newer, (jlong) last_version);
+}
+
+
+/*
+ * Cf. getLocationsSince() in LocationService.java for details
+ *
+ * Arguments
+ *   Time in milliseconds (long), only locations received after it are
+ *     returned, 0 for all kept locations
+ *   Max number of locations per provider (int, optional), defaults to
+ *     LOCATION_HISTORY_CAPACITY, i.e. all kept locations
+ *
+ * Example:
+ *   since = 0
+ *   while True:
+ *     locations = location.get_locations_since(since) or {}
+ *     for fixes in locations.values():
+ *       since = max(since, fixes[-1][0])
+ *     ...
+ *
+ */
+PyObject* location_get_locations_since(PyObject *self, PyObject *args) {
+    PY_LONG_LONG since_ms;
+    jint max = LOCATION_HISTORY_CAPACITY;
+
+    if (!PyArg_ParseTuple(args, "L|i", &since_ms, &max)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_json,
+            cached_location_class, cached_location_get_instance,
+            cached_location_get_locations_since, (jlong) since_ms, max);
+}
+
+
 /*
  * Cf. getLastKnownLocation() in LocationService.java for details
  */
@@ -108,18 +231,76 @@ PyObject* location_get_geolocation(PyObject *self, PyObject *args) {
 }
 
 
+/*
+ * Cf. setGeocoderCache() in LocationService.java for details
+ *
+ * Arguments
+ *   Max number of cached results (int), 0 disables the cache
+ *   Time to live of a result in milliseconds (long, optional), defaults to
+ *     LOCATION_DEFAULT_GEOCODER_TTL_MS, i.e. a day
+ *   Whether to share the cache with other interpreter processes and keep
+ *     it across restarts (bool, optional, default False)
+ *
+ */
+PyObject* location_set_geocoder_cache(PyObject *self, PyObject *args) {
+    jint max_entries;
+    PY_LONG_LONG ttl_ms = LOCATION_DEFAULT_GEOCODER_TTL_MS;
+    int persistent = 0;
+
+    if (!PyArg_ParseTuple(args, "i|Li", &max_entries, &ttl_ms,
+            &persistent)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_location_class, cached_location_get_instance,
+            cached_location_set_geocoder_cache, max_entries, (jlong) ttl_ms,
+            (jboolean) (persistent != 0));
+}
+
+
+/*
+ * Cf. getGeocoderCacheStats() in LocationService.java for details
+ */
+PyObject* location_get_geocoder_cache_stats(PyObject *self) {
+    return jni_py_call(_json,
+            cached_location_class, cached_location_get_instance,
+            cached_location_get_geocoder_cache_stats);
+}
+
+
 /*
  * Maps C functions to Python module methods
  */
 static PyMethodDef AndroidLocationMethods[] = {
+    {"start_location", (PyCFunction) location_py_start_location, METH_VARARGS,
+        "Start location updates at optional interval, priority and distance"},
+    {"stop_location", (PyCFunction) location_py_stop_location, METH_NOARGS,
+        "Stop location updates"},
+    {"get_google_api_status",
+        (PyCFunction) location_get_google_api_status, METH_NOARGS,
+        "Get state and connect latency (ms) of the Google API client"},
     {"get_location", (PyCFunction) location_get_location, METH_NOARGS,
         "Get locations from GPS, Network and Fused"},
+    {"get_location_if_newer",
+        (PyCFunction) location_get_location_if_newer, METH_VARARGS,
+        "Get version and locations if there is a new location, else None"},
+    {"get_locations_since",
+        (PyCFunction) location_get_locations_since, METH_VARARGS,
+        "Get locations of each provider received after a time (ms)"},
     {"get_lastknown_location",
         (PyCFunction) location_get_lastknown_location, METH_NOARGS,
         "Get last known locations from GPS, Network and Fused"},
     {"get_geolocation",
         (PyCFunction) location_get_geolocation, METH_VARARGS,
         "Get max count of address(es) from latitude and longitude"},
+    {"set_geocoder_cache",
+        (PyCFunction) location_set_geocoder_cache, METH_VARARGS,
+        "Set max entries, time to live (ms) and persistence of geocoder cache"},
+    {"get_geocoder_cache_stats",
+        (PyCFunction) location_get_geocoder_cache_stats, METH_NOARGS,
+        "Get hit, miss and eviction counters of the geocoder cache"},
     {NULL, NULL, 0, NULL} // This is the end-of-array marker
 };
 
@@ -127,6 +308,8 @@ static PyMethodDef AndroidLocationMethods[] = {
 /*
  * Initializes Python module (location)
  *
+ * Adds the priorities of location.start_location as constants
+ *
  * Note:
  * If we wanted to build the module as .so or .dll we could
  * would have to change the signature to
@@ -134,5 +317,15 @@ static PyMethodDef AndroidLocationMethods[] = {
  *
  */
 void location_init_pymodule() {
-    Py_InitModule("location", AndroidLocationMethods);
+    PyObject *module;
+
+    module = Py_InitModule("location", AndroidLocationMethods);
+    PyModule_AddIntConstant(module, "PRIORITY_HIGH_ACCURACY",
+            LOCATION_PRIORITY_HIGH_ACCURACY);
+    PyModule_AddIntConstant(module, "PRIORITY_BALANCED_POWER_ACCURACY",
+            LOCATION_PRIORITY_BALANCED_POWER_ACCURACY);
+    PyModule_AddIntConstant(module, "PRIORITY_LOW_POWER",
+            LOCATION_PRIORITY_LOW_POWER);
+    PyModule_AddIntConstant(module, "PRIORITY_NO_POWER",
+            LOCATION_PRIORITY_NO_POWER);
 }
\ No newline at end of file
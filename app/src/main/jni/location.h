@@ -11,12 +11,35 @@
 #include "snakei.h"
 #include "jniglue.h"
 
+// Cf. DEFAULT_* in LocationService.java
+#define LOCATION_DEFAULT_INTERVAL_MS 1000
+#define LOCATION_DEFAULT_FASTEST_INTERVAL_MS 1000
+
+// Cf. HISTORY_CAPACITY in LocationService.java
+#define LOCATION_HISTORY_CAPACITY 256
+
+// Cf. DEFAULT_TTL_MS in LocationGeocoderCache.java
+#define LOCATION_DEFAULT_GEOCODER_TTL_MS 86400000LL
+
+// Cf. LocationRequest.PRIORITY_* of Google Play Services
+#define LOCATION_PRIORITY_HIGH_ACCURACY 100
+#define LOCATION_PRIORITY_BALANCED_POWER_ACCURACY 102
+#define LOCATION_PRIORITY_LOW_POWER 104
+#define LOCATION_PRIORITY_NO_POWER 105
+
 void location_init_pymodule();
 void location_start_location();
 void location_stop_location();
 void location_init();
+PyObject* location_py_start_location(PyObject *self, PyObject *args);
+PyObject* location_py_stop_location(PyObject *self);
+PyObject* location_get_google_api_status(PyObject *self);
 PyObject* location_get_location();
+PyObject* location_get_location_if_newer(PyObject *self, PyObject *args);
+PyObject* location_get_locations_since(PyObject *self, PyObject *args);
 PyObject* location_get_lastknown_location();
 PyObject* location_get_geolocation(PyObject *self, PyObject *args);
+PyObject* location_set_geocoder_cache(PyObject *self, PyObject *args);
+PyObject* location_get_geocoder_cache_stats(PyObject *self);
 
 #endif //_SNAKEI_location_H_
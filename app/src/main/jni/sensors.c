@@ -11,27 +11,102 @@
  * Module initialization - call initsensor() from C
  *  - Initializes Python module (sensor)
  *
- * Sensor initialization - call sensor_start_sensing from C
+ * Sensor initialization - call
+ *   sensor.start_sensing(type[, sampling_period_us[, max_report_latency_us]])
+ *   from Python
  *  - Calls start_sensing Java Method for a specific Sensor to register Sensor
- *    update listener
- *  - Cf. SensorService.java constants CUSTOM_TYPE_* for a list of all sensors
+ *    update listener, optionally at a specific rate and with hardware
+ *    batching (cf. sensor.flush)
+ *  - Sensors are identified by their Android sensor type (Sensor.TYPE_*),
+ *    the module exports the well-known types as constants, e.g.
+ *    sensor.TYPE_ACCELEROMETER, cf. sensor_types below
  *
- * Get Sensor values - call sensor.get_* from Python
- *  - Calls the according get* Method in Java
+ * Sensors don't have to be started explicitly, reading a sensor starts it
+ * at the default rate and it is stopped again once it isn't read for a
+ * while (cf. sensor.set_idle_timeout). Explicit start_sensing calls are
+ * reference counted, i.e. each must be matched by a stop_sensing call.
+ *
+ * Get Sensor values - call sensor.get_sensor_values(type) from Python
+ *  - Works for any sensor type listed by sensor.get_sensor_list(),
+ *    including vendor specific sensors
+ *  - Reads the most recent sample straight from the memory of a direct
+ *    ByteBuffer, that SensorService shares with us once per sensor type,
+ *    instead of having Java serialize the sample to JSON and decoding it
+ *    here, cf. sensor_get_latest below
+ *  - The well-known sensors can also be read using get_* shortcuts, e.g.
+ *    sensor.get_acceleration(), cf. sensor_types below
  *  - Return values are documented in SensorService.java
  *
- * Sensor de-initialization - call sensor_stop_sensing from C
- *  - Calls stop_sensing Java Method for specific Sensor to unregister
- *    Sensor update listener in order to free resources
+ * Get Sensor values of several sensors at once - call
+ *   sensor.get_snapshot([type, ...]) from Python
+ *  - Returns the most recent samples of all requested sensors from the
+ *    same moment, in a single call into Java
+ *
+ * Get per-window statistics - call sensor.add_aggregator and
+ *   sensor.get_aggregates from Python
+ *  - Count, mean, min, max, variance and RMS of a sensor value (or the
+ *    magnitude of the first three values, sensor.MAGNITUDE) over tumbling
+ *    or sliding windows are computed in Java as the samples arrive,
+ *    only the finished windows are returned
+ *
+ * Get spectral features - call sensor.add_spectrum and
+ *   sensor.get_spectra from Python
+ *  - Dominant frequency, band energies and spectral entropy of a sensor
+ *    value (or sensor.MAGNITUDE) are computed in Java using an FFT over
+ *    the last samples as they arrive, only the features are returned
+ *
+ * Record samples to disk - call sensor.start_recording and
+ *   sensor.stop_recording from Python
+ *  - Samples are appended to memory-mapped binary segment files in Java,
+ *    which sensorlog.py reads back
+ *
+ * Replay a recorded trace - call sensor.start_replay and
+ *   sensor.stop_replay from Python
+ *  - Samples and locations of a CSV trace or a recording are delivered
+ *    in Java in place of those of the device, paced as recorded
+ *
+ * Get the device's orientation - call sensor.start_orientation and
+ *   sensor.get_fused_orientation from Python
+ *  - The rotation vector, or gyroscope, accelerometer and magnetometer,
+ *    are fused in Java as the samples arrive, into azimuth, pitch, roll
+ *    and a quaternion, which are read like the values of a sensor
+ *
+ * Wait for new Sensor values - call sensor.wait_for_sample from Python
+ *  - Blocks until a sensor has a sample newer than the one the caller has
+ *    seen, instead of polling get_sensor_values in a loop
+ *  - Other Python threads keep running while the caller waits
+ *
+ * Wait for trigger sensors - call sensor.wait_for_trigger from Python
+ *  - Blocks until e.g. significant motion is detected, which is a one-shot
+ *    sensor that can't be started like the others, so that high-rate
+ *    sensors only need to run while there is motion
+ *
+ * Get Sensor values pushed - call sensor.add_callback from Python
+ *  - A native dispatcher thread per callback waits in Java for a batch of
+ *    samples with the GIL released, and calls the Python callable once per
+ *    batch with the list of samples, instead of Python polling per sample
+ *
+ * Filter slowly changing sensors - call sensor.set_deadband from Python
+ *  - Samples that barely differ from the last stored sample aren't stored,
+ *    sensor.get_sequence tells readers whether there is a new sample, and
+ *    a sample that is read again is copied instead of decoded again
+ *  - sensor.get_if_newer(type, sequence) only returns a sample if it is
+ *    newer than the one the caller has, else None without any JSON
+ *
+ * Get buffered Sensor values - call sensor.get_samples_since from Python
+ *  - Returns all samples received since a given timestamp in one call,
+ *    instead of polling the most recent value at the sensor's rate
+ *
+ * Sensor de-initialization - call sensor.stop_sensing(type) from Python
+ *  - Calls stop_sensing Java Method for specific Sensor to release the
+ *    reference taken by start_sensing, the Sensor update listener is
+ *    unregistered in order to free resources once nobody uses it anymore
  *
  * Note:
  * We need to think of
- *  - acquiring and releasing resources
  *  - dealing with multiple sensors for one type
- *  - dealing with multiple threads concurrently accessing a sensor
  *
  * Possible other approaches:
- *  - One function for all sensors, like in current Repy Sensor API [1]
  *  - Pass callback functions (cool but harder) that receive the sensor values
  *    from Java on update
  *    e.g.:
@@ -52,6 +127,174 @@
 #include "sensors.h"
 
 
+PyObject* sensor_get_values_of(PyObject *self, PyObject *unused);
+
+
+/*
+ * Table of well-known Android sensor types
+ *
+ * Each entry is exported as Python module constant, e.g.
+ * sensor.TYPE_ACCELEROMETER, and, if it has a getter, as a
+ * get_* shortcut for get_sensor_values(<type>), e.g. sensor.get_acceleration()
+ *
+ * Note: Sensors that are not listed here can still be read using
+ * get_sensor_values(<type>), the table is only for convenience
+ * and backwards compatibility
+ *
+ */
+typedef struct {
+    const char *constant;
+    int type;
+    PyMethodDef getter;
+} sensor_type_info;
+
+static sensor_type_info sensor_types[] = {
+        {"TYPE_ACCELEROMETER", 1,
+        {"get_acceleration", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Returns list of acceleration values"}},
+        {"TYPE_MAGNETIC_FIELD", 2,
+        {"get_magnetic_field", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of magnetic field values"}},
+        {"TYPE_GYROSCOPE", 4,
+        {"get_gyroscope", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of gyroscope values"}},
+        {"TYPE_LIGHT", 5,
+        {"get_light", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of light values"}},
+        {"TYPE_PRESSURE", 6,
+        {"get_pressure", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of pressure values"}},
+        {"TYPE_PROXIMITY", 8,
+        {"get_proximity", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of proximity values"}},
+        {"TYPE_GRAVITY", 9,
+        {"get_gravity", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Returns list of gravity values"}},
+        {"TYPE_LINEAR_ACCELERATION", 10,
+        {"get_linear_acceleration",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of linear acceleration values"}},
+        {"TYPE_ROTATION_VECTOR", 11,
+        {"get_rotation_vector", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of rotation vector values"}},
+        {"TYPE_RELATIVE_HUMIDITY", 12,
+        {"get_relative_humidity",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of relative humidity values"}},
+        {"TYPE_AMBIENT_TEMPERATURE", 13,
+        {"get_ambient_temperature",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Returns list of ambient temperature values"}},
+        {"TYPE_MAGNETIC_FIELD_UNCALIBRATED", 14,
+        {"get_magnetic_field_uncalibrated",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of uncalibrated magnetic field values"}},
+        {"TYPE_GAME_ROTATION_VECTOR", 15,
+        {"get_game_rotation_vector",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Returns list of rotation values"}},
+        {"TYPE_GYROSCOPE_UNCALIBRATED", 16,
+        {"get_gyroscope_uncalibrated",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of uncalibrated gyroscope values"}},
+        {"TYPE_SIGNIFICANT_MOTION", 17, {NULL}},
+        {"TYPE_STEP_DETECTOR", 18, {NULL}},
+        {"TYPE_STEP_COUNTER", 19,
+        {"get_step_counter", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of step counter values"}},
+        {"TYPE_GEOMAGNETIC_ROTATION_VECTOR", 20,
+        {"get_geomagnetic_rotation_vector",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Returns list of geomagnetic rotation vector values"}},
+        {"TYPE_HEART_RATE", 21,
+        {"get_heart_rate", (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of heart rate values"}},
+        {"TYPE_FUSED_ORIENTATION", SENSOR_TYPE_FUSED_ORIENTATION,
+        {"get_fused_orientation",
+        (PyCFunction) sensor_get_values_of, METH_NOARGS,
+         "Return list of azimuth, pitch, roll and quaternion w, x, y, z"}},
+        {NULL, 0, {NULL}} // This is the end-of-array marker
+};
+
+
+/*
+ * Most recent sample of a sensor as written by SensorRingBuffer.java into a
+ * direct ByteBuffer, cf. `latest` there for layout and sequence lock
+ */
+typedef struct {
+    volatile jint sequence;
+    jint count;
+    jlong received;
+    jlong timestamp;
+    jfloat values[];
+} sensor_latest_sample;
+
+
+/*
+ * Cache of the direct ByteBuffers of the sensors read so far
+ *
+ * Entries are added on the first read of a sensor type and never removed,
+ * the global reference keeps the buffer memory valid.
+ * Each entry also keeps the last sample it decoded and that sample's
+ * sequence, so that a sample that is read again isn't decoded again.
+ * Only accessed holding the GIL.
+ */
+typedef struct {
+    jint type;
+    jobject buffer;
+    sensor_latest_sample *sample;
+    int width;
+    PyObject *decoded;
+    jint decoded_sequence;
+} sensor_buffer_info;
+
+#define SENSOR_BUFFER_CACHE_SIZE 64
+static sensor_buffer_info sensor_buffers[SENSOR_BUFFER_CACHE_SIZE];
+static int sensor_buffer_count = 0;
+
+
+/*
+ * Python callbacks registered with sensor.add_callback, each served by its
+ * own dispatcher thread (cf. sensor_dispatch)
+ *
+ * An entry is removed from the table by sensor.remove_callback, or by
+ * sensor_stop_callbacks when the interpreter exits, which clear `running`
+ * and join the dispatcher thread (cf. sensor_join_callback), so that no
+ * dispatcher touches Python anymore once they return. A dispatcher that
+ * ended on its own stays in the table, `finished`, until it is removed or
+ * its table slot is needed.
+ * Only accessed holding the GIL.
+ */
+typedef struct {
+    int id;
+    jint type;
+    PyObject *callable;
+    jint batch_size;
+    jlong max_latency_ms;
+    jlong since;
+    pthread_t thread;
+    int running;
+    int finished;
+    // Removed by its own callable, the dispatcher frees the entry
+    int detached;
+} sensor_callback_info;
+
+static sensor_callback_info *sensor_callbacks[SENSOR_CALLBACK_MAX];
+static int sensor_next_callback_id = 1;
+
+
+/*
+ * Decoded result of the last getSensorList call and its version (cf.
+ * getSensorListVersion in SensorService.java), so that the list is only
+ * serialized and decoded again after a dynamic sensor came or went
+ *
+ * Reset per interpreter in sensor_init_pymodule.
+ * Only accessed holding the GIL.
+ */
+static PyObject *sensor_list = NULL;
+static long sensor_list_version = -1;
+
+
 PyObject* sensor_init() {
     jni_py_call(_void,
                 cached_sensor_class, cached_sensor_get_instance,
@@ -59,265 +302,1424 @@ PyObject* sensor_init() {
 }
 
 /*
- * Calls Java to register a SensorEventListener for a specific
- * sensor to receive Sensor updates
- * Cf. SensorService.java constants CUSTOM_TYPE_* for a list of all sensors
+ * Cf. start_sensing(int, int, int) in SensorService.java for details
  *
- * Not in Python module - needs to be called from C!
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Sampling period in microseconds (int, optional)
+ *   Max report latency in microseconds (int, optional), 0 disables batching
  *
  */
-void sensor_start_sensing(int sensor_type) {
-    jni_py_call(_void,
+PyObject* sensor_py_start_sensing(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    jint sampling_period_us = SENSOR_DEFAULT_SAMPLING_PERIOD_US;
+    jint max_report_latency_us = 0;
+
+    if (!PyArg_ParseTuple(args, "i|ii", &sensor_type, &sampling_period_us,
+            &max_report_latency_us)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_start_sensing, (jint) sensor_type);
+            cached_sensor_start_sensing_with_rate, sensor_type,
+            sampling_period_us, max_report_latency_us);
 }
 
 
 /*
- * Calls Java to unregister the SensorEventListener of a specific
- * sensor to stop receiving Sensor updates
- * Cf. SensorService.java constants CUSTOM_TYPE_* for a list of all sensors
+ * Cf. stop_sensing() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
  *
- * Not in Python module - needs to be called from C!
  */
-void sensor_stop_sensing(int sensor_type) {
-    jni_py_call(_void,
+PyObject* sensor_py_stop_sensing(PyObject *self, PyObject *args) {
+    jint sensor_type;
+
+    if (!PyArg_ParseTuple(args, "i", &sensor_type)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_stop_sensing, sensor_type);
+}
+
+
+/*
+ * Cf. flush() in SensorService.java for details
+ */
+PyObject* sensor_flush(PyObject *self) {
+    return jni_py_call(_boolean,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_flush);
+}
+
+
+/*
+ * Cf. setIdleTimeout() in SensorService.java for details
+ *
+ * Arguments
+ *   Idle timeout in milliseconds (int)
+ *
+ */
+PyObject* sensor_set_idle_timeout(PyObject *self, PyObject *args) {
+    jint timeout_ms;
+
+    if (!PyArg_ParseTuple(args, "i", &timeout_ms)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_stop_sensing, (jint) sensor_type);
+            cached_sensor_set_idle_timeout, timeout_ms);
+}
+
+
+/*
+ * Cf. setBrokerEnabled() in SensorService.java for details
+ *
+ * Arguments
+ *   Whether to read sensors through the sensor broker (bool)
+ *
+ */
+PyObject* sensor_set_broker_enabled(PyObject *self, PyObject *args) {
+    int enabled;
+
+    if (!PyArg_ParseTuple(args, "i", &enabled)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_set_broker_enabled, (jboolean) (enabled != 0));
 }
 
 
 /*
  * Cf. getSensorList() in SensorService.java for details
+ *
+ * Asks Java for the list only if its version changed since the last call,
+ * and otherwise copies the cached list, i.e. a call costs a JNI call that
+ * returns an int and copying a dict per sensor. Callers get their own
+ * list and dicts, so they may modify them without touching the cache.
+ *
  */
 PyObject* sensor_get_sensor_list(PyObject *self) {
-    return jni_py_call(_json,
+    PyObject *version, *list, *item;
+    long list_version;
+    Py_ssize_t i, size;
+
+    version = jni_py_call(_int,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_sensor_list);
+            cached_sensor_get_sensor_list_version);
+    if (version == NULL) {
+        return NULL;
+    }
+    list_version = PyInt_AsLong(version);
+    Py_DECREF(version);
+
+    // Read the list after its version, so that a list that changes in
+    // between is asked for again on the next call
+    if (sensor_list == NULL || list_version != sensor_list_version) {
+        list = jni_py_call(_json,
+                cached_sensor_class, cached_sensor_get_instance,
+                cached_sensor_get_sensor_list);
+        if (list == NULL || !PyList_Check(list)) {
+            // An exception or None, e.g. if there are no sensors
+            return list;
+        }
+        Py_XDECREF(sensor_list);
+        sensor_list = list;
+        sensor_list_version = list_version;
+    }
+
+    size = PyList_GET_SIZE(sensor_list);
+    list = PyList_New(size);
+    if (list == NULL) {
+        return NULL;
+    }
+    for (i = 0; i < size; i++) {
+        item = PyList_GET_ITEM(sensor_list, i);
+        if (PyDict_Check(item)) {
+            item = PyDict_Copy(item);
+            if (item == NULL) {
+                Py_DECREF(list);
+                return NULL;
+            }
+        } else {
+            Py_INCREF(item);
+        }
+        // Steals the reference to item
+        PyList_SET_ITEM(list, i, item);
+    }
+    return list;
 }
 
 
 /*
- * Cf. getAcceleration() in SensorService.java for details
+ * Returns the cached direct ByteBuffer of a sensor type, asks
+ * SensorService for it on the first call for that type
+ *
+ * Returns NULL if there is no buffer for the sensor type, e.g. because
+ * the sensor does not exist, or if Java threw an exception, in which case
+ * the Python exception is set
  */
-PyObject* sensor_get_acceleration(PyObject *self) {
-    return jni_py_call(_json,
+static sensor_buffer_info* sensor_find_buffer(jint sensor_type) {
+    int i;
+    void *address;
+    jlong capacity;
+    jobject buffer;
+    sensor_buffer_info *info;
+
+    for (i = 0; i < sensor_buffer_count; i++) {
+        if (sensor_buffers[i].type == sensor_type) {
+            return &sensor_buffers[i];
+        }
+    }
+    if (sensor_buffer_count == SENSOR_BUFFER_CACHE_SIZE) {
+        return NULL;
+    }
+
+    buffer = jni_get_direct_buffer(&address, &capacity,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_acceleration);
+            cached_sensor_get_latest_buffer, sensor_type);
+    if (buffer == NULL) {
+        return NULL;
+    }
+    if (capacity < (jlong) sizeof(sensor_latest_sample)) {
+        LOGI("sensor_find_buffer received a buffer that is too small");
+        jni_delete_global_reference(buffer);
+        return NULL;
+    }
+
+    info = &sensor_buffers[sensor_buffer_count++];
+    info->type = sensor_type;
+    info->buffer = buffer;
+    info->sample = (sensor_latest_sample*) address;
+    info->width = (int) ((capacity - sizeof(sensor_latest_sample)) /
+            sizeof(jfloat));
+    info->decoded = NULL;
+    info->decoded_sequence = 0;
+    return info;
 }
 
 
 /*
- * Cf. getAmbientTemperature() in SensorService.java for details
+ * Converts a Java long to a Python int, or long if it doesn't fit
  */
-PyObject* sensor_get_ambient_temperature(PyObject *self) {
-    return jni_py_call(_json,
+static PyObject* sensor_py_long(jlong value) {
+    if (value >= LONG_MIN && value <= LONG_MAX) {
+        return PyInt_FromLong((long) value);
+    }
+    return PyLong_FromLongLong((PY_LONG_LONG) value);
+}
+
+
+/*
+ * Copies the most recent sample out of a sensor's direct ByteBuffer and
+ * returns it as Python list, in the format of getSensorValues() in
+ * SensorService.java, i.e.:
+ * [<time received ms>, <timestamp ms>, <value[0]>, ...]
+ *
+ * Values that are NaN or Infinity are None, like in the JSON format
+ *
+ * Returns None if the sensor has not reported a sample yet
+ *
+ * The sequence only changes when a sample is stored (cf. setDeadband in
+ * SensorService.java), if it didn't, the sample decoded last time is
+ * copied instead of decoded again
+ */
+static PyObject* sensor_read_latest(sensor_buffer_info *info) {
+    sensor_latest_sample *sample = info->sample;
+    jfloat values[info->width];
+    jint sequence, count, i;
+    jlong received, timestamp;
+    PyObject *list, *item;
+
+    // Sequence lock, retry while the sensor thread updates the sample
+    for (;;) {
+        sequence = sample->sequence;
+        __sync_synchronize();
+        if (sequence == 0) {
+            Py_RETURN_NONE;
+        }
+        if (sequence == info->decoded_sequence && info->decoded != NULL) {
+            // Callers get their own list, so that they may modify it
+            return PyList_GetSlice(info->decoded, 0, PY_SSIZE_T_MAX);
+        }
+        if ((sequence & 1) == 0) {
+            count = sample->count;
+            if (count < 0 || count > info->width) {
+                count = info->width;
+            }
+            received = sample->received;
+            timestamp = sample->timestamp;
+            memcpy(values, (const void*) sample->values,
+                    count * sizeof(jfloat));
+            __sync_synchronize();
+            if (sample->sequence == sequence) {
+                break;
+            }
+        }
+    }
+
+    list = PyList_New(count + 2);
+    if (list == NULL) {
+        return NULL;
+    }
+    PyList_SET_ITEM(list, 0, sensor_py_long(received));
+    PyList_SET_ITEM(list, 1, sensor_py_long(timestamp / 1000000));
+    for (i = 0; i < count; i++) {
+        if (isnan(values[i]) || isinf(values[i])) {
+            Py_INCREF(Py_None);
+            item = Py_None;
+        } else {
+            item = PyFloat_FromDouble((double) values[i]);
+        }
+        PyList_SET_ITEM(list, i + 2, item);
+    }
+    for (i = 0; i < count + 2; i++) {
+        if (PyList_GET_ITEM(list, i) == NULL) {
+            Py_DECREF(list);
+            return NULL;
+        }
+    }
+
+    Py_XDECREF(info->decoded);
+    info->decoded = list;
+    info->decoded_sequence = sequence;
+    return PyList_GetSlice(list, 0, PY_SSIZE_T_MAX);
+}
+
+
+/*
+ * Returns the sequence number of the most recent sample of a sensor type,
+ * i.e. the number of samples stored so far, which only changes when a
+ * sample is stored, e.g. to skip processing a sample that was seen
+ * already, cf. setDeadband() in SensorService.java
+ *
+ * Like get_sensor_values this starts the sensor if it isn't running.
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_LIGHT
+ *
+ * Returns None if the sensor does not exist
+ *
+ * Example:
+ *   sequence = sensor.get_sequence(sensor.TYPE_LIGHT)
+ *   if sequence != last_sequence:
+ *     last_sequence = sequence
+ *     process(sensor.get_light())
+ *
+ */
+PyObject* sensor_get_sequence(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    sensor_buffer_info *info;
+    PyObject *result;
+    unsigned int sequence;
+
+    if (!PyArg_ParseTuple(args, "i", &sensor_type)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    info = sensor_find_buffer(sensor_type);
+    if (info == NULL) {
+        if (PyErr_Occurred()) {
+            return NULL;
+        }
+        Py_RETURN_NONE;
+    }
+
+    result = jni_py_call(_void,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_ambient_temperature);
+            cached_sensor_touch, sensor_type);
+    if (result == NULL) {
+        return NULL;
+    }
+    Py_DECREF(result);
+
+    // Odd while a sample is written, which is not stored yet
+    sequence = (unsigned int) info->sample->sequence;
+    __sync_synchronize();
+    return PyInt_FromLong((long) (sequence / 2));
 }
 
 
 /*
- * Cf. getGameRotationVector() in SensorService.java for details
+ * Cf. getSensorValuesIfNewer() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_LIGHT
+ *   Sequence number of the last sample the caller has (long), 0 if none
+ *
+ * Returns None if there is no newer sample, or a list of the sequence
+ * number and the sample like get_sensor_values returns it
+ *
+ * Example:
+ *   sequence = 0
+ *   while True:
+ *     result = sensor.get_if_newer(sensor.TYPE_LIGHT, sequence)
+ *     if result:
+ *       sequence, sample = result
+ *       ...
+ *
  */
-PyObject* sensor_get_game_rotation_vector(PyObject *self) {
+PyObject* sensor_get_if_newer(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PY_LONG_LONG last_sequence;
+
+    if (!PyArg_ParseTuple(args, "iL", &sensor_type, &last_sequence)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_game_rotation_vector);
+            cached_sensor_get_sensor_values_if_newer, sensor_type,
+            (jlong) last_sequence);
 }
 
 
 /*
- * Cf. getGeomagneticRotationVector() in SensorService.java for details
+ * Cf. setDeadband() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_PRESSURE
+ *   Absolute deadband (float), 0 for none
+ *   Relative threshold (float, optional, default 0), e.g. 0.01 for 1%
+ *
+ * Example:
+ *   # Only store pressure changes of more than 0.05 hPa
+ *   sensor.set_deadband(sensor.TYPE_PRESSURE, 0.05)
+ *
  */
-PyObject* sensor_get_geomagnetic_rotation_vector(PyObject *self) {
-    return jni_py_call(_json,
+PyObject* sensor_set_deadband(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    float deadband, threshold = 0;
+
+    if (!PyArg_ParseTuple(args, "if|f", &sensor_type, &deadband,
+            &threshold)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_geomagnetic_rotation_vector);
+            cached_sensor_set_deadband, sensor_type, (jdouble) deadband,
+            (jdouble) threshold);
 }
 
 
 /*
- * Cf. getGravity() in SensorService.java for details
+ * Returns the timestamp (ns) of the most recent sample in a sensor's
+ * direct ByteBuffer, or LLONG_MIN if the sensor has not reported a sample
+ * yet, cf. sensor_read_latest
  */
-PyObject* sensor_get_gravity(PyObject *self) {
-    return jni_py_call(_json,
+static jlong sensor_read_latest_timestamp(sensor_buffer_info *info) {
+    sensor_latest_sample *sample = info->sample;
+    jint sequence;
+    jlong timestamp;
+
+    for (;;) {
+        sequence = sample->sequence;
+        __sync_synchronize();
+        if (sequence == 0) {
+            return LLONG_MIN;
+        }
+        if ((sequence & 1) == 0) {
+            timestamp = sample->timestamp;
+            __sync_synchronize();
+            if (sample->sequence == sequence) {
+                return timestamp;
+            }
+        }
+    }
+}
+
+
+/*
+ * Returns the most recent sample of a sensor type, cf. getSensorValues()
+ * in SensorService.java
+ *
+ * Reads the sample from the sensor's direct ByteBuffer, the only call into
+ * Java is touchSensor, which starts the sensor if it isn't running and
+ * fetches new samples from the sensor broker. Falls back to the JSON
+ * getSensorValues if there is no buffer for the type.
+ */
+static PyObject* sensor_get_latest(jint sensor_type) {
+    sensor_buffer_info *info;
+    PyObject *result;
+
+    info = sensor_find_buffer(sensor_type);
+    if (info == NULL) {
+        if (PyErr_Occurred()) {
+            return NULL;
+        }
+        return jni_py_call(_json,
+                cached_sensor_class, cached_sensor_get_instance,
+                cached_sensor_get_sensor_values, sensor_type);
+    }
+
+    result = jni_py_call(_void,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_gravity);
+            cached_sensor_touch, sensor_type);
+    if (result == NULL) {
+        return NULL;
+    }
+    Py_DECREF(result);
+
+    return sensor_read_latest(info);
 }
 
 
 /*
- * Cf. getGyroscope() in SensorService.java for details
+ * Cf. getSensorValues() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *
  */
-PyObject* sensor_get_gyroscope(PyObject *self) {
-    return jni_py_call(_json,
+PyObject* sensor_get_sensor_values(PyObject *self, PyObject *args) {
+    jint sensor_type;
+
+    if (!PyArg_ParseTuple(args, "i", &sensor_type)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return sensor_get_latest(sensor_type);
+}
+
+
+/*
+ * Implements the get_* shortcuts in sensor_types
+ *
+ * Each shortcut is created with its sensor type (Python int) as `self`,
+ * cf. sensor_init_pymodule
+ */
+PyObject* sensor_get_values_of(PyObject *self, PyObject *unused) {
+    return sensor_get_latest((jint) PyInt_AsLong(self));
+}
+
+
+/*
+ * Internal helper that converts a Python sequence of sensor types to a
+ * Java int array, to be deleted by the caller using jni_delete_reference
+ *
+ * Returns NULL with a Python exception set if an item is not an int
+ *
+ */
+static jintArray sensor_get_types_array(PyObject *types_arg) {
+    PyObject *types_seq;
+    Py_ssize_t count, i;
+
+    types_seq = PySequence_Fast(types_arg, "expected a list of sensor types");
+    if (types_seq == NULL) {
+        return NULL;
+    }
+
+    count = PySequence_Fast_GET_SIZE(types_seq);
+    jint sensor_types[count > 0 ? count : 1];
+    for (i = 0; i < count; i++) {
+        sensor_types[i] = (jint) PyInt_AsLong(
+                PySequence_Fast_GET_ITEM(types_seq, i));
+        if (sensor_types[i] == -1 && PyErr_Occurred()) {
+            Py_DECREF(types_seq);
+            return NULL;
+        }
+    }
+    Py_DECREF(types_seq);
+
+    return jni_get_int_array((int) count, sensor_types);
+}
+
+
+/*
+ * Cf. getSnapshot() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor types (list of ints), e.g.
+ *   [sensor.TYPE_ACCELEROMETER, sensor.TYPE_GYROSCOPE]
+ *
+ */
+PyObject* sensor_get_snapshot(PyObject *self, PyObject *args) {
+    PyObject *types_arg, *result;
+    jintArray types_array;
+
+    if (!PyArg_ParseTuple(args, "O", &types_arg)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+    types_array = sensor_get_types_array(types_arg);
+    if (types_array == NULL) {
+        return NULL;
+    }
+
+    result = jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_gyroscope);
+            cached_sensor_get_snapshot, types_array);
+    jni_delete_reference((jobject) types_array);
+
+    return result;
 }
 
 
 /*
- * Cf. getGyroscopeUncalibrated() in SensorService.java for details
+ * Cf. addAggregator() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Window length in milliseconds (int)
+ *   Time between window starts in milliseconds (int, optional),
+ *     defaults to the window length, i.e. tumbling windows
+ *   Index of the aggregated value (int, optional), defaults to
+ *     sensor.MAGNITUDE, the magnitude of the first three values
+ *
+ * Returns the id of the aggregator
+ *
  */
-PyObject* sensor_get_gyroscope_uncalibrated(PyObject *self) {
-    return jni_py_call(_json,
+PyObject* sensor_add_aggregator(PyObject *self, PyObject *args) {
+    jint sensor_type, window_ms;
+    jint slide_ms = -1;
+    jint channel = SENSOR_AGGREGATE_MAGNITUDE;
+
+    if (!PyArg_ParseTuple(args, "ii|ii", &sensor_type, &window_ms,
+            &slide_ms, &channel)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+    if (slide_ms == -1) {
+        slide_ms = window_ms;
+    }
+
+    return jni_py_call(_int,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_gyroscope_uncalibrated);
+            cached_sensor_add_aggregator, sensor_type, window_ms, slide_ms,
+            channel);
 }
 
 
 /*
- * Cf. getHeartRate() in SensorService.java for details
+ * Cf. removeAggregator() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Id returned by add_aggregator (int)
+ *
+ */
+PyObject* sensor_remove_aggregator(PyObject *self, PyObject *args) {
+    jint sensor_type, id;
+
+    if (!PyArg_ParseTuple(args, "ii", &sensor_type, &id)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_remove_aggregator, sensor_type, id);
+}
+
+
+/*
+ * Cf. getAggregates() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Timestamp in nanoseconds, only windows ending after it are returned
+ *     (long, optional, default 0), e.g. "end" of the last window seen
+ *
  */
-PyObject* sensor_get_heart_rate(PyObject *self) {
+PyObject* sensor_get_aggregates(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PY_LONG_LONG since_nanos = 0;
+
+    if (!PyArg_ParseTuple(args, "i|L", &sensor_type, &since_nanos)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_heart_rate);
+            cached_sensor_get_aggregates, sensor_type, (jlong) since_nanos);
+}
+
+
+/*
+ * Cf. addSpectrum() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Number of samples per transform (int), a power of two, e.g. 128
+ *   Number of samples between transforms (int, optional), defaults to
+ *     half the number of samples per transform
+ *   Index of the transformed value (int, optional), defaults to
+ *     sensor.MAGNITUDE, the magnitude of the first three values
+ *   Number of frequency bands (int, optional), defaults to 4
+ *
+ * Returns the id of the spectrum
+ *
+ */
+PyObject* sensor_add_spectrum(PyObject *self, PyObject *args) {
+    jint sensor_type, fft_size;
+    jint hop = -1;
+    jint channel = SENSOR_AGGREGATE_MAGNITUDE;
+    jint bands = SENSOR_DEFAULT_SPECTRUM_BANDS;
+
+    if (!PyArg_ParseTuple(args, "ii|iii", &sensor_type, &fft_size,
+            &hop, &channel, &bands)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+    if (hop == -1) {
+        hop = fft_size / 2;
+    }
+
+    return jni_py_call(_int,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_add_spectrum, sensor_type, fft_size, hop, channel,
+            bands);
 }
 
 
 /*
- * Cf. getLight() in SensorService.java for details
+ * Cf. removeSpectrum() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Id returned by add_spectrum (int)
+ *
  */
-PyObject* sensor_get_light(PyObject *self) {
+PyObject* sensor_remove_spectrum(PyObject *self, PyObject *args) {
+    jint sensor_type, id;
+
+    if (!PyArg_ParseTuple(args, "ii", &sensor_type, &id)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_remove_spectrum, sensor_type, id);
+}
+
+
+/*
+ * Cf. getSpectra() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Timestamp in nanoseconds, only transforms of windows ending after it
+ *     are returned (long, optional, default 0), e.g. "end" of the last
+ *     transform seen
+ *
+ */
+PyObject* sensor_get_spectra(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PY_LONG_LONG since_nanos = 0;
+
+    if (!PyArg_ParseTuple(args, "i|L", &sensor_type, &since_nanos)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_light);
+            cached_sensor_get_spectra, sensor_type, (jlong) since_nanos);
+}
+
+
+/*
+ * Cf. startRecording() in SensorService.java for details
+ *
+ * Arguments
+ *   Name of the recording (string), e.g. "walk"
+ *   Android sensor types (list of int), e.g. [sensor.TYPE_ACCELEROMETER]
+ *   Whether to compress the samples (bool, optional, default True)
+ *
+ * Returns the path of the recording's directory, to be read using
+ * sensorlog.py
+ *
+ */
+PyObject* sensor_start_recording(PyObject *self, PyObject *args) {
+    char *name;
+    int compress = 1;
+    PyObject *types_arg, *result;
+    jintArray types_array;
+    jstring java_name;
+
+    if (!PyArg_ParseTuple(args, "sO|i", &name, &types_arg, &compress)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+    types_array = sensor_get_types_array(types_arg);
+    if (types_array == NULL) {
+        return NULL;
+    }
+
+    java_name = jni_get_string(name);
+    result = jni_py_call(_string,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_start_recording, java_name, types_array,
+            (jboolean) (compress != 0));
+    jni_delete_reference((jobject) java_name);
+    jni_delete_reference((jobject) types_array);
+
+    return result;
 }
 
 
 /*
- * Cf. getLinearAcceleration() in SensorService.java for details
+ * Cf. rotateRecording() in SensorService.java for details
  */
-PyObject* sensor_get_linear_acceleration(PyObject *self) {
+PyObject* sensor_rotate_recording(PyObject *self) {
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_linear_acceleration);
+            cached_sensor_rotate_recording);
 }
 
 
 /*
- * Cf. getMagneticField() in SensorService.java for details
+ * Cf. stopRecording() in SensorService.java for details
  */
-PyObject* sensor_get_magnetic_field(PyObject *self) {
+PyObject* sensor_stop_recording(PyObject *self) {
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_magnetic_field);
+            cached_sensor_stop_recording);
 }
 
 
 /*
- * Cf. getMagneticFieldUncalibrated() in SensorService.java for details
+ * Cf. getRecordingStatus() in SensorService.java for details
  */
-PyObject* sensor_get_magnetic_field_uncalibrated(PyObject *self) {
+PyObject* sensor_get_recording_status(PyObject *self) {
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_magnetic_field_uncalibrated);
+            cached_sensor_get_recording_status);
 }
 
 
 /*
- * Cf. getPressure() in SensorService.java for details
+ * Cf. startReplay() in SensorService.java for details
+ *
+ * Arguments
+ *   Path of a CSV trace or a recording directory (string)
+ *   Speed relative to the recording (float, optional, default 1.0),
+ *     0 replays as fast as possible
+ *
  */
-PyObject* sensor_get_pressure(PyObject *self) {
+PyObject* sensor_start_replay(PyObject *self, PyObject *args) {
+    char *path;
+    double speed = 1.0;
+    PyObject *result;
+    jstring java_path;
+
+    if (!PyArg_ParseTuple(args, "s|d", &path, &speed)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    java_path = jni_get_string(path);
+    result = jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_start_replay, java_path, (jdouble) speed);
+    jni_delete_reference((jobject) java_path);
+
+    return result;
+}
+
+
+/*
+ * Cf. stopReplay() in SensorService.java for details
+ */
+PyObject* sensor_stop_replay(PyObject *self) {
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_pressure);
+            cached_sensor_stop_replay);
 }
 
 
 /*
- * Cf. getProximity() in SensorService.java for details
+ * Cf. getReplayStatus() in SensorService.java for details
  */
-PyObject* sensor_get_proximity(PyObject *self) {
+PyObject* sensor_get_replay_status(PyObject *self) {
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_proximity);
+            cached_sensor_get_replay_status);
 }
 
 
 /*
- * Cf. getRelativeHumidity() in SensorService.java for details
+ * Cf. startOrientation() in SensorService.java for details
+ *
+ * Arguments
+ *   Sampling period of the fused sensors in microseconds (int, optional),
+ *     defaults to SENSOR_DEFAULT_SAMPLING_PERIOD_US
+ *
+ * Returns the list of fused Android sensor types
+ *
+ * Example:
+ *   sensor.start_orientation(20000)
+ *   azimuth, pitch, roll = sensor.get_fused_orientation()[2:5]
+ *   sensor.stop_orientation()
+ *
  */
-PyObject* sensor_get_relative_humidity(PyObject *self) {
+PyObject* sensor_start_orientation(PyObject *self, PyObject *args) {
+    jint sampling_period_us = SENSOR_DEFAULT_SAMPLING_PERIOD_US;
+
+    if (!PyArg_ParseTuple(args, "|i", &sampling_period_us)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_relative_humidity);
+            cached_sensor_start_orientation, sampling_period_us);
+}
+
+
+/*
+ * Cf. stopOrientation() in SensorService.java for details
+ */
+PyObject* sensor_stop_orientation(PyObject *self) {
+    return jni_py_call(_void,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_stop_orientation);
 }
 
 
 /*
- * Cf. getRotationVector() in SensorService.java for details
+ * Cf. waitForSample() in SensorService.java for details
+ *
+ * Releases the GIL while waiting and returns the most recent sample like
+ * get_sensor_values, or None if the timeout expired
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Timestamp in milliseconds of the last sample already seen (long),
+ *     i.e. the second item of a list returned by get_sensor_values,
+ *     0 to return any sample
+ *   Max time to wait in milliseconds (long)
+ *
+ * Example:
+ *   sample = None
+ *   while True:
+ *     sample = sensor.wait_for_sample(sensor.TYPE_ACCELEROMETER,
+ *         sample[1] if sample else 0, 1000)
+ *
  */
-PyObject* sensor_get_rotation_vector(PyObject *self) {
+PyObject* sensor_wait_for_sample(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PY_LONG_LONG after_ms, timeout_ms;
+    PyObject *result;
+    sensor_buffer_info *info;
+
+    if (!PyArg_ParseTuple(args, "iLL", &sensor_type, &after_ms,
+            &timeout_ms)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    // Samples carry nanosecond timestamps, those within the millisecond of
+    // `after_ms` count as seen
+    result = jni_py_call(_boolean_allow_threads,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_wait_for_sample, sensor_type,
+            (jlong) (after_ms * 1000000 + 999999), (jlong) timeout_ms);
+    if (result == NULL) {
+        return NULL;
+    }
+    if (result == Py_False) {
+        Py_DECREF(result);
+        Py_RETURN_NONE;
+    }
+    Py_DECREF(result);
+
+    info = sensor_find_buffer(sensor_type);
+    if (info == NULL) {
+        if (PyErr_Occurred()) {
+            return NULL;
+        }
+        return jni_py_call(_json,
+                cached_sensor_class, cached_sensor_get_instance,
+                cached_sensor_get_sensor_values, sensor_type);
+    }
+    return sensor_read_latest(info);
+}
+
+
+/*
+ * Dispatcher thread of a callback registered with sensor.add_callback
+ *
+ * Holds the GIL except while it waits in Java for the next batch (cf.
+ * waitForSamples() in SensorService.java), i.e. it takes the GIL once per
+ * batch. It wakes up every SENSOR_CALLBACK_WAKEUP_MS to check whether it
+ * was removed, Java holds back the pending samples across these wakeups
+ * until the batch is complete or the latency is over. Exceptions raised by
+ * the callable are printed and don't stop the dispatcher, except
+ * SystemExit. The dispatcher also ends when the callback is removed, or if
+ * the sensor can't be waited for anymore.
+ *
+ */
+static void* sensor_dispatch(void *arg) {
+    sensor_callback_info *info = (sensor_callback_info*) arg;
+    PyGILState_STATE gil_state;
+    PyObject *samples, *last, *result;
+    Py_ssize_t size;
+
+    gil_state = PyGILState_Ensure();
+    while (info->running) {
+        samples = jni_py_call(_json_allow_threads,
+                cached_sensor_class, cached_sensor_get_instance,
+                cached_sensor_wait_for_samples, info->type, info->since,
+                info->batch_size, info->max_latency_ms,
+                (jlong) SENSOR_CALLBACK_WAKEUP_MS);
+        if (samples == NULL) {
+            LOGI("sensor_dispatch could not wait for samples");
+            PyErr_Print();
+            break;
+        }
+
+        // Removed while we waited, the samples are not delivered anymore,
+        // and None if the wakeup came before the batch was due
+        if (info->running && PyList_Check(samples) &&
+                (size = PyList_GET_SIZE(samples)) > 0) {
+            last = PyList_GET_ITEM(samples, size - 1);
+            if (PyList_Check(last) && PyList_GET_SIZE(last) > 1) {
+                info->since = (jlong) PyLong_AsLongLong(
+                        PyList_GET_ITEM(last, 1));
+            }
+            result = PyObject_CallFunctionObjArgs(info->callable, samples,
+                    NULL);
+            if (result == NULL) {
+                if (PyErr_ExceptionMatches(PyExc_SystemExit)) {
+                    // Ends the dispatcher only, like it ends a thread
+                    PyErr_Clear();
+                    Py_DECREF(samples);
+                    break;
+                }
+                PyErr_Print();
+            } else {
+                Py_DECREF(result);
+            }
+        }
+        Py_DECREF(samples);
+    }
+
+    // Whoever joins the thread frees the entry, cf. sensor_join_callback
+    info->finished = 1;
+    if (info->detached) {
+        Py_DECREF(info->callable);
+        free(info);
+    }
+    PyGILState_Release(gil_state);
+    return NULL;
+}
+
+
+/*
+ * Internal helper that stops the dispatcher of a callback that was taken
+ * out of the table, waits for it with the GIL released and frees the
+ * entry
+ *
+ * If the callable removes its own callback, the dispatcher can't be
+ * waited for, it frees the entry itself once the callable returns.
+ *
+ * Must be called holding the GIL
+ */
+static void sensor_join_callback(sensor_callback_info *info) {
+    info->running = 0;
+    if (pthread_equal(info->thread, pthread_self())) {
+        info->detached = 1;
+        pthread_detach(info->thread);
+        return;
+    }
+
+    // The dispatcher needs the GIL to notice that it was removed
+    Py_BEGIN_ALLOW_THREADS
+    pthread_join(info->thread, NULL);
+    Py_END_ALLOW_THREADS
+
+    Py_DECREF(info->callable);
+    free(info);
+}
+
+
+/*
+ * Registers a callable that is called with batches of new samples of a
+ * sensor, on a dispatcher thread (cf. sensor_dispatch above)
+ *
+ * The callable gets a list of samples like get_samples_since returns,
+ * i.e. [[<time received ms>, <timestamp ns>, <value[0]>, ...], ...],
+ * starting with the first sample after the call. A batch holds at least
+ * `batch_size` samples, unless its first sample would wait longer than
+ * `max_latency_ms`. Samples are buffered in Java (cf. getSamplesSince),
+ * if the callable takes longer than the buffer lasts, the oldest samples
+ * are lost.
+ *
+ * Like a read this starts the sensor, it keeps running until the
+ * callback is removed. Callbacks that are still registered when the
+ * interpreter exits are removed then (cf. sensor_stop_callbacks).
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Callable that takes a list of samples
+ *   Number of samples per batch (int, optional, default
+ *     SENSOR_DEFAULT_CALLBACK_BATCH_SIZE)
+ *   Max time in milliseconds a sample is held back to fill a batch (long,
+ *     optional, default SENSOR_DEFAULT_CALLBACK_LATENCY_MS)
+ *
+ * Returns the callback's id, to be passed to remove_callback
+ *
+ * Example:
+ *   def on_samples(samples):
+ *     ...
+ *   callback = sensor.add_callback(sensor.TYPE_ACCELEROMETER, on_samples,
+ *       50, 500)
+ *
+ */
+PyObject* sensor_add_callback(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PyObject *callable;
+    int batch_size = SENSOR_DEFAULT_CALLBACK_BATCH_SIZE;
+    PY_LONG_LONG max_latency_ms = SENSOR_DEFAULT_CALLBACK_LATENCY_MS;
+    sensor_buffer_info *buffer_info;
+    sensor_callback_info *info;
+    int i, slot = -1;
+
+    if (!PyArg_ParseTuple(args, "iO|iL", &sensor_type, &callable,
+            &batch_size, &max_latency_ms)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+    if (!PyCallable_Check(callable)) {
+        PyErr_SetString(PyExc_TypeError, "Callback must be callable");
+        return NULL;
+    }
+    if (batch_size <= 0 || max_latency_ms < 0) {
+        PyErr_SetString(PyExc_ValueError,
+                "Batch size must be positive and latency not negative");
+        return NULL;
+    }
+
+    // Free the table slots of dispatchers that ended on their own
+    for (i = 0; i < SENSOR_CALLBACK_MAX; i++) {
+        info = sensor_callbacks[i];
+        if (info != NULL && info->finished) {
+            sensor_callbacks[i] = NULL;
+            sensor_join_callback(info);
+        }
+    }
+    for (i = 0; i < SENSOR_CALLBACK_MAX; i++) {
+        if (sensor_callbacks[i] == NULL) {
+            slot = i;
+            break;
+        }
+    }
+    if (slot < 0) {
+        PyErr_SetString(PyExc_RuntimeError, "Too many sensor callbacks");
+        return NULL;
+    }
+
+    info = malloc(sizeof(sensor_callback_info));
+    if (info == NULL) {
+        return PyErr_NoMemory();
+    }
+    info->id = sensor_next_callback_id++;
+    info->type = sensor_type;
+    info->batch_size = batch_size;
+    info->max_latency_ms = (jlong) max_latency_ms;
+    info->running = 1;
+    info->finished = 0;
+    info->detached = 0;
+
+    // Deliver samples from now on, cf. sensor_read_latest
+    info->since = LLONG_MIN;
+    buffer_info = sensor_find_buffer(sensor_type);
+    if (buffer_info != NULL) {
+        info->since = sensor_read_latest_timestamp(buffer_info);
+    } else if (PyErr_Occurred()) {
+        free(info);
+        return NULL;
+    }
+
+    Py_INCREF(callable);
+    info->callable = callable;
+
+    // Joinable, cf. sensor_join_callback
+    if (pthread_create(&info->thread, NULL, sensor_dispatch, info) != 0) {
+        Py_DECREF(callable);
+        free(info);
+        PyErr_SetString(PyExc_RuntimeError,
+                "Could not start sensor dispatcher thread");
+        return NULL;
+    }
+
+    sensor_callbacks[slot] = info;
+    return PyInt_FromLong(info->id);
+}
+
+
+/*
+ * Removes a callback registered with sensor.add_callback, the callable is
+ * not called anymore once this returns
+ *
+ * Waits for a running call of the callable to return, with the GIL
+ * released, and for the dispatcher's current wait, i.e. for up to
+ * SENSOR_CALLBACK_WAKEUP_MS.
+ *
+ * Arguments
+ *   Id of the callback (int), as returned by add_callback
+ *
+ */
+PyObject* sensor_remove_callback(PyObject *self, PyObject *args) {
+    int id, i;
+    sensor_callback_info *info;
+
+    if (!PyArg_ParseTuple(args, "i", &id)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    for (i = 0; i < SENSOR_CALLBACK_MAX; i++) {
+        info = sensor_callbacks[i];
+        if (info != NULL && info->id == id) {
+            sensor_callbacks[i] = NULL;
+            sensor_join_callback(info);
+            Py_RETURN_NONE;
+        }
+    }
+    PyErr_Format(PyExc_ValueError, "No sensor callback %d", id);
+    return NULL;
+}
+
+
+/*
+ * Removes all callbacks registered with sensor.add_callback and waits for
+ * their dispatchers, cf. sensor_remove_callback
+ *
+ * Registered with atexit by sensor_init_pymodule and called again before
+ * Py_Finalize (cf. interpreter.c), so that no dispatcher thread enters
+ * Python anymore while or after the interpreter is finalized.
+ *
+ * Must be called holding the GIL
+ */
+void sensor_stop_callbacks() {
+    sensor_callback_info *infos[SENSOR_CALLBACK_MAX];
+    int i;
+
+    // Stop all of them first, so that they end their waits concurrently
+    for (i = 0; i < SENSOR_CALLBACK_MAX; i++) {
+        infos[i] = sensor_callbacks[i];
+        sensor_callbacks[i] = NULL;
+        if (infos[i] != NULL) {
+            infos[i]->running = 0;
+        }
+    }
+    for (i = 0; i < SENSOR_CALLBACK_MAX; i++) {
+        if (infos[i] != NULL) {
+            sensor_join_callback(infos[i]);
+        }
+    }
+}
+
+
+/*
+ * Python wrapper of sensor_stop_callbacks, e.g. for atexit
+ */
+PyObject* sensor_py_stop_callbacks(PyObject *self) {
+    sensor_stop_callbacks();
+    Py_RETURN_NONE;
+}
+
+
+/*
+ * Cf. waitForTrigger() in SensorService.java for details
+ *
+ * Releases the GIL while waiting
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_SIGNIFICANT_MOTION
+ *   Max time to wait in milliseconds (long)
+ *
+ * Returns the event like get_sensor_values, or None if the timeout expired
+ *
+ * Example:
+ *   while True:
+ *     if sensor.wait_for_trigger(sensor.TYPE_SIGNIFICANT_MOTION, 60000):
+ *       sensor.start_sensing(sensor.TYPE_ACCELEROMETER)
+ *       ...
+ *       sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+ *
+ */
+PyObject* sensor_wait_for_trigger(PyObject *self, PyObject *args) {
+    jint sensor_type;
+    PY_LONG_LONG timeout_ms;
+
+    if (!PyArg_ParseTuple(args, "iL", &sensor_type, &timeout_ms)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
+    return jni_py_call(_json_allow_threads,
+            cached_sensor_class, cached_sensor_get_instance,
+            cached_sensor_wait_for_trigger, sensor_type, (jlong) timeout_ms);
+}
+
+
+/*
+ * Cf. getSamplesSince() in SensorService.java for details
+ *
+ * Arguments
+ *   Android sensor type (int), e.g. sensor.TYPE_ACCELEROMETER
+ *   Timestamp in nanoseconds of the last sample already seen (long)
+ *   Max length of returned samples list (int)
+ *
+ */
+PyObject* sensor_get_samples_since(PyObject *self, PyObject *args) {
+    jint sensor_type, max_samples;
+    jlong since_nanos;
+
+    if (!PyArg_ParseTuple(args, "iLi", &sensor_type, &since_nanos,
+            &max_samples)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_rotation_vector);
+            cached_sensor_get_samples_since, sensor_type, since_nanos,
+            max_samples);
 }
 
 
 /*
- * Cf. getStepCounter() in SensorService.java for details
+ * Cf. getSensorThreadStats() in SensorService.java for details
+ *
+ * Arguments
+ *   Reset counters after reading (bool, optional, default False)
+ *
  */
-PyObject* sensor_get_step_counter(PyObject *self) {
+PyObject* sensor_get_thread_stats(PyObject *self, PyObject *args) {
+    int reset = 0;
+
+    if (!PyArg_ParseTuple(args, "|i", &reset)) {
+        // PyArg_ParseTuple has set the exception
+        return NULL;
+    }
+
     return jni_py_call(_json,
             cached_sensor_class, cached_sensor_get_instance,
-            cached_sensor_get_step_counter);
+            cached_sensor_get_thread_stats, (jboolean) (reset != 0));
 }
 
 
 /*
  * Maps C functions to Python module methods
+ * Cf. sensor_types for the get_* shortcuts
  */
 static PyMethodDef AndroidSensorMethods[] = {
+        {"start_sensing", (PyCFunction) sensor_py_start_sensing, METH_VARARGS,
+         "Start sensor type at optional sampling period and report latency (us)"},
+        {"stop_sensing", (PyCFunction) sensor_py_stop_sensing, METH_VARARGS,
+         "Release sensor type started with start_sensing"},
+        {"set_idle_timeout",
+        (PyCFunction) sensor_set_idle_timeout, METH_VARARGS,
+         "Set time (ms) after which sensors that aren't read are stopped"},
+        {"set_broker_enabled",
+        (PyCFunction) sensor_set_broker_enabled, METH_VARARGS,
+         "Read sensors through the sensor broker process or locally"},
+        {"flush", (PyCFunction) sensor_flush, METH_NOARGS,
+         "Deliver events batched in sensor hardware FIFOs right away"},
         {"get_sensor_list", (PyCFunction) sensor_get_sensor_list, METH_NOARGS,
          "Returns list of sensor info dictionaries"},
-        {"get_acceleration",
-        (PyCFunction) sensor_get_acceleration, METH_NOARGS,
-         "Returns list of acceleration values"},
-        {"get_ambient_temperature",
-        (PyCFunction) sensor_get_ambient_temperature, METH_NOARGS,
-         "Returns list of ambient temperature values"},
-        {"get_game_rotation_vector",
-        (PyCFunction) sensor_get_game_rotation_vector, METH_NOARGS,
-         "Returns list of rotation values"},
-        {"get_geomagnetic_rotation_vector",
-        (PyCFunction) sensor_get_geomagnetic_rotation_vector, METH_NOARGS,
-         "Returns list of geomagnetic rotation vector values"},
-        {"get_gravity", (PyCFunction) sensor_get_gravity, METH_NOARGS,
-         "Returns list of gravity values"},
-        {"get_gyroscope", (PyCFunction) sensor_get_gyroscope, METH_NOARGS,
-         "Return list of gyroscope values"},
-        {"get_gyroscope_uncalibrated",
-        (PyCFunction) sensor_get_gyroscope_uncalibrated, METH_NOARGS,
-         "Return list of uncalibrated gyroscope values"},
-        {"get_heart_rate", (PyCFunction) sensor_get_heart_rate, METH_NOARGS,
-         "Return list of heart rate values"},
-        {"get_light", (PyCFunction) sensor_get_light, METH_NOARGS,
-         "Return list of light values"},
-        {"get_linear_acceleration",
-        (PyCFunction) sensor_get_linear_acceleration, METH_NOARGS,
-         "Return list of linear acceleration values"},
-        {"get_magnetic_field",
-        (PyCFunction) sensor_get_magnetic_field, METH_NOARGS,
-         "Return list of magnetic field values"},
-        {"get_magnetic_field_uncalibrated",
-        (PyCFunction) sensor_get_magnetic_field_uncalibrated, METH_NOARGS,
-         "Return list of uncalibrated magnetic field values"},
-        {"get_pressure", (PyCFunction) sensor_get_pressure, METH_NOARGS,
-         "Return list of pressure values"},
-        {"get_proximity", (PyCFunction) sensor_get_proximity, METH_NOARGS,
-         "Return list of proximity values"},
-        {"get_relative_humidity",
-        (PyCFunction) sensor_get_relative_humidity, METH_NOARGS,
-         "Return list of relative humidity values"},
-        {"get_rotation_vector",
-        (PyCFunction) sensor_get_rotation_vector, METH_NOARGS,
-         "Return list of rotation vector values"},
-        {"get_step_counter",
-        (PyCFunction) sensor_get_step_counter, METH_NOARGS,
-         "Return list of step counter values"},
+        {"get_sensor_values",
+        (PyCFunction) sensor_get_sensor_values, METH_VARARGS,
+         "Return list of most recent values of a sensor type"},
+        {"add_aggregator",
+        (PyCFunction) sensor_add_aggregator, METH_VARARGS,
+         "Aggregate a sensor value over tumbling or sliding windows (ms)"},
+        {"remove_aggregator",
+        (PyCFunction) sensor_remove_aggregator, METH_VARARGS,
+         "Remove a window aggregator"},
+        {"get_aggregates",
+        (PyCFunction) sensor_get_aggregates, METH_VARARGS,
+         "Return list of finished windows ending after a timestamp (ns)"},
+        {"add_spectrum",
+        (PyCFunction) sensor_add_spectrum, METH_VARARGS,
+         "Transform a sensor value every few samples using an FFT"},
+        {"remove_spectrum",
+        (PyCFunction) sensor_remove_spectrum, METH_VARARGS,
+         "Remove a spectrum"},
+        {"get_spectra",
+        (PyCFunction) sensor_get_spectra, METH_VARARGS,
+         "Return list of spectra of windows ending after a timestamp (ns)"},
+        {"start_recording",
+        (PyCFunction) sensor_start_recording, METH_VARARGS,
+         "Record samples of several sensor types to binary segment files"},
+        {"rotate_recording",
+        (PyCFunction) sensor_rotate_recording, METH_NOARGS,
+         "Close the current recording segment and start a new one"},
+        {"stop_recording",
+        (PyCFunction) sensor_stop_recording, METH_NOARGS,
+         "Stop recording, returns the recording's state"},
+        {"get_recording_status",
+        (PyCFunction) sensor_get_recording_status, METH_NOARGS,
+         "Return the recording's state, None if not recording"},
+        {"start_replay",
+        (PyCFunction) sensor_start_replay, METH_VARARGS,
+         "Replay a recorded trace in place of the device's sensors"},
+        {"stop_replay",
+        (PyCFunction) sensor_stop_replay, METH_NOARGS,
+         "Stop the replay, returns the replay's state"},
+        {"get_replay_status",
+        (PyCFunction) sensor_get_replay_status, METH_NOARGS,
+         "Return the replay's state, None if not replaying"},
+        {"start_orientation",
+        (PyCFunction) sensor_start_orientation, METH_VARARGS,
+         "Fuse motion sensors into sensor.TYPE_FUSED_ORIENTATION samples"},
+        {"stop_orientation",
+        (PyCFunction) sensor_stop_orientation, METH_NOARGS,
+         "Stop fusing the orientation"},
+        {"get_snapshot", (PyCFunction) sensor_get_snapshot, METH_VARARGS,
+         "Return list of most recent values of several sensor types at once"},
+        {"wait_for_sample",
+        (PyCFunction) sensor_wait_for_sample, METH_VARARGS,
+         "Wait for a sample newer than a timestamp (ms), None on timeout"},
+        {"wait_for_trigger",
+        (PyCFunction) sensor_wait_for_trigger, METH_VARARGS,
+         "Wait for the next event of e.g. a trigger sensor, None on timeout"},
+        {"add_callback",
+        (PyCFunction) sensor_add_callback, METH_VARARGS,
+         "Call a callable with batches of new samples on a dispatcher thread"},
+        {"remove_callback",
+        (PyCFunction) sensor_remove_callback, METH_VARARGS,
+         "Remove a sensor callback"},
+        {"stop_callbacks",
+        (PyCFunction) sensor_py_stop_callbacks, METH_NOARGS,
+         "Remove all sensor callbacks, called when the interpreter exits"},
+        {"get_if_newer",
+        (PyCFunction) sensor_get_if_newer, METH_VARARGS,
+         "Return sequence number and most recent values if newer, else None"},
+        {"set_deadband",
+        (PyCFunction) sensor_set_deadband, METH_VARARGS,
+         "Only store samples that differ from the last stored sample enough"},
+        {"get_sequence",
+        (PyCFunction) sensor_get_sequence, METH_VARARGS,
+         "Return the number of samples stored so far, None if no sensor"},
+        {"get_samples_since",
+        (PyCFunction) sensor_get_samples_since, METH_VARARGS,
+         "Return list of buffered samples newer than a timestamp (ns)"},
+        {"get_thread_stats",
+        (PyCFunction) sensor_get_thread_stats, METH_VARARGS,
+         "Return queue depth and latency counters of the sensor thread"},
         {NULL, NULL, 0, NULL} // This is the end-of-array marker
 };
 
@@ -325,6 +1727,9 @@ static PyMethodDef AndroidSensorMethods[] = {
 /*
  * Initializes Python module (sensor)
  *
+ * Adds a constant for each entry in sensor_types and a get_* shortcut
+ * bound to that sensor type for each entry with a getter
+ *
  * Note:
  * If we wanted to build the module as .so or .dll we could
  * would have to change the signature to
@@ -332,5 +1737,49 @@ static PyMethodDef AndroidSensorMethods[] = {
  *
  */
 void sensor_init_pymodule() {
-    Py_InitModule("sensor", AndroidSensorMethods);
+    PyObject *module, *module_name, *sensor_type, *getter;
+    PyObject *atexit_module, *stop_callbacks, *result;
+    sensor_type_info *info;
+    int i;
+
+    // Objects of a previous interpreter are gone with it, don't release them
+    sensor_list = NULL;
+    sensor_list_version = -1;
+    for (i = 0; i < sensor_buffer_count; i++) {
+        sensor_buffers[i].decoded = NULL;
+    }
+
+    module = Py_InitModule("sensor", AndroidSensorMethods);
+    module_name = PyString_FromString("sensor");
+
+    for (info = sensor_types; info->constant != NULL; info++) {
+        PyModule_AddIntConstant(module, info->constant, info->type);
+
+        if (info->getter.ml_name != NULL) {
+            sensor_type = PyInt_FromLong(info->type);
+            getter = PyCFunction_NewEx(&info->getter, sensor_type,
+                    module_name);
+            Py_DECREF(sensor_type);
+            // Steals the reference to getter
+            PyModule_AddObject(module, info->getter.ml_name, getter);
+        }
+    }
+    PyModule_AddIntConstant(module, "MAGNITUDE", SENSOR_AGGREGATE_MAGNITUDE);
+    Py_DECREF(module_name);
+
+    // Join the callback dispatchers before the interpreter is finalized,
+    // also if the script calls sys.exit (cf. sensor_stop_callbacks)
+    atexit_module = PyImport_ImportModule("atexit");
+    stop_callbacks = PyObject_GetAttrString(module, "stop_callbacks");
+    if (atexit_module != NULL && stop_callbacks != NULL) {
+        result = PyObject_CallMethod(atexit_module, "register", "O",
+                stop_callbacks);
+        Py_XDECREF(result);
+    }
+    if (PyErr_Occurred()) {
+        LOGI("sensor_init_pymodule could not register atexit handler");
+        PyErr_Clear();
+    }
+    Py_XDECREF(stop_callbacks);
+    Py_XDECREF(atexit_module);
 }
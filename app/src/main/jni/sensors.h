@@ -5,29 +5,64 @@
 #include <Python.h>
 #include "snakei.h"
 
+// Cf. DEFAULT_SAMPLING_PERIOD_US in SensorService.java
+#define SENSOR_DEFAULT_SAMPLING_PERIOD_US 200000
+
+// Cf. MAGNITUDE in SensorAggregator.java
+#define SENSOR_AGGREGATE_MAGNITUDE -1
+
+// Cf. TYPE_FUSED_ORIENTATION in SensorOrientation.java
+#define SENSOR_TYPE_FUSED_ORIENTATION -100
+
+// Number of frequency bands reported by sensor.add_spectrum by default
+#define SENSOR_DEFAULT_SPECTRUM_BANDS 4
+
+// Batches of sensor.add_callback, cf. waitForSamples in SensorService.java
+#define SENSOR_DEFAULT_CALLBACK_BATCH_SIZE 32
+#define SENSOR_DEFAULT_CALLBACK_LATENCY_MS 200
+// Max number of callbacks, each has its own dispatcher thread
+#define SENSOR_CALLBACK_MAX 16
+// How often a dispatcher that waits for a batch checks whether it was
+// removed, pending samples are held back across these wakeups
+#define SENSOR_CALLBACK_WAKEUP_MS 500
+
 void sensor_init_pymodule();
-void sensor_start_sensing(int sensor_type);
-void sensor_stop_sensing(int sensor_type);
+void sensor_stop_callbacks();
 
 PyObject* sensor_init();
+PyObject* sensor_py_start_sensing(PyObject *self, PyObject *args);
+PyObject* sensor_py_stop_sensing(PyObject *self, PyObject *args);
+PyObject* sensor_flush(PyObject *self);
+PyObject* sensor_set_idle_timeout(PyObject *self, PyObject *args);
+PyObject* sensor_set_broker_enabled(PyObject *self, PyObject *args);
 PyObject* sensor_get_sensor_list(PyObject *self);
-PyObject* sensor_get_acceleration(PyObject *self);
-PyObject* sensor_get_ambient_temperature(PyObject *self);
-PyObject* sensor_get_game_rotation_vector(PyObject *self);
-PyObject* sensor_get_geomagnetic_rotation_vector(PyObject *self);
-PyObject* sensor_get_gravity(PyObject *self);
-PyObject* sensor_get_gyroscope(PyObject *self);
-PyObject* sensor_get_gyroscope_uncalibrated(PyObject *self);
-PyObject* sensor_get_heart_rate(PyObject *self);
-PyObject* sensor_get_light(PyObject *self);
-PyObject* sensor_get_linear_acceleration(PyObject *self);
-PyObject* sensor_get_magnetic_field(PyObject *self);
-PyObject* sensor_get_magnetic_field_uncalibrated(PyObject *self);
-PyObject* sensor_get_pressure(PyObject *self);
-PyObject* sensor_get_proximity(PyObject *self);
-PyObject* sensor_get_relative_humidity(PyObject *self);
-PyObject* sensor_get_rotation_vector(PyObject *self);
-PyObject* sensor_get_step_counter(PyObject *self);
+PyObject* sensor_get_sensor_values(PyObject *self, PyObject *args);
+PyObject* sensor_add_aggregator(PyObject *self, PyObject *args);
+PyObject* sensor_remove_aggregator(PyObject *self, PyObject *args);
+PyObject* sensor_get_aggregates(PyObject *self, PyObject *args);
+PyObject* sensor_add_spectrum(PyObject *self, PyObject *args);
+PyObject* sensor_remove_spectrum(PyObject *self, PyObject *args);
+PyObject* sensor_get_spectra(PyObject *self, PyObject *args);
+PyObject* sensor_start_recording(PyObject *self, PyObject *args);
+PyObject* sensor_rotate_recording(PyObject *self);
+PyObject* sensor_stop_recording(PyObject *self);
+PyObject* sensor_get_recording_status(PyObject *self);
+PyObject* sensor_start_replay(PyObject *self, PyObject *args);
+PyObject* sensor_stop_replay(PyObject *self);
+PyObject* sensor_get_replay_status(PyObject *self);
+PyObject* sensor_start_orientation(PyObject *self, PyObject *args);
+PyObject* sensor_stop_orientation(PyObject *self);
+PyObject* sensor_get_snapshot(PyObject *self, PyObject *args);
+PyObject* sensor_wait_for_sample(PyObject *self, PyObject *args);
+PyObject* sensor_wait_for_trigger(PyObject *self, PyObject *args);
+PyObject* sensor_add_callback(PyObject *self, PyObject *args);
+PyObject* sensor_remove_callback(PyObject *self, PyObject *args);
+PyObject* sensor_py_stop_callbacks(PyObject *self);
+PyObject* sensor_get_if_newer(PyObject *self, PyObject *args);
+PyObject* sensor_set_deadband(PyObject *self, PyObject *args);
+PyObject* sensor_get_sequence(PyObject *self, PyObject *args);
+PyObject* sensor_get_samples_since(PyObject *self, PyObject *args);
+PyObject* sensor_get_thread_stats(PyObject *self, PyObject *args);
 
 #endif /* defined _SNAKEI_SENSORS_H_ */
 
@@ -73,68 +73,106 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
             cached_sensor_class, "()Lcom/snakei/SensorService;");
     cached_sensor_init = jni_find_method(
             cached_sensor_class,"init","(Landroid/content/Context;)V");
-    cached_sensor_start_sensing = jni_find_method(
-            cached_sensor_class, "start_sensing", "(I)V");
+    cached_sensor_start_sensing_with_rate = jni_find_method(
+            cached_sensor_class, "start_sensing", "(III)V");
     cached_sensor_stop_sensing = jni_find_method(
             cached_sensor_class, "stop_sensing", "(I)V");
+    cached_sensor_flush = jni_find_method(
+            cached_sensor_class, "flush", "()Z");
+    cached_sensor_set_idle_timeout = jni_find_method(
+            cached_sensor_class, "setIdleTimeout", "(I)V");
+    cached_sensor_set_broker_enabled = jni_find_method(
+            cached_sensor_class, "setBrokerEnabled", "(Z)V");
     cached_sensor_get_sensor_list = jni_find_method(
             cached_sensor_class, "getSensorList", "()Ljava/lang/String;");
-    cached_sensor_get_acceleration = jni_find_method(
-            cached_sensor_class, "getAcceleration", "()Ljava/lang/String;");
-    cached_sensor_get_ambient_temperature = jni_find_method(
-            cached_sensor_class,"getAmbientTemperature",
-            "()Ljava/lang/String;");
-    cached_sensor_get_game_rotation_vector = jni_find_method(
-            cached_sensor_class, "getGameRotationVector",
-            "()Ljava/lang/String;");
-    cached_sensor_get_geomagnetic_rotation_vector = jni_find_method(
-            cached_sensor_class, "getGeomagneticRotationVector",
-            "()Ljava/lang/String;");
-    cached_sensor_get_gravity = jni_find_method(
-            cached_sensor_class, "getGravity", "()Ljava/lang/String;");
-    cached_sensor_get_gyroscope = jni_find_method(
-            cached_sensor_class, "getGyroscope", "()Ljava/lang/String;");
-    cached_sensor_get_gyroscope_uncalibrated = jni_find_method(
-            cached_sensor_class, "getGyroscopeUncalibrated",
-            "()Ljava/lang/String;");
-    cached_sensor_get_heart_rate = jni_find_method(
-            cached_sensor_class, "getHeartRate", "()Ljava/lang/String;");
-    cached_sensor_get_light = jni_find_method(
-            cached_sensor_class, "getLight", "()Ljava/lang/String;");
-    cached_sensor_get_linear_acceleration = jni_find_method(
-            cached_sensor_class, "getLinearAcceleration",
-            "()Ljava/lang/String;");
-    cached_sensor_get_magnetic_field = jni_find_method(
-            cached_sensor_class, "getMagneticField","()Ljava/lang/String;");
-    cached_sensor_get_magnetic_field_uncalibrated = jni_find_method(
-            cached_sensor_class, "getMagneticFieldUncalibrated",
-            "()Ljava/lang/String;");
-    cached_sensor_get_pressure = jni_find_method(
-            cached_sensor_class, "getPressure", "()Ljava/lang/String;");
-    cached_sensor_get_proximity = jni_find_method(
-            cached_sensor_class, "getProximity", "()Ljava/lang/String;");
-    cached_sensor_get_relative_humidity = jni_find_method(
-            cached_sensor_class, "getRelativeHumidity","()Ljava/lang/String;");
-    cached_sensor_get_rotation_vector = jni_find_method(
-            cached_sensor_class, "getRotationVector","()Ljava/lang/String;");
-    cached_sensor_get_step_counter = jni_find_method(
-            cached_sensor_class, "getStepCounter", "()Ljava/lang/String;");
+    cached_sensor_get_sensor_list_version = jni_find_method(
+            cached_sensor_class, "getSensorListVersion", "()I");
+    cached_sensor_get_sensor_values = jni_find_method(
+            cached_sensor_class, "getSensorValues", "(I)Ljava/lang/String;");
+    cached_sensor_get_sensor_values_if_newer = jni_find_method(
+            cached_sensor_class, "getSensorValuesIfNewer",
+            "(IJ)Ljava/lang/String;");
+    cached_sensor_get_latest_buffer = jni_find_method(
+            cached_sensor_class, "getLatestBuffer", "(I)Ljava/nio/ByteBuffer;");
+    cached_sensor_touch = jni_find_method(
+            cached_sensor_class, "touchSensor", "(I)V");
+    cached_sensor_set_deadband = jni_find_method(
+            cached_sensor_class, "setDeadband", "(IFF)V");
+    cached_sensor_wait_for_sample = jni_find_method(
+            cached_sensor_class, "waitForSample", "(IJJ)Z");
+    cached_sensor_get_snapshot = jni_find_method(
+            cached_sensor_class, "getSnapshot", "([I)Ljava/lang/String;");
+    cached_sensor_add_aggregator = jni_find_method(
+            cached_sensor_class, "addAggregator", "(IIII)I");
+    cached_sensor_remove_aggregator = jni_find_method(
+            cached_sensor_class, "removeAggregator", "(II)V");
+    cached_sensor_get_aggregates = jni_find_method(
+            cached_sensor_class, "getAggregates", "(IJ)Ljava/lang/String;");
+    cached_sensor_add_spectrum = jni_find_method(
+            cached_sensor_class, "addSpectrum", "(IIIII)I");
+    cached_sensor_remove_spectrum = jni_find_method(
+            cached_sensor_class, "removeSpectrum", "(II)V");
+    cached_sensor_get_spectra = jni_find_method(
+            cached_sensor_class, "getSpectra", "(IJ)Ljava/lang/String;");
+    cached_sensor_start_recording = jni_find_method(
+            cached_sensor_class, "startRecording",
+            "(Ljava/lang/String;[IZ)Ljava/lang/String;");
+    cached_sensor_rotate_recording = jni_find_method(
+            cached_sensor_class, "rotateRecording", "()Ljava/lang/String;");
+    cached_sensor_stop_recording = jni_find_method(
+            cached_sensor_class, "stopRecording", "()Ljava/lang/String;");
+    cached_sensor_get_recording_status = jni_find_method(
+            cached_sensor_class, "getRecordingStatus", "()Ljava/lang/String;");
+    cached_sensor_start_replay = jni_find_method(
+            cached_sensor_class, "startReplay", "(Ljava/lang/String;D)V");
+    cached_sensor_stop_replay = jni_find_method(
+            cached_sensor_class, "stopReplay", "()Ljava/lang/String;");
+    cached_sensor_get_replay_status = jni_find_method(
+            cached_sensor_class, "getReplayStatus", "()Ljava/lang/String;");
+    cached_sensor_start_orientation = jni_find_method(
+            cached_sensor_class, "startOrientation", "(I)Ljava/lang/String;");
+    cached_sensor_stop_orientation = jni_find_method(
+            cached_sensor_class, "stopOrientation", "()V");
+    cached_sensor_get_samples_since = jni_find_method(
+            cached_sensor_class, "getSamplesSince", "(IJI)Ljava/lang/String;");
+    cached_sensor_wait_for_samples = jni_find_method(
+            cached_sensor_class, "waitForSamples", "(IJIJJ)Ljava/lang/String;");
+    cached_sensor_wait_for_trigger = jni_find_method(
+            cached_sensor_class, "waitForTrigger", "(IJ)Ljava/lang/String;");
+    cached_sensor_get_thread_stats = jni_find_method(
+            cached_sensor_class, "getSensorThreadStats", "(Z)Ljava/lang/String;");
 
     /* Cache location */
     cached_location_class = jni_find_class_as_global(
             "com/snakei/LocationService");
     cached_location_start_location = jni_find_method(
             cached_location_class, "start_location", "()V");
+    cached_location_start_location_with_request = jni_find_method(
+            cached_location_class, "start_location", "(JJIF)V");
     cached_location_stop_location = jni_find_method(
             cached_location_class, "stop_location", "()V");
+    cached_location_get_google_api_status = jni_find_method(
+            cached_location_class, "getGoogleApiStatus",
+            "()Ljava/lang/String;");
     cached_location_init = jni_find_method(
             cached_location_class,"init","(Landroid/content/Context;)V");
     cached_location_get_instance = jni_find_getter(
             cached_location_class, "()Lcom/snakei/LocationService;");
     cached_location_get_location = jni_find_method(
             cached_location_class, "getLocation", "()Ljava/lang/String;");
+    cached_location_get_location_if_newer = jni_find_method(
+            cached_location_class, "getLocationIfNewer",
+            "(J)Ljava/lang/String;");
+    cached_location_get_locations_since = jni_find_method(
+            cached_location_class, "getLocationsSince",
+            "(JI)Ljava/lang/String;");
     cached_location_get_geolocation = jni_find_method(
             cached_location_class, "getGeoLocation", "(DDI)Ljava/lang/String;");
+    cached_location_set_geocoder_cache = jni_find_method(
+            cached_location_class, "setGeocoderCache", "(IJZ)V");
+    cached_location_get_geocoder_cache_stats = jni_find_method(
+            cached_location_class, "getGeocoderCacheStats",
+            "()Ljava/lang/String;");
     cached_location_get_lastknown_location = jni_find_method(
             cached_location_class, "getLastKnownLocation",
             "()Ljava/lang/String;");
@@ -63,34 +63,53 @@ jmethodID cached_miscinfo_get_volume_info;
 jclass cached_sensor_class;
 jmethodID cached_sensor_get_instance;
 jmethodID cached_sensor_init;
-jmethodID cached_sensor_start_sensing;
+jmethodID cached_sensor_start_sensing_with_rate;
 jmethodID cached_sensor_stop_sensing;
+jmethodID cached_sensor_flush;
+jmethodID cached_sensor_set_idle_timeout;
+jmethodID cached_sensor_set_broker_enabled;
 jmethodID cached_sensor_get_sensor_list;
-jmethodID cached_sensor_get_acceleration;
-jmethodID cached_sensor_get_ambient_temperature;
-jmethodID cached_sensor_get_game_rotation_vector;
-jmethodID cached_sensor_get_geomagnetic_rotation_vector;
-jmethodID cached_sensor_get_gravity;
-jmethodID cached_sensor_get_gyroscope;
-jmethodID cached_sensor_get_gyroscope_uncalibrated;
-jmethodID cached_sensor_get_heart_rate;
-jmethodID cached_sensor_get_light;
-jmethodID cached_sensor_get_linear_acceleration;
-jmethodID cached_sensor_get_magnetic_field;
-jmethodID cached_sensor_get_magnetic_field_uncalibrated;
-jmethodID cached_sensor_get_pressure;
-jmethodID cached_sensor_get_proximity;
-jmethodID cached_sensor_get_relative_humidity;
-jmethodID cached_sensor_get_rotation_vector;
-jmethodID cached_sensor_get_step_counter;
+jmethodID cached_sensor_get_sensor_list_version;
+jmethodID cached_sensor_get_sensor_values;
+jmethodID cached_sensor_get_sensor_values_if_newer;
+jmethodID cached_sensor_get_latest_buffer;
+jmethodID cached_sensor_touch;
+jmethodID cached_sensor_set_deadband;
+jmethodID cached_sensor_wait_for_sample;
+jmethodID cached_sensor_get_snapshot;
+jmethodID cached_sensor_add_aggregator;
+jmethodID cached_sensor_remove_aggregator;
+jmethodID cached_sensor_get_aggregates;
+jmethodID cached_sensor_add_spectrum;
+jmethodID cached_sensor_remove_spectrum;
+jmethodID cached_sensor_get_spectra;
+jmethodID cached_sensor_start_recording;
+jmethodID cached_sensor_rotate_recording;
+jmethodID cached_sensor_stop_recording;
+jmethodID cached_sensor_get_recording_status;
+jmethodID cached_sensor_start_replay;
+jmethodID cached_sensor_stop_replay;
+jmethodID cached_sensor_get_replay_status;
+jmethodID cached_sensor_start_orientation;
+jmethodID cached_sensor_stop_orientation;
+jmethodID cached_sensor_get_samples_since;
+jmethodID cached_sensor_wait_for_samples;
+jmethodID cached_sensor_wait_for_trigger;
+jmethodID cached_sensor_get_thread_stats;
 
 jclass cached_location_class;
 jmethodID cached_location_start_location;
+jmethodID cached_location_start_location_with_request;
 jmethodID cached_location_stop_location;
+jmethodID cached_location_get_google_api_status;
 jmethodID cached_location_get_instance;
 jmethodID cached_location_init;
 jmethodID cached_location_get_location;
+jmethodID cached_location_get_location_if_newer;
+jmethodID cached_location_get_locations_since;
 jmethodID cached_location_get_geolocation;
+jmethodID cached_location_set_geocoder_cache;
+jmethodID cached_location_get_geocoder_cache_stats;
 jmethodID cached_location_get_lastknown_location;
 
 jclass cached_media_class;
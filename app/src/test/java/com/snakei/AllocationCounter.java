@@ -0,0 +1,76 @@
+package com.snakei;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes the current thread allocates on the heap, using the
+ * HotSpot extension of ThreadMXBean, for tests that back the claim that a
+ * hot path doesn't allocate memory
+ *
+ * Callers should run the measured code a few thousand times before they
+ * measure, so that it is compiled. Even then the JIT may allocate a few
+ * bytes on the measured thread, and reading the counter may itself
+ * allocate a few bytes, cf. getOverhead.
+ *
+ */
+class AllocationCounter {
+
+    private final com.sun.management.ThreadMXBean thread_bean;
+    private final long thread_id;
+    private final long overhead;
+
+
+    AllocationCounter() {
+        java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean)
+                        .isThreadAllocatedMemorySupported()) {
+            thread_bean = (com.sun.management.ThreadMXBean) bean;
+            thread_bean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            thread_bean = null;
+        }
+        thread_id = Thread.currentThread().getId();
+
+        // The smallest of a few empty measurements
+        long min = Long.MAX_VALUE;
+        for (int i = 0; isSupported() && i < 100; i++) {
+            long start = getAllocatedBytes();
+            min = Math.min(min, getAllocatedBytes() - start);
+        }
+        overhead = isSupported() ? min : 0;
+    }
+
+
+    /* Returns whether the JVM counts allocated bytes per thread */
+    boolean isSupported() {
+        return thread_bean != null;
+    }
+
+
+    /*
+     * Returns the number of bytes the current thread allocated so far
+     */
+    long getAllocatedBytes() {
+        return thread_bean.getThreadAllocatedBytes(thread_id);
+    }
+
+
+    /*
+     * Returns the number of bytes that a measurement of no code reports,
+     * i.e. the bytes reading the counter allocates
+     */
+    long getOverhead() {
+        return overhead;
+    }
+
+
+    /*
+     * Returns the number of bytes allocated since `start`
+     * (cf. getAllocatedBytes), without the measurement's overhead
+     */
+    long since(long start) {
+        return Math.max(0, getAllocatedBytes() - start - overhead);
+    }
+}
@@ -0,0 +1,140 @@
+package com.snakei;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Plain JVM tests of SensorRingBuffer, which doesn't depend on Android
+ *
+ * Backs the claim that the sensor thread's hot path (write) doesn't
+ * allocate memory, and that samples are only serialized when a reader
+ * asks for them (getLatest).
+ *
+ */
+public class SensorRingBufferTest {
+
+    // Calls before measuring, so that the JIT has compiled the hot path
+    static final int WARMUP = 50000;
+    static final int EVENTS = 100000;
+
+    // The JIT may still allocate a few bytes on the measuring thread, a
+    // single allocation per event would be at least 16 bytes
+    static final double MAX_BYTES_PER_EVENT = 1.0;
+
+    private AllocationCounter counter;
+    private SensorRingBuffer buffer;
+    private final float[] values = {0.1f, 9.81f, -0.3f};
+
+
+    @Before
+    public void setUp() {
+        counter = new AllocationCounter();
+        buffer = new SensorRingBuffer(256, 3);
+    }
+
+
+    @Test
+    public void testGetLatest() {
+        assertNull(buffer.getLatest());
+        buffer.write(1000, 2000000, values, 3);
+        buffer.write(1001, 3000000, values, 2);
+        assertEquals("[1001,3,0.1,9.81]", buffer.getLatest());
+        assertEquals(3000000, buffer.getLatestTimestamp());
+    }
+
+
+    @Test
+    public void testOverwritesOldest() {
+        for (int i = 1; i <= buffer.capacity + 10; i++) {
+            buffer.write(i, i, values, 1);
+        }
+        assertEquals(buffer.capacity + 10, buffer.size());
+        // Only the newest capacity - 1 samples are safe to read
+        assertEquals(buffer.capacity - 1, buffer.countSince(0));
+        assertEquals("[[266,266,0.1]]", buffer.getSamplesSince(265, 10));
+    }
+
+
+    @Test
+    public void testGetReceivedSince() {
+        assertEquals(-1, buffer.getReceivedSince(0));
+        buffer.write(1000, 2000000, values, 3);
+        buffer.write(1001, 3000000, values, 3);
+        assertEquals(1000, buffer.getReceivedSince(0));
+        assertEquals(1001, buffer.getReceivedSince(2000000));
+        assertEquals(-1, buffer.getReceivedSince(3000000));
+    }
+
+
+    @Test
+    public void testWriteDoesNotAllocate() {
+        assumeTrue("Thread allocation counting not supported",
+                counter.isSupported());
+        write_events(0, WARMUP);
+
+        long start = counter.getAllocatedBytes();
+        write_events(WARMUP, EVENTS);
+        long bytes = counter.since(start);
+        assertTrue("Allocated " + bytes + " bytes by " + EVENTS + " writes",
+                (double) bytes / EVENTS < MAX_BYTES_PER_EVENT);
+    }
+
+
+    @Test
+    public void testReadsAllocateIndependentOfEvents() {
+        assumeTrue("Thread allocation counting not supported",
+                counter.isSupported());
+        for (int i = 0; i < WARMUP; i++) {
+            write_events(i, 1);
+            buffer.getLatest();
+        }
+        read_timestamps(WARMUP);
+
+        // One event per read
+        long start = counter.getAllocatedBytes();
+        write_events(WARMUP, 1);
+        buffer.getLatest();
+        long per_read = counter.since(start);
+
+        // Many events per read cost the same, i.e. events only allocate
+        // when a reader asks for them
+        start = counter.getAllocatedBytes();
+        write_events(WARMUP + 1, EVENTS);
+        buffer.getLatest();
+        long bytes = counter.since(start) - per_read;
+        assertTrue("Allocated " + bytes + " bytes by " + EVENTS +
+                " writes per read", (double) bytes / EVENTS <
+                MAX_BYTES_PER_EVENT);
+
+        // Reading the timestamp doesn't allocate at all
+        start = counter.getAllocatedBytes();
+        read_timestamps(EVENTS);
+        bytes = counter.since(start);
+        assertTrue("Allocated " + bytes + " bytes by " + EVENTS +
+                " timestamp reads", (double) bytes / EVENTS <
+                MAX_BYTES_PER_EVENT);
+    }
+
+
+    /*
+     * Internal helpers with the loops to measure, so that the same compiled
+     * code runs during warmup and measurement
+     */
+    private void write_events(long first, int n) {
+        for (long i = first; i < first + n; i++) {
+            buffer.write(0, i, values, 3);
+        }
+    }
+
+
+    private void read_timestamps(int n) {
+        for (int i = 0; i < n; i++) {
+            buffer.getLatestTimestamp();
+        }
+    }
+}
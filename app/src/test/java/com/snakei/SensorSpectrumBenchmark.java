@@ -0,0 +1,106 @@
+package com.snakei;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Plain JVM microbenchmark of SensorSpectrum, which doesn't depend on
+ * Android for adding samples and transforming them
+ *
+ * Feeds a synthetic 50 Hz accelerometer stream, a 5 Hz sine with some
+ * noise, through spectra of several FFT sizes and prints the time per
+ * sample and per transform. Also checks that the dominant frequency is
+ * found and that adding samples, including the transforms, doesn't
+ * allocate memory.
+ *
+ * Timings of a desktop JVM are only a rough guide to the armeabi-v7a
+ * devices we target, cf. the compute_us reported per transform there.
+ *
+ */
+public class SensorSpectrumBenchmark {
+
+    static final double SAMPLE_RATE = 50.0;
+    static final double FREQUENCY = 5.0;
+    static final int[] FFT_SIZES = {64, 256, 1024, 4096};
+
+    // Samples fed before measuring, so that the JIT has compiled the hot
+    // path, and samples measured
+    static final int WARMUP = 200000;
+    static final int SAMPLES = 500000;
+
+    // The JIT may still allocate a few bytes on the measuring thread, a
+    // single allocation per sample would be at least 16 bytes
+    static final double MAX_BYTES_PER_SAMPLE = 1.0;
+
+    private final float[] values = new float[3];
+    private long sample_count;
+
+
+    @Test
+    public void benchmarkAdd() {
+        for (int fft_size : FFT_SIZES) {
+            // Transform every quarter window, like the default hop
+            SensorSpectrum spectrum = new SensorSpectrum(1, fft_size,
+                    fft_size / 4, SensorAggregator.MAGNITUDE, 4);
+            add_samples(spectrum, WARMUP);
+
+            long transforms = spectrum.size();
+            long start_ns = System.nanoTime();
+            add_samples(spectrum, SAMPLES);
+            long elapsed_ns = System.nanoTime() - start_ns;
+            transforms = spectrum.size() - transforms;
+
+            System.out.println(String.format(
+                    "FFT size %4d: %7.1f ns/sample, %9.1f us/transform",
+                    fft_size, (double) elapsed_ns / SAMPLES,
+                    elapsed_ns / 1000.0 / transforms));
+
+            assertEquals("Transforms of FFT size " + fft_size,
+                    (double) SAMPLES / (fft_size / 4), transforms, 1);
+            // Within a bin of the sine's frequency
+            assertEquals("Dominant frequency of FFT size " + fft_size,
+                    FREQUENCY, spectrum.getLatestDominantFrequency(),
+                    SAMPLE_RATE / fft_size);
+        }
+    }
+
+
+    @Test
+    public void testAddDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        assumeTrue("Thread allocation counting not supported",
+                counter.isSupported());
+
+        SensorSpectrum spectrum = new SensorSpectrum(1, 256, 64,
+                SensorAggregator.MAGNITUDE, 4);
+        add_samples(spectrum, WARMUP);
+
+        long start = counter.getAllocatedBytes();
+        add_samples(spectrum, SAMPLES);
+        long bytes = counter.since(start);
+        assertTrue("Allocated " + bytes + " bytes by " + SAMPLES +
+                " samples", (double) bytes / SAMPLES < MAX_BYTES_PER_SAMPLE);
+    }
+
+
+    /*
+     * Internal helper that adds the next `n` samples of the synthetic
+     * stream, i.e. a sine on the z axis plus gravity, with noise
+     */
+    private void add_samples(SensorSpectrum spectrum, int n) {
+        for (int i = 0; i < n; i++) {
+            double t = sample_count / SAMPLE_RATE;
+            // Deterministic noise, so that runs are comparable
+            double noise = ((sample_count * 7919) % 101 - 50) / 500.0;
+            values[0] = (float) noise;
+            values[1] = (float) -noise;
+            values[2] = (float) (9.81 + Math.sin(2 * Math.PI * FREQUENCY * t) +
+                    noise);
+            spectrum.add((long) (t * 1e9), values, 3);
+            sample_count++;
+        }
+    }
+}
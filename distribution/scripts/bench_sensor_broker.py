@@ -0,0 +1,80 @@
+import android, androidlog, os, sensor, time
+l = androidlog.log
+
+# Measures the CPU time all processes of the app spend while 1, 5 and 9
+# processes read the accelerometer at 100 Hz (cf. bench_sensor_reader.py),
+# first with local listeners in each process as the baseline, then through
+# the sensor broker (":sensors" process), which runs the sensor once for
+# all of them, so its total should grow much less than linearly with the
+# readers.
+#
+# Note: There are only 9 interpreter service processes, one of which runs
+# this script, hence this process is reader number one and we can't go
+# beyond 9 readers.
+
+PACKAGE = "com.sensibility_testbed"
+READER_COUNTS = (1, 5, 9)
+MODES = ("local", "broker")
+WARMUP = 5
+WINDOW = 20
+CLK_TCK = os.sysconf("SC_CLK_TCK")
+
+def app_cpu_ticks():
+  """Returns {process name: utime + stime} for all processes of the app"""
+  ticks = {}
+  for pid in os.listdir("/proc"):
+    if not pid.isdigit():
+      continue
+    try:
+      name = open("/proc/" + pid + "/cmdline").read().split("\0")[0]
+      if not name.startswith(PACKAGE):
+        continue
+      # The process name in stat may contain spaces, skip past it
+      fields = open("/proc/" + pid + "/stat").read().rsplit(")", 1)[1].split()
+      ticks[name] = int(fields[11]) + int(fields[12])
+    except (IOError, IndexError, ValueError):
+      pass
+  return ticks
+
+def read_accelerometer(duration):
+  last = 0
+  end = time.time() + duration
+  while time.time() < end:
+    samples = sensor.get_samples_since(sensor.TYPE_ACCELEROMETER, last, 1000)
+    if samples:
+      last = samples[-1][1]
+    time.sleep(0.02)
+
+results = {}
+for mode in MODES:
+  l("Readers with " + mode + " listeners")
+  sensor.set_broker_enabled(mode == "broker")
+  sensor.start_sensing(sensor.TYPE_ACCELEROMETER, 10000)
+
+  for readers in READER_COUNTS:
+    for i in range(readers - 1):
+      android.popen_python(["bench_sensor_reader.py", str(WARMUP + WINDOW),
+          mode])
+
+    read_accelerometer(WARMUP)
+    before = app_cpu_ticks()
+    read_accelerometer(WINDOW)
+    after = app_cpu_ticks()
+
+    total = 0
+    for name, ticks in sorted(after.items()):
+      used = float(ticks - before.get(name, 0)) / CLK_TCK
+      total += used
+      l("  %-32s %6.2f %% CPU" % (name, 100 * used / WINDOW))
+    results[mode, readers] = 100 * total / WINDOW
+    l("%d readers: %6.2f %% CPU total" % (readers, results[mode, readers]))
+
+    # Give the readers time to exit and free their service processes
+    time.sleep(10)
+
+  sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+
+for readers in READER_COUNTS:
+  l("%d readers: %6.2f %% CPU local, %6.2f %% CPU broker" % (readers,
+      results["local", readers], results["broker", readers]))
+l("Done")
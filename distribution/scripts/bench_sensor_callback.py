@@ -0,0 +1,47 @@
+import androidlog, os, sensor, time
+l = androidlog.log
+
+# Compares receiving all accelerometer samples at the fastest rate by
+# polling get_samples_since from Python with receiving them through
+# sensor.add_callback, which calls Python once per batch from a native
+# dispatcher thread, by the number of calls into Python or Java and the
+# CPU time of this process
+
+WINDOW = 20
+
+def cpu_seconds():
+  times = os.times()
+  return times[0] + times[1]
+
+sensor.start_sensing(sensor.TYPE_ACCELEROMETER, 0)
+while sensor.get_sensor_values(sensor.TYPE_ACCELEROMETER) is None:
+  time.sleep(0.1)
+
+# Polling as fast as possible, so that no sample is lost
+state = {"since": 0, "samples": 0, "calls": 0}
+start, cpu = time.time(), cpu_seconds()
+while time.time() - start < WINDOW:
+  samples = sensor.get_samples_since(sensor.TYPE_ACCELEROMETER,
+      state["since"], 1000)
+  state["calls"] += 1
+  if samples:
+    state["since"] = samples[-1][1]
+    state["samples"] += len(samples)
+l("%-10s %7d samples %7d calls %6.2f s CPU" % ("polling",
+    state["samples"], state["calls"], cpu_seconds() - cpu))
+
+for batch_size, max_latency_ms in ((1, 0), (32, 200), (128, 1000)):
+  state = {"samples": 0, "calls": 0}
+  def on_samples(samples):
+    state["calls"] += 1
+    state["samples"] += len(samples)
+  start, cpu = time.time(), cpu_seconds()
+  callback = sensor.add_callback(sensor.TYPE_ACCELEROMETER, on_samples,
+      batch_size, max_latency_ms)
+  time.sleep(WINDOW)
+  sensor.remove_callback(callback)
+  l("%-10s %7d samples %7d calls %6.2f s CPU" % ("batch %d" % batch_size,
+      state["samples"], state["calls"], cpu_seconds() - cpu))
+
+sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+l("Done")
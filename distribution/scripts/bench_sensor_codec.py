@@ -0,0 +1,42 @@
+import androidlog, sensor, sensorlog, time
+l = androidlog.log
+
+# Compares compressed (cf. SensorSeriesCodec.java) and uncompressed
+# recordings of the same sensors, i.e. the space per sample, the time the
+# sensor thread spends encoding and the time Python spends decoding
+
+DURATION = 30
+TYPES = [sensor.TYPE_ACCELEROMETER, sensor.TYPE_MAGNETIC_FIELD,
+    sensor.TYPE_PRESSURE]
+
+# Streaming sensors, with their minimum sampling period (us)
+streaming = dict((info["type"], info["min_delay"])
+    for info in sensor.get_sensor_list() or [] if info["type"] in TYPES)
+for sensor_type, min_delay in streaming.items():
+  sensor.start_sensing(sensor_type, min_delay)
+
+def bench(name, compress):
+  path = sensor.start_recording("bench_" + name, streaming.keys(), compress)
+  time.sleep(DURATION)
+  status = sensor.stop_recording()
+  samples = max(status["samples"], 1)
+
+  start = time.time()
+  read = len(list(sensorlog.read_samples(path)))
+  elapsed = time.time() - start
+
+  l("%-10s %6.2f bytes per sample, encode %5.2f us per sample, "
+      "decode %6.1f us per sample (%d samples)" % (name,
+      float(status["bytes"]) / samples,
+      float(status["encode_us"]) / samples,
+      1e6 * elapsed / max(read, 1), read))
+
+  return float(status["bytes"]) / samples
+
+raw = bench("raw", False)
+compressed = bench("compressed", True)
+l("Compression ratio vs raw: %.2f" % (raw / compressed))
+
+for sensor_type in streaming:
+  sensor.stop_sensing(sensor_type)
+l("Done")
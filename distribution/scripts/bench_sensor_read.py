@@ -0,0 +1,50 @@
+import androidlog, sensor, time
+l = androidlog.log
+
+# Compares the per-read latency of the binary read path, which
+# get_sensor_values uses (direct ByteBuffer, no JSON), with the JSON path
+# that get_sensor_values used before and get_samples_since still uses,
+# reading a single sample either way, and the latency of the cached
+# sensor list and of conditional reads
+
+READS = 10000
+
+sensor.start_sensing(sensor.TYPE_ACCELEROMETER, 10000)
+while sensor.get_sensor_values(sensor.TYPE_ACCELEROMETER) is None:
+  time.sleep(0.1)
+
+def bench(name, read):
+  start = time.time()
+  for i in xrange(READS):
+    read()
+  elapsed = time.time() - start
+  l("%-12s %8.1f us per read" % (name, 1e6 * elapsed / READS))
+
+bench("binary", lambda: sensor.get_sensor_values(sensor.TYPE_ACCELEROMETER))
+
+# Always returns exactly one sample, the oldest one not older than the
+# last one returned, so that both paths decode the same amount of data
+state = {"since": 0}
+def read_json():
+  samples = sensor.get_samples_since(sensor.TYPE_ACCELEROMETER,
+      state["since"], 1)
+  if samples:
+    state["since"] = samples[0][1] - 1
+  return samples
+bench("json", read_json)
+
+# The sensor list is decoded once and copied per call, cf. sensors.c
+bench("sensor list", sensor.get_sensor_list)
+
+# Conditional reads of a sample the caller has already, i.e. of a slow
+# sensor polled faster than it changes, neither encode nor decode JSON
+# A huge deadband keeps the accelerometer from storing new samples
+sensor.set_deadband(sensor.TYPE_ACCELEROMETER, 1e6)
+time.sleep(0.5)
+result = sensor.get_if_newer(sensor.TYPE_ACCELEROMETER, 0)
+bench("unchanged", lambda: sensor.get_if_newer(sensor.TYPE_ACCELEROMETER,
+    result[0]))
+sensor.set_deadband(sensor.TYPE_ACCELEROMETER, 0)
+
+sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+l("Done")
@@ -0,0 +1,22 @@
+import androidlog, sensor, sys, time
+l = androidlog.log
+
+# Reads the accelerometer like a vessel would, cf. bench_sensor_broker.py
+# Usage: bench_sensor_reader.py <seconds> [broker|local]
+duration = float(sys.argv[1]) if len(sys.argv) > 1 else 30
+mode = sys.argv[2] if len(sys.argv) > 2 else "broker"
+
+sensor.set_broker_enabled(mode == "broker")
+sensor.start_sensing(sensor.TYPE_ACCELEROMETER, 10000)
+last = 0
+received = 0
+end = time.time() + duration
+while time.time() < end:
+  samples = sensor.get_samples_since(sensor.TYPE_ACCELEROMETER, last, 1000)
+  if samples:
+    received += len(samples)
+    last = samples[-1][1]
+  time.sleep(0.02)
+sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+
+l("Reader received " + str(received) + " samples in " + str(duration) + " s")
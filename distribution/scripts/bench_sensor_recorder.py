@@ -0,0 +1,40 @@
+import androidlog, sensor, sensorlog, time
+l = androidlog.log
+
+# Records all streaming sensors at their fastest rate and checks that every
+# sample received on the sensor thread ended up in the recording
+
+DURATION = 60
+
+# Streaming sensors, with their minimum sampling period (us)
+streaming = [(info["type"], info["min_delay"])
+    for info in sensor.get_sensor_list() or [] if info["min_delay"] > 0]
+types = [sensor_type for sensor_type, min_delay in streaming]
+for sensor_type, min_delay in streaming:
+  sensor.start_sensing(sensor_type, min_delay)
+
+sensor.get_thread_stats(True)
+path = sensor.start_recording("bench", types)
+for i in range(DURATION / 10):
+  time.sleep(10)
+  l("Recording:       " + repr(sensor.rotate_recording()))
+status = sensor.stop_recording()
+stats = sensor.get_thread_stats()
+
+for sensor_type in types:
+  sensor.stop_sensing(sensor_type)
+
+start = time.time()
+counts = {}
+for sensor_type, timestamp, values in sensorlog.read_samples(path):
+  counts[sensor_type] = counts.get(sensor_type, 0) + 1
+elapsed = time.time() - start
+
+l("Sensors:         %d" % len(types))
+l("Events received: %d" % stats["events"])
+l("Samples written: %d (%d dropped)" % (status["samples"], status["dropped"]))
+l("Segment stalls:  %d" % status["stalls"])
+l("Samples read:    %d in %.1f s" % (sum(counts.values()), elapsed))
+l("Bytes per sample %.1f" % (float(status["bytes"]) / max(status["samples"], 1)))
+l("Per sensor type: " + repr(counts))
+l("Done")
@@ -0,0 +1,172 @@
+"""
+Reads sensor recordings written by sensor.start_recording, i.e. directories
+of binary segment files (cf. SensorRecorder.java for the format)
+
+  import sensor, sensorlog
+  path = sensor.start_recording("walk", [sensor.TYPE_ACCELEROMETER])
+  ...
+  sensor.stop_recording()
+  for sensor_type, timestamp, values in sensorlog.read_samples(path):
+    ...
+
+Segments are read up to the length written in their header, so that the
+segment that is being recorded can be read too, up to its last block.
+Blocks of sensor types that aren't asked for are skipped without decoding.
+"""
+import os, struct
+
+MAGIC = 0x52534e53
+VERSION = 2
+
+# Block codecs
+RAW = 0
+SERIES = 1
+
+HEADER = struct.Struct("<iiiiq")
+HEADER_SIZE = 32
+BLOCK_HEADER = struct.Struct("<ihBBqi")
+
+
+def list_segments(path):
+  """Returns the paths of the segments of a recording, oldest first."""
+  names = sorted(name for name in os.listdir(path) if name.endswith(".seg"))
+  return [os.path.join(path, name) for name in names]
+
+
+def _read_varint(data, pos):
+  value = 0
+  shift = 0
+  while True:
+    byte = ord(data[pos])
+    pos += 1
+    value |= (byte & 0x7f) << shift
+    if not byte & 0x80:
+      return value, pos
+    shift += 7
+
+
+def _decode_raw(data, pos, count, width, timestamp):
+  timestamps = [timestamp]
+  for i in range(count - 1):
+    zigzag, pos = _read_varint(data, pos)
+    timestamp += (zigzag >> 1) ^ -(zigzag & 1)
+    timestamps.append(timestamp)
+
+  columns = [list(struct.unpack_from("<%df" % count, data, pos + 4 * v * count))
+      for v in range(width)]
+  return timestamps, columns
+
+
+class _BitReader(object):
+  """Reads a bit stream most significant bit first, cf. SensorSeriesCodec."""
+
+  def __init__(self, data, pos):
+    self.data = data
+    self.pos = pos
+    self.byte = 0
+    self.bits = 0
+
+  def read(self, count):
+    result = 0
+    while count > 0:
+      if self.bits == 0:
+        self.byte = ord(self.data[self.pos])
+        self.pos += 1
+        self.bits = 8
+      take = min(count, self.bits)
+      chunk = (self.byte >> (self.bits - take)) & ((1 << take) - 1)
+      result = (result << take) | chunk
+      self.bits -= take
+      count -= take
+    return result
+
+
+def _signed(value, bits):
+  if value >= 1 << (bits - 1):
+    value -= 1 << bits
+  return value
+
+
+_FLOAT = struct.Struct("<f")
+_INT = struct.Struct("<I")
+
+def _decode_series(data, pos, count, width, timestamp):
+  reader = _BitReader(data, pos)
+
+  timestamps = [timestamp]
+  delta = 0
+  for i in range(count - 1):
+    if reader.read(1) == 0:
+      dod = 0
+    elif reader.read(1) == 0:
+      dod = _signed(reader.read(12), 12)
+    elif reader.read(1) == 0:
+      dod = _signed(reader.read(20), 20)
+    elif reader.read(1) == 0:
+      dod = _signed(reader.read(32), 32)
+    else:
+      dod = _signed(reader.read(64), 64)
+    delta += dod
+    timestamp += delta
+    timestamps.append(timestamp)
+
+  columns = []
+  for v in range(width):
+    bits = reader.read(32)
+    column = [bits]
+    leading = trailing = 0
+    for i in range(count - 1):
+      if reader.read(1):
+        if reader.read(1):
+          leading = reader.read(5)
+          trailing = 32 - leading - (reader.read(5) + 1)
+        bits ^= reader.read(32 - leading - trailing) << trailing
+      column.append(bits)
+    columns.append([_FLOAT.unpack(_INT.pack(bits))[0] for bits in column])
+  return timestamps, columns
+
+
+def read_blocks(segment_path, sensor_types=None):
+  """Yields the blocks of a segment as tuples
+  (sensor type, [timestamp, ...], [[value, ...] per sample, ...]),
+  optionally only those of the passed sensor types."""
+  with open(segment_path, "rb") as segment:
+    data = segment.read()
+  if len(data) < HEADER_SIZE:
+    return
+  magic, version, index, length, created = HEADER.unpack_from(data, 0)
+  if magic != MAGIC or version != VERSION:
+    raise ValueError("%s is not a sensor recording segment" % segment_path)
+
+  pos = HEADER_SIZE
+  while pos < min(length, len(data)):
+    (sensor_type, count, width, codec, timestamp,
+        payload_length) = BLOCK_HEADER.unpack_from(data, pos)
+    pos += BLOCK_HEADER.size
+    payload = pos
+    pos += payload_length
+    if sensor_types is not None and sensor_type not in sensor_types:
+      continue
+
+    if codec == SERIES:
+      timestamps, columns = _decode_series(data, payload, count, width,
+          timestamp)
+    elif codec == RAW:
+      timestamps, columns = _decode_raw(data, payload, count, width,
+          timestamp)
+    else:
+      raise ValueError("Unknown codec %d in %s" % (codec, segment_path))
+
+    values = [[column[i] for column in columns] for i in range(count)]
+    yield sensor_type, timestamps, values
+
+
+def read_samples(path, sensor_types=None):
+  """Yields the samples of a recording, segment by segment, as tuples
+  (sensor type, timestamp, [value, ...]), optionally only those of the
+  passed sensor types. Samples are ordered by time per sensor type."""
+  for segment_path in list_segments(path):
+    for sensor_type, timestamps, values in read_blocks(segment_path,
+        sensor_types):
+      for i in range(len(timestamps)):
+        yield sensor_type, timestamps[i], values[i]
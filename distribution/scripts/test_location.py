@@ -1,6 +1,11 @@
 import androidlog, location, sys, time
 l = androidlog.log
 l('Lets do the location')
+# The test polls every 6 s, a fix every 2 s is plenty
+location.start_location(2000, 1000, location.PRIORITY_HIGH_ACCURACY)
+# Addresses of the last hour, shared with other interpreters
+location.set_geocoder_cache(64, 3600000, True)
+since = 0
 while True:
     time.sleep(2)
     loc = location.get_location()
@@ -8,6 +13,12 @@ while True:
     time.sleep(2)
     lkloc = location.get_lastknown_location()
     l("Last Known Location: " + str(lkloc))
+    l("Google API: " + repr(location.get_google_api_status()))
+    history = location.get_locations_since(since) or {}
+    for fixes in history.values():
+        since = max(since, fixes[-1][0])
+    l("Fixes since last poll: " + repr(dict((provider, len(fixes))
+        for provider, fixes in history.items())))
     time.sleep(2)
     if not loc:
         continue
@@ -21,5 +32,6 @@ while True:
     l("Get address for - lon: " + str(lon) + ", lat: " + str(lat))
     address = location.get_geolocation(lat, lon, 2)
     l(repr(address))
+    l("Geocoder cache: " + repr(location.get_geocoder_cache_stats()))
 
 l('KTHXBI')
\ No newline at end of file
@@ -0,0 +1,41 @@
+import androidlog, location, math, os, sensor, time
+l = androidlog.log
+l('Lets replay a made up walk')
+
+# 20 s of acceleration at 50 Hz and a GPS fix per second, cf. SensorReplay.java
+path = os.path.abspath("test_sensor_replay.csv")
+with open(path, "w") as trace:
+  trace.write("# Made up walk\n")
+  start = 1000000000
+  for i in range(1000):
+    timestamp = start + i * 20000000
+    z = 9.81 + math.sin(2 * math.pi * 2 * i / 50.0)
+    trace.write("%d,%d,0.1,0.2,%f\n" % (sensor.TYPE_ACCELEROMETER, timestamp, z))
+    if i % 50 == 0:
+      trace.write("location,%d,gps,%d,47.0707,15.4395,353.0,5.0,90.0,1.4\n" %
+          (timestamp, 1500000000000 + i * 20))
+
+sensor.start_sensing(sensor.TYPE_ACCELEROMETER)
+spectrum = sensor.add_spectrum(sensor.TYPE_ACCELEROMETER, 128)
+
+# As fast as possible, the spectrum shows the 2 Hz steps nevertheless
+sensor.start_replay(path, 0)
+time.sleep(2)
+l("Replay:                  " + repr(sensor.get_replay_status()))
+l("Acceleration:            " + repr(sensor.get_acceleration()))
+l("Location:                " + repr(location.get_location()))
+l("Spectra:                 " + repr(sensor.get_spectra(sensor.TYPE_ACCELEROMETER)))
+l("Replayed:                " + repr(sensor.stop_replay()))
+
+# Ten times as fast as recorded, i.e. about 2 s
+sensor.start_replay(path, 10)
+time.sleep(1)
+l("Replay after 1 s:        " + repr(sensor.get_replay_status()))
+time.sleep(2)
+l("Replayed:                " + repr(sensor.stop_replay()))
+
+sensor.remove_spectrum(sensor.TYPE_ACCELEROMETER, spectrum)
+sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+os.remove(path)
+
+l('Bye, bye!')
@@ -0,0 +1,20 @@
+import androidlog, sensor, time
+l = androidlog.log
+l('Lets wait for some motion (walk around with the phone)')
+
+# The accelerometer only runs after significant motion was detected
+for i in range(3):
+  event = sensor.wait_for_trigger(sensor.TYPE_SIGNIFICANT_MOTION, 30000)
+  l("Significant motion:      " + repr(event))
+  if not event:
+    continue
+  sensor.start_sensing(sensor.TYPE_ACCELEROMETER)
+  time.sleep(5)
+  l("Acceleration:            " + repr(sensor.get_acceleration()))
+  sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+
+# On-change trigger sensors stream like the others, this waits for a step
+l("Step:                    " + repr(sensor.wait_for_trigger(
+    sensor.TYPE_STEP_DETECTOR, 10000)))
+
+l('Bye, bye!')
@@ -1,4 +1,4 @@
-import androidlog, sensor, sys, time
+import androidlog, sensor, sensorlog, sys, time
 l = androidlog.log
 l('Lets get some sensor info')
 
@@ -6,6 +6,25 @@ l("Sensor Info")
 l(repr(sensor.get_sensor_list()))
 
 l('Oh, wow, lovely sensors, why not poll them?')
+# Sensors start on first read, which returns None, so read them all once
+for info in sensor.get_sensor_list() or []:
+  sensor.get_sensor_values(info["type"])
+# Explicitly started sensors keep running until stopped
+sensor.start_sensing(sensor.TYPE_ACCELEROMETER)
+# Per-second acceleration magnitude, over 1 s and sliding 3 s windows
+tumbling = sensor.add_aggregator(sensor.TYPE_ACCELEROMETER, 1000)
+sliding = sensor.add_aggregator(sensor.TYPE_ACCELEROMETER, 3000, 1000)
+# Dominant frequency etc. of the acceleration magnitude every 64 samples
+spectrum = sensor.add_spectrum(sensor.TYPE_ACCELEROMETER, 128)
+recording = sensor.start_recording("test_sensors", [sensor.TYPE_ACCELEROMETER])
+# Only store light changes of more than 5 lux and 10%
+sensor.set_deadband(sensor.TYPE_LIGHT, 5, 0.1)
+light_sequence = sensor.get_sequence(sensor.TYPE_LIGHT)
+# Batches of new acceleration samples, pushed from a dispatcher thread
+batches = []
+callback = sensor.add_callback(sensor.TYPE_ACCELEROMETER, batches.append, 50)
+# Azimuth, pitch, roll and quaternion, fused in Java at 50 Hz
+fused_types = sensor.start_orientation(20000)
 time.sleep(10)
 
 l("Acceleration:            " + repr(sensor.get_acceleration()))
@@ -26,6 +45,41 @@ l("Humidity:                " + repr(sensor.get_relative_humidity()))
 l("Rotation:                " + repr(sensor.get_rotation_vector()))
 l("Step counter:            " + repr(sensor.get_step_counter()))
 
+l("Accelerometer by type:   " + repr(sensor.get_sensor_values(sensor.TYPE_ACCELEROMETER)))
+
+samples = sensor.get_samples_since(sensor.TYPE_ACCELEROMETER, 0, 1000)
+l("Buffered acceleration samples: " + str(len(samples or [])))
+
+l("Snapshot:                " + repr(sensor.get_snapshot([
+    sensor.TYPE_ACCELEROMETER, sensor.TYPE_GYROSCOPE,
+    sensor.TYPE_MAGNETIC_FIELD, sensor.TYPE_ROTATION_VECTOR])))
+
+sample = sensor.get_sensor_values(sensor.TYPE_ACCELEROMETER)
+l("Next acceleration:       " + repr(sensor.wait_for_sample(
+    sensor.TYPE_ACCELEROMETER, sample[1] if sample else 0, 1000)))
+
+l("Acceleration windows:    " + repr(sensor.get_aggregates(sensor.TYPE_ACCELEROMETER)))
+sensor.remove_aggregator(sensor.TYPE_ACCELEROMETER, tumbling)
+sensor.remove_aggregator(sensor.TYPE_ACCELEROMETER, sliding)
+l("Acceleration spectra:    " + repr(sensor.get_spectra(sensor.TYPE_ACCELEROMETER)))
+sensor.remove_spectrum(sensor.TYPE_ACCELEROMETER, spectrum)
+l("Recording:               " + repr(sensor.stop_recording()))
+l("Recorded samples:        " + str(len(list(sensorlog.read_samples(recording)))))
+
+sensor.remove_callback(callback)
+l("Acceleration batches:    " + repr([len(batch) for batch in batches]))
+
+l("Stored light samples:    " + repr((light_sequence,
+    sensor.get_sequence(sensor.TYPE_LIGHT))))
+sensor.set_deadband(sensor.TYPE_LIGHT, 0)
+
+l("Fused orientation:       " + repr((fused_types,
+    sensor.get_fused_orientation())))
+sensor.stop_orientation()
+
+l("Sensor thread stats:     " + repr(sensor.get_thread_stats()))
+sensor.stop_sensing(sensor.TYPE_ACCELEROMETER)
+
 
 
 l('Bye, bye!')
\ No newline at end of file